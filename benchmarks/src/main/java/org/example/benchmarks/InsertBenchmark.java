@@ -0,0 +1,65 @@
+package org.example.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fill an empty tree with {@code size} keys, one at a time or through
+ * {@link org.example.BPlusTree#insertMany(java.util.Map)}. Every operation is a whole fill, so divide
+ * the score by {@code size} for the cost of a single insert. Zipfian keys repeat, which turns
+ * part of the inserts into updates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertBenchmark extends TreeBenchmark {
+    private HashMap<Integer, String> items;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        prepare();
+        items = new HashMap<>();
+        for (int key : keys) {
+            items.put(key, value);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        openTree();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws IOException {
+        closeTree();
+    }
+
+    @Benchmark
+    public void insert() {
+        for (int key : keys) {
+            tree.insert(key, value);
+        }
+    }
+
+    @Benchmark
+    public void insertMany() {
+        tree.insertMany(items);
+    }
+}
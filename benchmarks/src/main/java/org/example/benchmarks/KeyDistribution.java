@@ -0,0 +1,69 @@
+package org.example.benchmarks;
+
+import java.util.Random;
+
+/**
+ * The order in which a benchmark touches the keys {@code 0} to {@code size - 1}.
+ */
+public enum KeyDistribution {
+    /**
+     * Every key once, in ascending order: the best case for locality and for leaf splits.
+     */
+    SEQUENTIAL,
+    /**
+     * Every key once, in a random order.
+     */
+    UNIFORM,
+    /**
+     * Keys drawn with a Zipfian skew, so a few hot keys are touched over and over. The hot keys
+     * are scattered over the key space rather than clustered in one leaf.
+     */
+    ZIPFIAN;
+
+    private static final double ZIPFIAN_CONSTANT = 0.99; // Skew used by YCSB
+
+    /**
+     * @param size The number of keys to draw, also the size of the key space.
+     * @param random The source of randomness.
+     * @return The keys in the order they should be used.
+     */
+    public int[] keys(int size, Random random) {
+        int[] keys = new int[size];
+        switch (this) {
+            case SEQUENTIAL:
+                for (int i = 0; i < size; i++) {
+                    keys[i] = i;
+                }
+                break;
+            case UNIFORM:
+                for (int i = 0; i < size; i++) {
+                    keys[i] = i;
+                }
+                // Fisher-Yates shuffle
+                for (int i = size - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int swap = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = swap;
+                }
+                break;
+            case ZIPFIAN:
+                ZipfianGenerator zipfian = new ZipfianGenerator(size, ZIPFIAN_CONSTANT);
+                for (int i = 0; i < size; i++) {
+                    keys[i] = scramble(zipfian.next(random), size);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown distribution " + this);
+        }
+        return keys;
+    }
+
+    /**
+     * Spread a rank over the key space, so neighbouring ranks land on unrelated keys.
+     */
+    private static int scramble(long rank, int size) {
+        long hash = rank * 0x9E3779B97F4A7C15L;
+        return (int) Long.remainderUnsigned(hash ^ (hash >>> 32), size);
+    }
+}
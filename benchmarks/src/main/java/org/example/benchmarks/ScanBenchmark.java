@@ -0,0 +1,71 @@
+package org.example.benchmarks;
+
+import org.example.BPlusTreeCursor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan {@code scanLength} consecutive keys of a tree holding {@code size} keys, starting at
+ * keys taken in the order of the distribution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark extends TreeBenchmark {
+    @Param({"100"})
+    public int scanLength;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        prepare();
+        openFilledTree();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeTree();
+    }
+
+    @Benchmark
+    public void scanKeys(Blackhole blackhole) {
+        BPlusTreeCursor<Integer, String> cursor = nextCursor();
+        while (cursor.next()) {
+            blackhole.consume(cursor.key());
+        }
+    }
+
+    @Benchmark
+    public void scanEntries(Blackhole blackhole) {
+        BPlusTreeCursor<Integer, String> cursor = nextCursor();
+        while (cursor.next()) {
+            blackhole.consume(cursor.key());
+            blackhole.consume(cursor.value());
+        }
+    }
+
+    private BPlusTreeCursor<Integer, String> nextCursor() {
+        int from = keys[next];
+        next = next + 1 == keys.length ? 0 : next + 1;
+        return tree.cursor(from, from + scanLength - 1);
+    }
+}
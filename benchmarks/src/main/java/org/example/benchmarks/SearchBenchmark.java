@@ -0,0 +1,53 @@
+package org.example.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Look up single keys of a tree holding {@code size} keys, in the order of the distribution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark extends TreeBenchmark {
+    private Integer[] boxedKeys; // Boxed up front, so searches measure no boxing
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        prepare();
+        openFilledTree();
+        boxedKeys = new Integer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            boxedKeys[i] = keys[i];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeTree();
+    }
+
+    @Benchmark
+    public String search() {
+        Integer key = boxedKeys[next];
+        next = next + 1 == boxedKeys.length ? 0 : next + 1;
+        return tree.search(key);
+    }
+}
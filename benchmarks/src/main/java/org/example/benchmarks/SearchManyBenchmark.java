@@ -0,0 +1,79 @@
+package org.example.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Look up {@code batch} keys of a tree holding {@code size} keys at a time, in the order of the
+ * distribution, either through {@link org.example.BPlusTree#searchMany(List)} or one search at a
+ * time. Divide the score by {@code batch} for the cost of a single lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchManyBenchmark extends TreeBenchmark {
+    @Param({"256"})
+    public int batch;
+
+    private List<List<Integer>> batches;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        prepare();
+        openFilledTree();
+        batches = new ArrayList<>();
+        for (int start = 0; start + batch <= keys.length; start += batch) {
+            List<Integer> keysOfBatch = new ArrayList<>(batch);
+            for (int i = start; i < start + batch; i++) {
+                keysOfBatch.add(keys[i]);
+            }
+            batches.add(keysOfBatch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        closeTree();
+    }
+
+    private List<Integer> nextBatch() {
+        List<Integer> keysOfBatch = batches.get(next);
+        next = next + 1 == batches.size() ? 0 : next + 1;
+        return keysOfBatch;
+    }
+
+    @Benchmark
+    public List<String> searchMany() {
+        return tree.searchMany(nextBatch());
+    }
+
+    @Benchmark
+    public List<String> searchEach() {
+        List<Integer> keysOfBatch = nextBatch();
+        List<String> values = new ArrayList<>(keysOfBatch.size());
+        for (Integer key : keysOfBatch) {
+            values.add(tree.search(key));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,52 @@
+package org.example.benchmarks;
+
+import org.example.BPlusTree;
+import org.example.KeyCodecs;
+import org.example.ValueCodecs;
+
+import java.nio.file.Path;
+
+/**
+ * Where a benchmarked tree keeps its nodes.
+ */
+public enum Storage {
+    HEAP,
+    OFF_HEAP,
+    MAPPED,
+    /**
+     * A file with 64 KB pages behind a page cache of one segment's worth of memory.
+     */
+    PAGED;
+
+    private static final int PAGE_KB = 64;
+
+    /**
+     * Create an empty tree.
+     *
+     * @param segmentMB The segment size in megabytes.
+     * @param order The order of the tree.
+     * @param file The empty backing file of a mapped or paged tree, ignored by the other storage modes.
+     * @return The tree, close it to release its memory or file.
+     */
+    public BPlusTree<Integer, String> create(int segmentMB, int order, Path file) {
+        switch (this) {
+            case HEAP:
+                return new BPlusTree<>(segmentMB, order);
+            case OFF_HEAP:
+                return BPlusTree.offHeap(segmentMB, order);
+            case MAPPED:
+                return BPlusTree.open(file, segmentMB, order);
+            case PAGED:
+                return BPlusTree.paged(file, PAGE_KB, segmentMB, order, KeyCodecs.INT, ValueCodecs.UTF8, null);
+            default:
+                throw new IllegalStateException("Unknown storage " + this);
+        }
+    }
+
+    /**
+     * @return true if the tree needs a backing file.
+     */
+    public boolean needsFile() {
+        return this == MAPPED || this == PAGED;
+    }
+}
@@ -0,0 +1,85 @@
+package org.example.benchmarks;
+
+import org.example.BPlusTree;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * The parameters and tree handling shared by every benchmark. Override any parameter on the
+ * command line, for example {@code -p order=8,32 -p storage=HEAP}.
+ */
+@State(Scope.Thread)
+public abstract class TreeBenchmark {
+    private static final int SEGMENT_MB = 4;
+    private static final long SEED = 42;
+
+    @Param({"4", "16", "64"})
+    public int order;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    @Param({"8", "64", "512"})
+    public int valueLength;
+
+    @Param({"HEAP", "OFF_HEAP", "MAPPED", "PAGED"})
+    public Storage storage;
+
+    protected BPlusTree<Integer, String> tree;
+    protected int[] keys; // Keys in the order of the distribution
+    protected String value;
+    private Path file;
+
+    /**
+     * Draw the keys and build the value every benchmark works with.
+     */
+    protected void prepare() {
+        keys = distribution.keys(size, new Random(SEED));
+        value = "v".repeat(valueLength);
+    }
+
+    /**
+     * Create an empty tree in the configured storage.
+     */
+    protected void openTree() throws IOException {
+        if (storage.needsFile()) {
+            file = Files.createTempFile("bplustree-bench", ".db");
+        }
+        tree = storage.create(SEGMENT_MB, order, file);
+    }
+
+    /**
+     * Create a tree holding every key from {@code 0} to {@code size - 1}.
+     */
+    protected void openFilledTree() throws IOException {
+        openTree();
+        Integer[] sorted = new Integer[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = i;
+            values[i] = value;
+        }
+        tree.bulkLoad(sorted, values, 1.0);
+    }
+
+    /**
+     * Release the memory or file of the tree.
+     */
+    protected void closeTree() throws IOException {
+        tree.close();
+        tree = null;
+        if (file != null) {
+            Files.deleteIfExists(file);
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.example.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Draws ranks from {@code 0} to {@code items - 1} with a Zipfian distribution, rank 0 being the
+ * most popular. This is the rejection-free generator of Gray et al., "Quickly Generating
+ * Billion-Record Synthetic Databases", as used by YCSB.
+ */
+public class ZipfianGenerator {
+    private final long items;
+    private final double theta;
+    private final double alpha;
+    private final double zetaN;
+    private final double eta;
+
+    /**
+     * @param items The number of ranks.
+     * @param theta The skew, between 0 (exclusive) and 1 (exclusive).
+     */
+    public ZipfianGenerator(long items, double theta) {
+        if (items < 2 || !(theta > 0 && theta < 1)) {
+            throw new IllegalArgumentException("Need at least 2 items and a skew in (0, 1)");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.alpha = 1 / (1 - theta);
+        this.zetaN = zeta(items, theta);
+        double zeta2 = zeta(2, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+    }
+
+    /**
+     * @param random The source of randomness.
+     * @return The next rank.
+     */
+    public long next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        long rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(rank, items - 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
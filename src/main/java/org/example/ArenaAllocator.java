@@ -1,45 +1,185 @@
 package org.example;
 import java.nio.ByteBuffer;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
 
+/**
+ * Allocates fixed-size blocks from a {@link SegmentedBuffer}. Every block belongs to a size class;
+ * freed blocks are kept on one free list per size class and handed out again before the arena
+ * grows. Blocks never straddle two segments, and a new segment is added when the last one is full.
+ * <p>
+ * The free lists are intrusive: a freed block stores the offset of the next free block of
+ * its class in its bytes 4 to 7, so they cost no memory besides one head per class and survive
+ * in a file-backed buffer. The first four bytes of a block are never touched by the allocator,
+ * which lets the owner keep a latch there that stays meaningful across free and reuse.
+ * <p>
+ * All methods are synchronized, so the allocator may be shared by concurrent writers.
+ */
 public class ArenaAllocator {
-    private final ByteBuffer buffer;
-    private final Stack<Integer> freeList;
-    private final int blockSize;
+    public static final int NIL = -1; // Marks the end of a free list
+    private static final int LINK_POSITION = 4; // Position of the free-list link inside a free block
+    private final SegmentedBuffer buffer;
+    private final int[] blockSizes;
+    private final int[] freeHeads;
     private int nextOffset;
+    private Listener listener; // Told about blocks before they are reused or linked, null if nobody listens
 
-    public ArenaAllocator(int size, int blockSize) {
-        this.buffer = ByteBuffer.allocate(size);
-        this.freeList = new Stack<>();
-        this.blockSize = blockSize;
-        this.nextOffset = 0;
+    /**
+     * Create an allocator over an existing buffer.
+     *
+     * @param buffer The buffer to allocate blocks from.
+     * @param startOffset The first offset that may be allocated, everything before it is reserved.
+     * @param blockSizes The block size of every size class.
+     */
+    public ArenaAllocator(SegmentedBuffer buffer, int startOffset, int... blockSizes) {
+        if (blockSizes.length == 0) {
+            throw new IllegalArgumentException("At least one size class is required");
+        }
+        for (int blockSize : blockSizes) {
+            if (blockSize < 8 || blockSize > buffer.segmentSize()) {
+                throw new IllegalArgumentException("Blocks must be at least 8 bytes and fit in a segment");
+            }
+        }
+        this.buffer = buffer;
+        this.blockSizes = blockSizes.clone();
+        this.freeHeads = new int[blockSizes.length];
+        Arrays.fill(freeHeads, NIL);
+        this.nextOffset = startOffset;
+    }
+
+    public synchronized int allocate() {
+        return allocate(0);
     }
 
-    public Integer allocate() {
-        if (!freeList.isEmpty()) {
-            return freeList.pop();
+    /**
+     * Allocate a block of the given size class, reusing a freed block when there is one.
+     *
+     * @param sizeClass The size class of the block.
+     * @return The offset of the block.
+     * @throws IllegalStateException If the address space of the buffer is exhausted.
+     */
+    public synchronized int allocate(int sizeClass) {
+        int head = freeHeads[sizeClass];
+        if (head != NIL) {
+            if (listener != null) {
+                listener.reusing(head, sizeClass);
+            }
+            freeHeads[sizeClass] = buffer.getInt(head + LINK_POSITION);
+            return head;
         }
-        if (nextOffset + blockSize > buffer.capacity()) {
-            throw new OutOfMemoryError("ArenaAllocator out of memory");
+        int blockSize = blockSizes[sizeClass];
+        if (buffer.position(nextOffset) + blockSize > buffer.segmentSize()) {
+            // Leave the tail of the segment unused and continue at the start of the next one
+            nextOffset = buffer.address(buffer.segmentIndex(nextOffset) + 1, 0);
+        }
+        while (buffer.segmentIndex(nextOffset) >= buffer.segmentCount()) {
+            buffer.grow();
         }
         int offset = nextOffset;
         nextOffset += blockSize;
         return offset;
     }
 
-    public void deallocate(int offset) {
-        freeList.push(offset);
+    public synchronized void deallocate(int offset) {
+        deallocate(offset, 0);
+    }
+
+    /**
+     * Return a block to the free list of its size class.
+     *
+     * @param offset The offset of the block.
+     * @param sizeClass The size class the block was allocated with.
+     */
+    public synchronized void deallocate(int offset, int sizeClass) {
+        if (listener != null) {
+            listener.freeing(offset, sizeClass);
+        }
+        buffer.pin(offset);
+        buffer.putInt(offset + LINK_POSITION, freeHeads[sizeClass]);
+        buffer.unpin(offset);
+        freeHeads[sizeClass] = offset;
+    }
+
+    /**
+     * Walk the free list of a size class, head first.
+     *
+     * @param sizeClass The size class.
+     * @param visitor Called with the offset of every free block, returns false to stop the walk.
+     */
+    public synchronized void forEachFree(int sizeClass, IntPredicate visitor) {
+        for (int block = freeHeads[sizeClass]; block != NIL && visitor.test(block); ) {
+            block = buffer.getInt(block + LINK_POSITION);
+        }
+    }
+
+    public int getBlockSize(int sizeClass) {
+        return blockSizes[sizeClass];
+    }
+
+    /**
+     * @return The end of the highest block ever allocated.
+     */
+    public synchronized int getHighWaterMark() {
+        return nextOffset;
+    }
+
+    public synchronized int getFreeHead(int sizeClass) {
+        return freeHeads[sizeClass];
+    }
+
+    /**
+     * Restore the allocation state, for example after reopening a file-backed buffer.
+     *
+     * @param highWaterMark The end of the highest block ever allocated.
+     * @param freeHeads The head of the free list of every size class.
+     */
+    public synchronized void restore(int highWaterMark, int... freeHeads) {
+        if (freeHeads.length != this.freeHeads.length) {
+            throw new IllegalArgumentException("Expected " + this.freeHeads.length + " free lists");
+        }
+        this.nextOffset = highWaterMark;
+        System.arraycopy(freeHeads, 0, this.freeHeads, 0, freeHeads.length);
+    }
+
+    /**
+     * Tell a listener about every block before it is handed out again or linked into a free list,
+     * since both change a block that may still hold data someone needs.
+     *
+     * @param listener The listener, or null to stop telling anyone.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Learns about freed blocks before the allocator changes them. Called while holding the
+     * allocator, so it may allocate and free blocks itself.
+     */
+    public interface Listener {
+        /**
+         * A freed block is about to be handed out again.
+         */
+        void reusing(int offset, int sizeClass);
+
+        /**
+         * A block is about to be linked into the free list of its size class.
+         */
+        void freeing(int offset, int sizeClass);
     }
 
-    public ByteBuffer getBuffer() {
+    public SegmentedBuffer getBuffer() {
         return buffer;
     }
 
     public ByteBuffer getByteBufferAt(int offset) {
-        ByteBuffer slice = buffer.duplicate();
-        slice.position(offset);
-        slice.limit(offset + blockSize);
+        return getByteBufferAt(offset, 0);
+    }
+
+    public ByteBuffer getByteBufferAt(int offset, int sizeClass) {
+        ByteBuffer slice = buffer.segment(offset).duplicate();
+        int position = buffer.position(offset);
+        slice.position(position);
+        slice.limit(position + blockSizes[sizeClass]);
         return slice;
     }
 }
-
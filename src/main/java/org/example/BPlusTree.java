@@ -1,326 +1,2431 @@
 package org.example;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A B+ Tree implementation with an arena allocator for efficient memory management.
  * The B+ Tree supports insertion, deletion, and search operations.
+ * <p>
+ * Keys and values are stored in binary form: a {@link KeyCodec} turns every key into a
+ * fixed-width byte string whose unsigned order is the key order, and a {@link ValueCodec} turns
+ * values into bytes. Searches compare the encoded keys straight in the buffer. A tree created
+ * without codecs maps int keys to strings, as if created with {@link KeyCodecs#INT} and
+ * {@link ValueCodecs#UTF8}.
+ * <p>
+ * Nodes live in a {@link SegmentedBuffer} that grows one segment at a time, either on the heap,
+ * off-heap when created through {@link #offHeap(int, int)}, or, when created through
+ * {@link #open(Path, int, int)}, in a file mapped into memory, or in a file of which only a
+ * bounded page cache is kept in memory. The first
+ * {@link #TREE_HEADER_SIZE} bytes of the first segment hold a header with everything needed to
+ * reopen the tree without rebuilding it. A file-backed tree opened with a {@link SyncPolicy}
+ * also keeps a {@link WriteAheadLog} next to the file, which makes every write durable when it
+ * returns and brings the tree back after a crash.
+ * <p>
+ * The tree is safe for concurrent use. Every node carries a version latch in its first four
+ * bytes. Searches and cursors use optimistic lock coupling: they take no latches, read nodes
+ * straight from the buffer and validate each node's version afterwards, restarting when a
+ * writer got in between. Writers latch only the leaf when it neither splits nor underflows,
+ * and otherwise descend with latch crabbing, holding the latches of just the nodes a split or
+ * merge can reach. {@link #snapshot()} takes a consistent read-only view that writers keep
+ * intact by copying the blocks they change. {@link #printTree()} and {@link #close()} must not
+ * run concurrently with other operations.
+ * <p>
+ * {@link #enableMetrics()} turns on counters and latency histograms, read through
+ * {@link #stats()} or JMX; until then operations pay nothing but a null check for them.
+ * {@link #enableFrontCache(int)} puts a cache of the most frequently searched keys in front of
+ * {@link #search(Object)}, which writers keep exact.
+ * <p>
+ * Every node carries a CRC32C checksum, which writers check whenever they read a node into
+ * memory, and {@link #verify()} checks the structure of the whole tree.
+ * <p>
+ * {@link #deferRebalancing(long)} lets deletes leave underfull leaves to {@link #compact()},
+ * run by hand or by a background thread, so that a burst of deletes latches nothing but leaves.
  */
-public class BPlusTree {
+public class BPlusTree<K, V> implements AutoCloseable {
     private static final int DEFAULT_ORDER = 3; // Default order (maximum number of children per node)
-    private static final int DEFAULT_MB = 1; // Default memory size (in megabytes) for the tree
-    private ByteBuffer buffer; // Byte buffer to store the serialized nodes
-    private BPlusTreeNode root; // Root node of the B+ Tree
+    private static final int DEFAULT_MB = 1; // Default segment size (in megabytes) for the tree
+    static final int LEAF_CLASS = 0; // Allocator size class of leaf nodes
+    static final int INTERNAL_CLASS = 1; // Allocator size class of internal nodes
+    static final int OVERFLOW_CLASS = 2; // Allocator size class of overflow pages
+
+    // Tree header layout
+    private static final int MAGIC = 0x42505452; // "BPTR"
+    private static final int FORMAT_VERSION = 9;
+    private static final int MAGIC_POSITION = 0;
+    private static final int VERSION_POSITION = 4;
+    private static final int ORDER_POSITION = 8;
+    private static final int ROOT_POSITION = 12;
+    private static final int HIGH_WATER_MARK_POSITION = 16;
+    private static final int LEAF_FREE_LIST_POSITION = 20;
+    private static final int INTERNAL_FREE_LIST_POSITION = 24;
+    private static final int SEGMENT_SHIFT_POSITION = 28;
+    private static final int OVERFLOW_FREE_LIST_POSITION = 32;
+    private static final int KEY_WIDTH_POSITION = 36;
+    public static final int TREE_HEADER_SIZE = 64; // Reserved for the header, nodes start after it
+    private static final Comparator<byte[]> KEY_ORDER = Arrays::compareUnsigned; // Order of encoded keys
+    private static final long CHECKPOINT_LOG_SIZE = 64L << 20; // Log size that triggers a checkpoint
+
+    private SegmentedBuffer buffer; // Segments storing the serialized nodes
+    private ArenaAllocator allocator; // Hands out and recycles node blocks in the buffer
+    private OverflowPages overflowPages; // Values too large for their leaf
+    private volatile int rootOffset; // Offset of the root node of the B+ Tree
     private int order; // Order of the B+ Tree
-    private int lastAllocatedEndOffset = -1;
+    private final KeyCodec<K> keyCodec;
+    private final ValueCodec<V> valueCodec;
+    private final int keyWidth; // Length of every encoded key
+    private final byte[] minKey; // Encoded key that sorts before every other key
+    private final byte[] maxKey; // Encoded key that sorts after every other key
+    private final ThreadLocal<Descent> descents = ThreadLocal.withInitial(Descent::new); // Reused writer state
+    private final ThreadLocal<byte[]> searchKeys; // Reused encoded key of searches
+    private WriteAheadLog log; // Write-ahead log of a file-backed tree, null if writes are not logged
+    private final WriteGate writeGate = new WriteGate(); // Passed by writes, closed for checkpoints and snapshots
+    private final VersionStore versions; // Copies of the blocks the open snapshots read
+    private volatile TreeMetrics metrics; // Null until enableMetrics() is called
+    private volatile FrontCache<V> frontCache; // Null unless enableFrontCache() was called
+    private final RoutingCache routing = new RoutingCache(); // Decoded internal nodes for lock-free descents
+    private volatile boolean checksumsVerified = true; // Whether writers check the nodes they read
+    private volatile boolean rebalancingDeferred; // Whether deletes leave underfull leaves to compact()
+    private final Queue<byte[]> underfullLeaves = new ConcurrentLinkedQueue<>(); // A deleted key of every leaf left underfull
+    private volatile Thread compactor; // Runs compact() periodically, null if there is none
+    private ObjectName mbeanName; // Name of the registered metrics MXBean, null if there is none
     private Set<Integer> printedOffsets = new HashSet<>();
     /**
-     * Default constructor initializing the B+ Tree with default memory size and order.
+     * Default constructor initializing the B+ Tree with default segment size and order.
+     * The tree maps int keys to strings, so its type arguments must be {@code <Integer, String>}.
+     */
+    public BPlusTree() {
+        this(DEFAULT_MB, DEFAULT_ORDER);
+    }
+
+    /**
+     * Constructor to initialize the B+ Tree with specified segment size and order.
+     * The tree starts with a single segment and adds segments as it grows. It maps int keys to
+     * strings, so its type arguments must be {@code <Integer, String>}.
+     *
+     * @param MB The segment size in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree.
+     */
+    @SuppressWarnings("unchecked")
+    public BPlusTree(int MB, int order) {
+        this(MB, order, (KeyCodec<K>) KeyCodecs.INT, (ValueCodec<V>) ValueCodecs.UTF8);
+    }
+
+    /**
+     * Constructor to initialize the B+ Tree with specified segment size, order and codecs.
+     *
+     * @param MB The segment size in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     */
+    public BPlusTree(int MB, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        this(SegmentedBuffer.heap(segmentShift(MB, order, keyCodec.width())), order, keyCodec, valueCodec);
+        initialize();
+    }
+
+    private BPlusTree(SegmentedBuffer buffer, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        this.buffer = buffer;
+        this.order = order;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.keyWidth = keyCodec.width();
+        this.searchKeys = ThreadLocal.withInitial(() -> new byte[keyWidth]);
+        this.minKey = new byte[keyWidth];
+        this.maxKey = new byte[keyWidth];
+        Arrays.fill(maxKey, (byte) 0xFF);
+        this.allocator = new ArenaAllocator(buffer, TREE_HEADER_SIZE,
+                BPlusTreeNode.sizeOf(true, order, keyWidth), BPlusTreeNode.sizeOf(false, order, keyWidth), OverflowPages.PAGE_SIZE);
+        this.overflowPages = new OverflowPages(allocator, OVERFLOW_CLASS);
+        this.versions = new VersionStore(allocator, new VersionStore.Blocks() {
+            @Override
+            public int copy(int offset, int sizeClass) {
+                return copyBlock(offset, sizeClass);
+            }
+
+            @Override
+            public void free(int offset, int sizeClass) {
+                allocator.deallocate(offset, sizeClass);
+            }
+        });
+        allocator.setListener(new ArenaAllocator.Listener() {
+            @Override
+            public void reusing(int offset, int sizeClass) {
+                if (log != null) {
+                    log.touch(offset, allocator.getBlockSize(sizeClass));
+                }
+                versions.reused(offset, sizeClass);
+            }
+
+            @Override
+            public void freeing(int offset, int sizeClass) {
+                if (log != null) {
+                    log.touch(offset, allocator.getBlockSize(sizeClass));
+                }
+                versions.preserve(offset, sizeClass);
+            }
+        });
+    }
+
+    /**
+     * Create a B+ Tree whose nodes are stored off-heap in direct memory, so a large tree adds
+     * neither heap pressure nor GC work. The memory is released by {@link #close()}, after which
+     * the tree must not be used.
+     *
+     * @param MB The segment size in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree.
+     * @return The new tree, mapping int keys to strings.
+     */
+    public static BPlusTree<Integer, String> offHeap(int MB, int order) {
+        return offHeap(MB, order, KeyCodecs.INT, ValueCodecs.UTF8);
+    }
+
+    /**
+     * Create a B+ Tree whose nodes are stored off-heap in direct memory, with the given codecs.
+     *
+     * @param MB The segment size in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @return The new tree.
+     * @see #offHeap(int, int)
+     */
+    public static <K, V> BPlusTree<K, V> offHeap(int MB, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        BPlusTree<K, V> tree = new BPlusTree<>(SegmentedBuffer.direct(segmentShift(MB, order, keyCodec.width())),
+                order, keyCodec, valueCodec);
+        tree.initialize();
+        return tree;
+    }
+
+    /**
+     * Open a B+ Tree backed by a memory-mapped file. A new file is initialized with an empty
+     * tree and grows by one segment at a time; an existing file is reopened as it was left, by
+     * reading its header, without touching any node.
+     *
+     * @param file The file holding the tree.
+     * @param MB The segment size of a new file in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree, it must match the order of an existing file.
+     * @return The opened tree, mapping int keys to strings. It should be closed to release the file.
+     * @throws UncheckedIOException If the file cannot be opened or mapped.
+     */
+    public static BPlusTree<Integer, String> open(Path file, int MB, int order) {
+        return open(file, MB, order, KeyCodecs.INT, ValueCodecs.UTF8);
+    }
+
+    /**
+     * Open a B+ Tree backed by a memory-mapped file, with the given codecs. The key width of the
+     * codec must match the one of an existing file; nothing else about the codecs is recorded,
+     * so an existing file must be opened with the codecs it was written with.
+     *
+     * @param file The file holding the tree.
+     * @param MB The segment size of a new file in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree, it must match the order of an existing file.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @return The opened tree. It should be closed to release the file.
+     * @throws UncheckedIOException If the file cannot be opened or mapped.
+     * @see #open(Path, int, int)
+     */
+    public static <K, V> BPlusTree<K, V> open(Path file, int MB, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        return open(file, segmentShift(MB, order, keyCodec.width()), order, keyCodec, valueCodec, null, 0);
+    }
+
+    /**
+     * Open a B+ Tree backed by a memory-mapped file, with a write-ahead log. The log is kept in
+     * a file named like the tree file with {@code .wal} appended. Every insert and delete is
+     * logged before the tree changes and is durable once it returns, as far as the sync policy
+     * demands; the tree file itself is only forced by checkpoints, which {@link #flush()},
+     * {@link #close()} and a growing log trigger. If the tree was not closed, the log is
+     * replayed first, so the tree is back as it was after the last logged write.
+     *
+     * @param file The file holding the tree.
+     * @param MB The segment size of a new file in megabytes, rounded up to a power of two.
+     * @param order The order of the B+ Tree, it must match the order of an existing file.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @param syncPolicy When the log is forced to the storage device.
+     * @return The opened tree. It should be closed to release the files.
+     * @throws UncheckedIOException If a file cannot be opened or mapped.
+     * @see #open(Path, int, int, KeyCodec, ValueCodec)
+     */
+    public static <K, V> BPlusTree<K, V> open(Path file, int MB, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec,
+                                              SyncPolicy syncPolicy) {
+        return open(file, segmentShift(MB, order, keyCodec.width()), order, keyCodec, valueCodec, syncPolicy, 0);
+    }
+
+    /**
+     * Open a B+ Tree backed by a file of which only a bounded part is kept in memory, for trees
+     * larger than the memory they may use. The file is divided into pages, the segments of the
+     * tree, which are read on demand with positioned reads into a page cache of {@code cacheMB}
+     * megabytes; pages not used recently are written back and evicted when it is full. Pages on
+     * the path of every lookup, near the root, stay in memory. The file has the same format as
+     * the one of {@link #open(Path, int, int, KeyCodec, ValueCodec)}, and the page size of an
+     * existing file is the segment size it was created with.
+     *
+     * @param file The file holding the tree.
+     * @param pageKB The page size of a new file in kilobytes, rounded up to a power of two.
+     * @param cacheMB The memory for cached pages in megabytes, it holds at least two pages.
+     * @param order The order of the B+ Tree, it must match the order of an existing file.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @param syncPolicy When the write-ahead log is forced to the storage device, or null for a
+     *                   tree without a log.
+     * @return The opened tree. It should be closed to release the files.
+     * @throws UncheckedIOException If a file cannot be opened or read.
+     * @see #open(Path, int, int, KeyCodec, ValueCodec, SyncPolicy)
+     */
+    public static <K, V> BPlusTree<K, V> paged(Path file, int pageKB, int cacheMB, int order, KeyCodec<K> keyCodec,
+                                               ValueCodec<V> valueCodec, SyncPolicy syncPolicy) {
+        if (pageKB < 1) {
+            throw new IllegalArgumentException("Page size must be 1 KB or more");
+        }
+        if (cacheMB < 1) {
+            throw new IllegalArgumentException("Cache size must be 1 MB or more");
+        }
+        return open(file, segmentShift(1024L * pageKB, order, keyCodec.width()), order, keyCodec, valueCodec, syncPolicy, cacheMB);
+    }
+
+    private static <K, V> BPlusTree<K, V> open(Path file, int segmentShift, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec,
+                                               SyncPolicy syncPolicy, int cacheMB) {
+        FileChannel channel = null;
+        WriteAheadLog log = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean existing = channel.size() > 0;
+            if (syncPolicy != null) {
+                log = WriteAheadLog.open(file.resolveSibling(file.getFileName() + ".wal"), syncPolicy);
+            }
+            boolean recover = existing && log != null && !log.isClean();
+            if (existing) {
+                // Fixed when the file was created, so even a stale header page holds the right one
+                segmentShift = readSegmentShift(channel);
+            }
+            SegmentedBuffer buffer = cacheMB == 0 ? SegmentedBuffer.mapped(channel, segmentShift)
+                    : SegmentedBuffer.paged(channel, segmentShift, (int) Math.max(2, ((long) cacheMB << 20) >>> segmentShift));
+            BPlusTree<K, V> tree = new BPlusTree<>(buffer, order, keyCodec, valueCodec);
+            tree.log = log;
+            if (recover) {
+                tree.recover();
+            } else if (existing) {
+                tree.readHeader();
+            } else {
+                tree.initialize();
+            }
+            if (log != null) {
+                tree.startLogging();
+                tree.checkpoint();
+            }
+            return tree;
+        } catch (IOException e) {
+            closeQuietly(channel, log);
+            throw new UncheckedIOException("Failed to open " + file, e);
+        } catch (RuntimeException e) {
+            closeQuietly(channel, log);
+            throw e;
+        }
+    }
+
+    private static int segmentShift(int MB, int order, int keyWidth) {
+        if (MB < 1) {
+            throw new IllegalArgumentException("Memory must be 1 MB or more");
+        }
+        return segmentShift((1024L * 1024) * MB, order, keyWidth);
+    }
+
+    private static int segmentShift(long bytes, int order, int keyWidth) {
+        if (order < 3) {
+            throw new IllegalArgumentException("Order must be 3 or more");
+        }
+        if (keyWidth < 1) {
+            throw new IllegalArgumentException("Keys must be 1 byte or more");
+        }
+        int shift = SegmentedBuffer.shiftFor(bytes);
+        if (shift > 30 || BPlusTreeNode.sizeOf(true, order, keyWidth) > (1 << shift) - TREE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at most 1024 MB and hold a node");
+        }
+        return shift;
+    }
+
+    /**
+     * Read the segment size of an existing tree file, which decides how the file is mapped.
+     */
+    private static int readSegmentShift(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TREE_HEADER_SIZE).order(SegmentedBuffer.FILE_BYTE_ORDER);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // Keep reading until the header is complete or the file ends
+        }
+        if (header.getInt(MAGIC_POSITION) != MAGIC) {
+            throw new IllegalStateException("Not a B+ Tree file");
+        }
+        return header.getInt(SEGMENT_SHIFT_POSITION);
+    }
+
+    private static void closeQuietly(FileChannel channel, WriteAheadLog log) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already failing, keep the original exception
+            }
+        }
+        if (log != null) {
+            log.abandon();
+        }
+    }
+
+    /**
+     * Bring the tree file back after a crash: restore every block the log holds an image of,
+     * which yields the tree of the last checkpoint, then replay the writes logged since.
+     */
+    private void recover() {
+        log.restoreImages(buffer);
+        readHeader();
+        resetLatches();
+        startLogging();
+        log.replay(new WriteAheadLog.Replay() {
+            @Override
+            public void insert(byte[] key, byte[] value) {
+                BPlusTree.this.insert(key, value);
+            }
+
+            @Override
+            public void delete(byte[] key) {
+                BPlusTree.this.delete(key);
+            }
+        });
+    }
+
+    /**
+     * Drop the latches a crash left in the file, walking every node that is part of the tree.
+     */
+    private void resetLatches() {
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = rootOffset;
+        while (size > 0) {
+            int node = stack[--size];
+            BPlusTreeNode.resetVersion(buffer, node);
+            if (!BPlusTreeNode.isLeaf(buffer, node)) {
+                int children = BPlusTreeNode.keyCount(buffer, node) + 1;
+                if (size + children > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + children));
+                }
+                for (int i = 0; i < children; i++) {
+                    stack[size++] = BPlusTreeNode.childAt(buffer, node, order, keyWidth, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Image every block of the current tree in the log before it changes, and force the images
+     * before a paged tree writes a changed page back.
+     */
+    private void startLogging() {
+        log.attach(buffer, allocator.getHighWaterMark());
+        buffer.beforeWriteBack(log::forceImages);
+    }
+
+    /**
+     * Initialize an empty tree: the root is a leaf node right after the header.
+     */
+    private void initialize() {
+        BPlusTreeNode root = new BPlusTreeNode(true, allocateNode(true),order, keyWidth);
+        serializeNode(root);
+        setRoot(root.offset);
+    }
+
+    /**
+     * Persist the root offset, order and allocation state into the tree header. Writers
+     * serialize on the allocator, so the header never mixes the state of two writers.
+     */
+    private void writeHeader() {
+        synchronized (allocator) {
+            if (log != null) {
+                log.touch(0, TREE_HEADER_SIZE);
+            }
+            buffer.pin(MAGIC_POSITION);
+            buffer.putInt(MAGIC_POSITION, MAGIC);
+            buffer.putInt(VERSION_POSITION, FORMAT_VERSION);
+            buffer.putInt(ORDER_POSITION, order);
+            buffer.putInt(ROOT_POSITION, rootOffset);
+            buffer.putInt(HIGH_WATER_MARK_POSITION, allocator.getHighWaterMark());
+            buffer.putInt(LEAF_FREE_LIST_POSITION, allocator.getFreeHead(LEAF_CLASS));
+            buffer.putInt(INTERNAL_FREE_LIST_POSITION, allocator.getFreeHead(INTERNAL_CLASS));
+            buffer.putInt(SEGMENT_SHIFT_POSITION, buffer.segmentShift());
+            buffer.putInt(OVERFLOW_FREE_LIST_POSITION, allocator.getFreeHead(OVERFLOW_CLASS));
+            buffer.putInt(KEY_WIDTH_POSITION, keyWidth);
+            buffer.unpin(MAGIC_POSITION);
+        }
+    }
+
+    /**
+     * Publish a new root and persist it in the header.
+     *
+     * @param offset The offset of the new root.
+     */
+    private void setRoot(int offset) {
+        synchronized (allocator) {
+            rootOffset = offset;
+            writeHeader();
+        }
+    }
+
+    /**
+     * Restore the tree state from the header of an existing buffer.
+     */
+    private void readHeader() {
+        if (buffer.getInt(MAGIC_POSITION) != MAGIC) {
+            throw new IllegalStateException("Not a B+ Tree file");
+        }
+        if (buffer.getInt(VERSION_POSITION) != FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported B+ Tree file version " + buffer.getInt(VERSION_POSITION));
+        }
+        if (buffer.getInt(ORDER_POSITION) != order) {
+            throw new IllegalStateException("File was created with order " + buffer.getInt(ORDER_POSITION) + ", not " + order);
+        }
+        if (buffer.getInt(KEY_WIDTH_POSITION) != keyWidth) {
+            throw new IllegalStateException("File was created with " + buffer.getInt(KEY_WIDTH_POSITION) + "-byte keys, not " + keyWidth);
+        }
+        rootOffset = buffer.getInt(ROOT_POSITION);
+        allocator.restore(buffer.getInt(HIGH_WATER_MARK_POSITION),
+                buffer.getInt(LEAF_FREE_LIST_POSITION), buffer.getInt(INTERNAL_FREE_LIST_POSITION),
+                buffer.getInt(OVERFLOW_FREE_LIST_POSITION));
+    }
+
+    /**
+     * Write the changes of a file-backed tree to the storage device, which is a checkpoint when
+     * the tree has a write-ahead log. Does nothing for heap trees. Waits for the writes in
+     * progress and holds off new ones meanwhile, so no page is written back halfway through a change.
+     */
+    public void flush() {
+        if (log != null) {
+            checkpoint();
+            return;
+        }
+        writeGate.close();
+        try {
+            buffer.force();
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    /**
+     * Force the tree file and empty the write-ahead log, which is no longer needed to recover
+     * the tree. Waits for the writes in progress and holds off new ones meanwhile; searches and
+     * cursors go on.
+     */
+    private void checkpoint() {
+        writeGate.close();
+        try {
+            checkpointLocked();
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    private void checkpointLocked() {
+        log.forceImages();
+        buffer.force();
+        log.checkpoint(allocator.getHighWaterMark());
+    }
+
+    /**
+     * Wait until the writes of the calling thread are as durable as the sync policy demands,
+     * then checkpoint if the log has grown too large.
+     */
+    private void commit() {
+        log.commit();
+        if (log.size() > CHECKPOINT_LOG_SIZE) {
+            writeGate.close();
+            try {
+                if (log.size() > CHECKPOINT_LOG_SIZE) {
+                    checkpointLocked();
+                }
+            } finally {
+                writeGate.open();
+            }
+        }
+    }
+
+    /**
+     * Flush and release the backing file, or free the memory of an off-heap tree.
+     * Does nothing for heap trees. The write-ahead log is checkpointed and marked clean, so the
+     * next open needs no recovery.
+     *
+     * @throws UncheckedIOException If the file cannot be closed.
+     */
+    @Override
+    public void close() {
+        unregisterMBean();
+        stopCompactor();
+        if (!underfullLeaves.isEmpty()) {
+            compact();
+        }
+        closeSnapshots();
+        if (log != null) {
+            checkpoint();
+            log.close();
+        }
+        buffer.close();
+    }
+
+    /**
+     * @return The number of bytes currently reserved for the tree's storage.
+     */
+    public long capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return The number of bytes of the tree's storage currently held in memory, less than
+     *         {@link #capacity()} when the tree has a page cache.
+     */
+    public long residentBytes() {
+        return (long) buffer.residentSegments() << buffer.segmentShift();
+    }
+
+    /**
+     * Start counting operations, splits, merges and borrows and timing searches, inserts and
+     * deletes. Counts the nodes and keys of the tree once, waiting for the writes in progress,
+     * and keeps the counts up to date from then on. Calling it again does nothing.
+     */
+    public void enableMetrics() {
+        writeGate.close();
+        try {
+            if (metrics == null) {
+                TreeMetrics enabled = new TreeMetrics();
+                countNodes(enabled);
+                metrics = enabled;
+            }
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    /**
+     * Take the current metrics of the tree. The gauges cost a descent to the leftmost leaf, so
+     * the stats may be taken often.
+     *
+     * @return The counters since {@link #enableMetrics()} and the shape of the tree now.
+     * @throws IllegalStateException If the metrics are not enabled.
+     */
+    public TreeStats stats() {
+        TreeMetrics metrics = this.metrics;
+        if (metrics == null) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+        FrontCache<V> cache = frontCache;
+        return new TreeStats(metrics, height(), order, allocator.getHighWaterMark() - TREE_HEADER_SIZE, capacity(), residentBytes(),
+                cache == null ? 0 : cache.hits(), cache == null ? 0 : cache.misses());
+    }
+
+    /**
+     * Put a bounded cache of the values of the most frequently searched keys in front of
+     * {@link #search(Object)}, which a hit answers without touching the tree. Entries are
+     * admitted and evicted with W-TinyLFU, so a skewed workload keeps its hot keys cached while
+     * one-off lookups pass through. Every insert, batch, delete and bulk load invalidates the
+     * keys it writes before and after changing the tree, so a search never returns a value
+     * older than the last write that finished before it began. The cached values are returned
+     * as they are, so values of a mutable type such as {@code byte[]} must not be changed by
+     * the caller. {@link #searchMany(List)}, cursors and snapshots read the tree. Hits and
+     * misses are counted in {@link #stats()}. Waits for the writes in progress; calling it
+     * again replaces the cache with an empty one.
+     *
+     * @param maxEntries The largest number of values to cache, or 0 to remove the cache.
+     */
+    public void enableFrontCache(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Front cache size must not be negative");
+        }
+        writeGate.close();
+        try {
+            frontCache = maxEntries == 0 ? null : new FrontCache<>(maxEntries, this::searchEncoded);
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    /**
+     * Tell the front cache, if there is one, that keys are about to be written. Called under
+     * the write gate, which keeps the cache from being replaced until the writes are done.
+     *
+     * @return The cache to pass to {@link #endWrites}, null if there is none.
+     */
+    private FrontCache<V> beginWrites(byte[][] keys, int from, int to) {
+        FrontCache<V> cache = frontCache;
+        if (cache != null) {
+            for (int i = from; i < to; i++) {
+                cache.beginWrite(keys[i]);
+            }
+        }
+        return cache;
+    }
+
+    private static <V> void endWrites(FrontCache<V> cache, byte[][] keys, int from, int to) {
+        if (cache != null) {
+            for (int i = from; i < to; i++) {
+                cache.endWrite(keys[i]);
+            }
+        }
+    }
+
+    /**
+     * Enable the metrics and publish them as a {@link TreeStatsMXBean} in the platform MBean
+     * server, under {@code org.example:type=BPlusTree,name=<name>}. {@link #close()} removes it.
+     *
+     * @param name The name that tells this tree apart from others in the same JVM.
+     * @return The name the MXBean was registered under.
+     * @throws IllegalStateException If the tree already registered an MXBean, or the name is taken.
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        if (mbeanName != null) {
+            throw new IllegalStateException("Metrics are already registered as " + mbeanName);
+        }
+        enableMetrics();
+        try {
+            ObjectName objectName = new ObjectName("org.example:type=BPlusTree,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TreeStatsBean(this::stats), objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register the metrics of the tree", e);
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            // Unregistered by someone else already
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * Choose whether writers check the checksum of every node they read into memory, which they
+     * do unless told otherwise. A write that reads a node failing its checksum throws an
+     * {@link IllegalStateException}. Searches and cursors read nodes in place and do not check
+     * them; {@link #verify()} does.
+     *
+     * @param enabled Whether to check checksums.
+     */
+    public void verifyChecksumsOnRead(boolean enabled) {
+        checksumsVerified = enabled;
+    }
+
+    /**
+     * Check the whole tree for corruption: the checksum and fill of every node, the order of
+     * the keys of every node and against the separators above it, the links between the
+     * leaves, the value slots and overflow chains of every leaf, and that every block of the
+     * storage is in use or free exactly once, so none has leaked. Subtrees are checked in
+     * parallel on the common fork-join pool, which makes it quick enough to run when a large
+     * tree file is opened. Waits for the writes in progress and holds off new ones meanwhile;
+     * searches and cursors go on.
+     *
+     * @return A description of every problem found, at most the first hundred, empty if the
+     *         tree is sound.
+     */
+    public List<String> verify() {
+        writeGate.close();
+        try {
+            int leafMinKeys = rebalancingDeferred || !underfullLeaves.isEmpty() ? 0 : minKeys();
+            return new TreeVerifier(buffer, allocator, versions, rootOffset, order, keyWidth, minKeys(), leafMinKeys).verify();
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    /**
+     * Let deletes leave underfull leaves behind instead of borrowing from or merging with a
+     * sibling right away. Every delete then latches nothing but its leaf, and a leaf it takes
+     * below half full, down to empty, is queued for {@link #compact()}. Searches and scans step
+     * over empty leaves. With a positive interval, a daemon thread compacts that often until
+     * {@link #rebalanceOnDelete()} or {@link #close()}; calling this again replaces the interval.
+     *
+     * @param compactIntervalMillis The time between compactions of the background thread, or 0
+     *                              to compact only when {@link #compact()} is called.
+     */
+    public synchronized void deferRebalancing(long compactIntervalMillis) {
+        if (compactIntervalMillis < 0) {
+            throw new IllegalArgumentException("Compaction interval must not be negative");
+        }
+        stopCompactor();
+        rebalancingDeferred = true;
+        if (compactIntervalMillis > 0) {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(compactIntervalMillis);
+            Thread thread = new Thread(() -> compactPeriodically(intervalNanos), "bplustree-compactor");
+            thread.setDaemon(true);
+            compactor = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Go back to rebalancing on every delete, which is the default. Stops the compactor thread
+     * and compacts the leaves left underfull so far.
+     */
+    public synchronized void rebalanceOnDelete() {
+        stopCompactor();
+        // Deletes in progress may still queue leaves, so wait for them before the last compaction
+        writeGate.close();
+        try {
+            rebalancingDeferred = false;
+        } finally {
+            writeGate.open();
+        }
+        compact();
+    }
+
+    /**
+     * Rebalance the leaves deletes left underfull since {@link #deferRebalancing(long)}. Every
+     * queued leaf borrows keys from a sibling or is merged with one, and the merges propagate
+     * up as they do for an eager delete. Each leaf is fixed under its own latches, with the
+     * latch crabbing of a delete, so writers and readers go on meanwhile.
+     *
+     * @return The number of queued leaves that were still underfull and got rebalanced.
+     */
+    public int compact() {
+        int rebalanced = 0;
+        byte[] key;
+        while ((key = underfullLeaves.poll()) != null) {
+            writeGate.enter();
+            try {
+                if (rebalanceLeaf(key)) {
+                    rebalanced++;
+                }
+            } finally {
+                writeGate.exit();
+            }
+        }
+        if (log != null && rebalanced > 0) {
+            commit();
+        }
+        return rebalanced;
+    }
+
+    /**
+     * Rebalance the leaf that covers a key until it is at least half full or the root. A leaf
+     * that was merged with a sibling as underfull as itself may still be underfull, so every
+     * round descends again.
+     *
+     * @param key An encoded key of the leaf's range.
+     * @return true if the leaf was underfull.
+     */
+    private boolean rebalanceLeaf(byte[] key) {
+        Descent descent = descents.get();
+        boolean rebalanced = false;
+        while (true) {
+            try {
+                BPlusTreeNode leaf = latchLeaf(descent, key, false);
+                if (leaf.keyCount >= minKeys() || leaf.offset == rootOffset) {
+                    return rebalanced;
+                }
+                handleUnderflow(descent, leaf, descent.pathLength - 1);
+                rebalanced = true;
+            } finally {
+                releaseAll(descent);
+            }
+        }
+    }
+
+    /**
+     * The loop of the compactor thread. Like the flusher of the log, it parks rather than
+     * sleeps, and ends once it is no longer the tree's compactor.
+     */
+    private void compactPeriodically(long intervalNanos) {
+        while (true) {
+            LockSupport.parkNanos(this, intervalNanos);
+            if (compactor != Thread.currentThread()) {
+                return;
+            }
+            compact();
+        }
+    }
+
+    /**
+     * Stop the compactor thread, if there is one, and wait for the compaction it is running.
+     */
+    private synchronized void stopCompactor() {
+        Thread thread = compactor;
+        if (thread == null) {
+            return;
+        }
+        compactor = null;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Find a key that divides the tree roughly in half without reading its leaves: the middle
+     * separator of the root, or the middle key of a root that is a leaf.
+     *
+     * @return The encoded key, null if the root is a leaf with fewer than two keys.
+     */
+    byte[] middleKey() {
+        while (true) {
+            int root = rootOffset;
+            int version = BPlusTreeNode.stableVersion(buffer, root);
+            if (BPlusTreeNode.isObsolete(version) || root != rootOffset) {
+                continue;
+            }
+            byte[] key;
+            try {
+                int keyCount = BPlusTreeNode.keyCount(buffer, root);
+                boolean tooFew = BPlusTreeNode.isLeaf(buffer, root) && keyCount < 2;
+                key = tooFew ? null : BPlusTreeNode.keyAt(buffer, root, keyWidth, keyCount / 2);
+            } catch (RuntimeException e) {
+                if (BPlusTreeNode.validate(buffer, root, version)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (BPlusTreeNode.validate(buffer, root, version)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * Count the levels of the tree on the way down to its leftmost leaf.
+     */
+    private int height() {
+        restart:
+        while (true) {
+            int node = rootOffset;
+            int height = 1;
+            while (true) {
+                int version = BPlusTreeNode.stableVersion(buffer, node);
+                if (BPlusTreeNode.isObsolete(version)) {
+                    continue restart;
+                }
+                boolean isLeaf = BPlusTreeNode.isLeaf(buffer, node);
+                int child = isLeaf ? BPlusTreeNode.NIL : BPlusTreeNode.childAt(buffer, node, order, keyWidth, 0);
+                if (!BPlusTreeNode.validate(buffer, node, version)) {
+                    continue restart;
+                }
+                if (isLeaf) {
+                    return height;
+                }
+                node = child;
+                height++;
+            }
+        }
+    }
+
+    /**
+     * Count the nodes and keys of the whole tree into the gauges of the metrics. No writer may run.
+     */
+    private void countNodes(TreeMetrics metrics) {
+        long leafNodes = 0;
+        long internalNodes = 0;
+        long entries = 0;
+        int[] pending = new int[16];
+        int pendingCount = 0;
+        pending[pendingCount++] = rootOffset;
+        while (pendingCount > 0) {
+            int node = pending[--pendingCount];
+            int keyCount = BPlusTreeNode.keyCount(buffer, node);
+            if (BPlusTreeNode.isLeaf(buffer, node)) {
+                leafNodes++;
+                entries += keyCount;
+                continue;
+            }
+            internalNodes++;
+            if (pendingCount + keyCount + 1 > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + keyCount + 1));
+            }
+            for (int i = 0; i <= keyCount; i++) {
+                pending[pendingCount++] = BPlusTreeNode.childAt(buffer, node, order, keyWidth, i);
+            }
+        }
+        metrics.recount(leafNodes, internalNodes, entries);
+    }
+
+    /**
+     * Allocate space for a new node in the buffer, reusing the block of a merged-away node
+     * of the same type when there is one. The node starts out unlatched; it must be written
+     * completely before any other node points to it.
+     *
+     * @param isLeaf Whether the node is a leaf.
+     * @return The position where the node is allocated.
+     */
+    private int allocateNode(boolean isLeaf) {
+        int highWaterMark = allocator.getHighWaterMark();
+        int offset;
+        try {
+            offset = allocator.allocate(isLeaf ? LEAF_CLASS : INTERNAL_CLASS);
+        } catch (IllegalStateException e) {
+            throw new RuntimeException("Buffer capacity exceeded during node allocation", e);
+        }
+        if (offset >= highWaterMark) {
+            // Never handed out before, though a crash may have left anything in it
+            BPlusTreeNode.resetVersion(buffer, offset);
+        } else {
+            BPlusTreeNode.initVersion(buffer, offset);
+        }
+        writeHeader();
+        if (metrics != null) {
+            metrics.nodeAdded(isLeaf);
+        }
+        return offset;
+    }
+
+    /**
+     * Return the block of a node that is no longer part of the tree to the allocator.
+     *
+     * @param offset The offset of the node.
+     * @param isLeaf Whether the node is a leaf.
+     */
+    private void freeNode(int offset, boolean isLeaf) {
+        if (!isLeaf) {
+            routing.invalidate(offset);
+        }
+        allocator.deallocate(offset, isLeaf ? LEAF_CLASS : INTERNAL_CLASS);
+        writeHeader();
+        if (metrics != null) {
+            metrics.nodeRemoved(isLeaf);
+        }
+    }
+
+    /**
+     * Insert multiple key-value pairs into the B+ Tree, replacing the values of keys it already
+     * holds. The pairs are sorted by key first, so a single descent serves every pair that
+     * falls into the same leaf, and the leaf is changed and written once for all of them. A
+     * run of pairs that finds its leaf full splits it once to make room for the whole run.
+     *
+     * @param items A map containing key-value pairs to be inserted.
+     */
+    public void insertMany(Map<? extends K, ? extends V> items) {
+        int count = items.size();
+        byte[] keys = new byte[count * keyWidth];
+        byte[][] values = new byte[count][];
+        int i = 0;
+        for (var item : items.entrySet()) {
+            keyCodec.encode(item.getKey(), keys, i * keyWidth);
+            values[i++] = valueCodec.encode(item.getValue());
+        }
+        int[] sorted = sortedPositions(keys, keyWidth);
+        byte[][] sortedKeys = new byte[count][];
+        byte[][] sortedValues = new byte[count][];
+        for (i = 0; i < count; i++) {
+            sortedKeys[i] = Arrays.copyOfRange(keys, sorted[i] * keyWidth, (sorted[i] + 1) * keyWidth);
+            sortedValues[i] = values[sorted[i]];
+        }
+        byte[] fence = new byte[keyWidth];
+        int next = 0;
+        while (next < count) {
+            writeGate.enter();
+            // A run fills at most one leaf, so it cannot go past the next order - 1 pairs
+            int from = next;
+            int to = Math.min(count, from + order - 1);
+            FrontCache<V> cache = beginWrites(sortedKeys, from, to);
+            try {
+                int inserted = tryInsertRunInLeaf(sortedKeys, sortedValues, from, to, fence);
+                if (inserted == 0) {
+                    inserted = insertRunSplitting(sortedKeys, sortedValues, from, to, fence);
+                }
+                next += inserted;
+            } finally {
+                endWrites(cache, sortedKeys, from, to);
+                writeGate.exit();
+            }
+        }
+        // Every pair is logged by now, so wait for the log once for all of them
+        if (log != null) {
+            commit();
+        }
+        if (metrics != null) {
+            metrics.inserts.add(count);
+        }
+    }
+
+    /**
+     * Sort encoded keys without moving them. Every key is packed with its position into a long
+     * whose high half holds four bytes of the key, those right after the prefix all keys share,
+     * so a primitive sort does the work; only keys that agree on those bytes as well are
+     * compared in full afterwards.
+     *
+     * @param keys The keys one after another, each at its position times the width.
+     * @param width The length of every key.
+     * @return The positions of the keys in ascending key order.
+     */
+    private static int[] sortedPositions(byte[] keys, int width) {
+        int count = keys.length / width;
+        int shared = count == 0 ? 0 : width;
+        for (int i = 1; i < count && shared > 0; i++) {
+            int mismatch = Arrays.mismatch(keys, 0, shared, keys, i * width, i * width + shared);
+            if (mismatch >= 0) {
+                shared = mismatch;
+            }
+        }
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            long prefix = 0;
+            for (int b = shared; b < shared + Integer.BYTES; b++) {
+                prefix = prefix << 8 | (b < width ? keys[i * width + b] & 0xFF : 0);
+            }
+            // Flipping the sign bit makes the signed order of the longs the unsigned order of the prefixes
+            packed[i] = (prefix << 32 | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(packed);
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = (int) packed[i];
+        }
+        if (width > shared + Integer.BYTES) {
+            for (int start = 0, end; start < count; start = end) {
+                end = start + 1;
+                while (end < count && packed[end] >>> 32 == packed[start] >>> 32) {
+                    end++;
+                }
+                if (end - start > 1) {
+                    Integer[] run = new Integer[end - start];
+                    for (int i = start; i < end; i++) {
+                        run[i - start] = positions[i];
+                    }
+                    Arrays.sort(run, (a, b) -> Arrays.compareUnsigned(keys, a * width, (a + 1) * width, keys, b * width, (b + 1) * width));
+                    for (int i = start; i < end; i++) {
+                        positions[i] = run[i - start];
+                    }
+                }
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Bulk load key-value pairs given as parallel arrays sorted by strictly ascending key.
+     *
+     * @param keys The keys, sorted in strictly ascending order.
+     * @param values The value of every key.
+     * @param fillFactor The fraction of every node to fill, between 0 (exclusive) and 1 (inclusive).
+     * @see #bulkLoad(Iterator, double)
+     */
+    public void bulkLoad(K[] keys, V[] values, double fillFactor) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Every key needs exactly one value");
+        }
+        bulkLoad(new BulkSource<>() {
+            private int index = -1;
+
+            @Override
+            public boolean advance() {
+                return ++index < keys.length;
+            }
+
+            @Override
+            public K key() {
+                return keys[index];
+            }
+
+            @Override
+            public V value() {
+                return values[index];
+            }
+        }, fillFactor);
+    }
+
+    /**
+     * Bulk load key-value pairs into an empty tree. Leaves are written left to right, each packed
+     * up to the fill factor, and the internal levels are then built on top of them level by level,
+     * so no node is ever split and every node is written once.
+     * <p>
+     * If the input turns out not to be sorted, or the buffer runs out of space, the tree is reset
+     * to empty before the exception is thrown.
+     *
+     * @param entries The entries, sorted by strictly ascending key.
+     * @param fillFactor The fraction of every node to fill, between 0 (exclusive) and 1 (inclusive).
+     * @throws IllegalStateException If the tree is not empty.
+     * @throws IllegalArgumentException If the keys are not strictly ascending.
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries, double fillFactor) {
+        bulkLoad(new BulkSource<>() {
+            private Map.Entry<K, V> entry;
+
+            @Override
+            public boolean advance() {
+                entry = entries.hasNext() ? entries.next() : null;
+                return entry != null;
+            }
+
+            @Override
+            public K key() {
+                return entry.getKey();
+            }
+
+            @Override
+            public V value() {
+                return entry.getValue();
+            }
+        }, fillFactor);
+    }
+
+    /**
+     * A sorted sequence of entries read one at a time.
+     */
+    private interface BulkSource<K, V> {
+        boolean advance();
+
+        K key();
+
+        V value();
+    }
+
+    private void bulkLoad(BulkSource<K, V> source, double fillFactor) {
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]");
+        }
+        writeGate.close();
+        try {
+            bulkLoadRoot(source, fillFactor);
+        } finally {
+            try {
+                if (metrics != null) {
+                    countNodes(metrics);
+                }
+                routing.clear();
+                if (frontCache != null) {
+                    frontCache.invalidateAll();
+                }
+                if (log != null) {
+                    // The entries are not logged one by one; a checkpoint makes the whole load durable
+                    checkpointLocked();
+                }
+            } finally {
+                writeGate.open();
+            }
+        }
+    }
+
+    private void bulkLoadRoot(BulkSource<K, V> source, double fillFactor) {
+        // The empty root stays latched for the whole load, which keeps every other writer out
+        int emptyRoot = latchRoot();
+        try {
+            if (!BPlusTreeNode.isLeaf(buffer, emptyRoot) || BPlusTreeNode.keyCount(buffer, emptyRoot) != 0) {
+                throw new IllegalStateException("Bulk loading requires an empty tree");
+            }
+            int highWaterMark = allocator.getHighWaterMark();
+            int leafFreeHead = allocator.getFreeHead(LEAF_CLASS);
+            int internalFreeHead = allocator.getFreeHead(INTERNAL_CLASS);
+            int overflowFreeHead = allocator.getFreeHead(OVERFLOW_CLASS);
+            try {
+                bulkLoadLevels(source, fillFactor);
+            } catch (RuntimeException e) {
+                // Forget every node written so far and start over from the empty root
+                allocator.restore(highWaterMark, leafFreeHead, internalFreeHead, overflowFreeHead);
+                BPlusTreeNode root = new BPlusTreeNode(true, emptyRoot, order, keyWidth);
+                serializeNode(root);
+                setRoot(emptyRoot);
+                throw e;
+            }
+        } finally {
+            BPlusTreeNode.unlock(buffer, emptyRoot);
+        }
+    }
+
+    private void bulkLoadLevels(BulkSource<K, V> source, double fillFactor) {
+        int maxKeys = order - 1;
+        int perLeaf = Math.min(maxKeys, Math.max(Math.max(minKeys(), 1), (int) Math.ceil(maxKeys * fillFactor)));
+
+        // Separator before and offset of every node of the level being built; the first node has none
+        byte[][] firstKeys = new byte[16][];
+        int[] offsets = new int[16];
+        int count = 0;
+
+        // The last two leaves stay in memory so the final one can be rebalanced
+        BPlusTreeNode previous = null;
+        BPlusTreeNode current = BPlusTreeNode.deserialize(buffer, rootOffset, order, keyWidth);
+        byte[] lastKey = null;
+        while (source.advance()) {
+            byte[] key = keyCodec.encode(source.key());
+            byte[] value = valueCodec.encode(source.value());
+            if (count > 0 && KEY_ORDER.compare(key, lastKey) <= 0) {
+                throw new IllegalArgumentException("Keys must be strictly ascending, found " + source.key());
+            }
+            lastKey = key;
+            if (current.keyCount == perLeaf) {
+                if (previous != null) {
+                    serializeNode(previous);
+                }
+                previous = current;
+                current = new BPlusTreeNode(true, allocateNode(true), order, keyWidth);
+                current.previous = previous.offset;
+                previous.next = current.offset;
+            }
+            if (current.keyCount == 0) {
+                if (count == firstKeys.length) {
+                    firstKeys = Arrays.copyOf(firstKeys, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                firstKeys[count] = count == 0 ? key : BPlusTreeNode.separator(previous.key(previous.keyCount - 1), key);
+                offsets[count] = current.offset;
+                count++;
+            }
+            current.insertEntry(current.keyCount, key, value);
+        }
+
+        if (previous != null && current.keyCount < minKeys()) {
+            int total = previous.keyCount + current.keyCount;
+            if (total <= maxKeys) {
+                // The last leaf fits into its predecessor
+                current.moveKeys(0, previous, previous.keyCount);
+                previous.next = BPlusTreeNode.NIL;
+                freeNode(current.offset, true);
+                count--;
+                current = null;
+            } else {
+                // Even out the last two leaves
+                int move = total / 2 - current.keyCount;
+                previous.moveKeys(previous.keyCount - move, current, 0);
+                firstKeys[count - 1] = BPlusTreeNode.separator(previous.key(previous.keyCount - 1), current.key(0));
+            }
+        }
+        if (previous != null) {
+            serializeNode(previous);
+        }
+        if (current != null) {
+            serializeNode(current);
+        }
+
+        // Build the internal levels bottom-up until a single node is left. A node takes children
+        // while its keys stay within the fill factor of its page, so keys with a long shared
+        // prefix make wide nodes, but never fewer than a half-full node needs.
+        int budget = (int) (BPlusTreeNode.sizeOf(false, order, keyWidth) * fillFactor);
+        int[] sizes = new int[count];
+        while (count > 1) {
+            int nodes = 0;
+            for (int child = 0; child < count; child += sizes[nodes++]) {
+                int children = 1;
+                while (child + children < count && (children <= minKeys()
+                        || fitsInBulkNode(firstKeys, child, children + 1, budget))) {
+                    children++;
+                }
+                sizes[nodes] = children;
+            }
+            if (nodes > 1 && sizes[nodes - 1] <= minKeys()) {
+                // Never create nodes that start out underfull: take children from the previous
+                // node, or join it when both together are too few to share
+                int total = sizes[nodes - 2] + sizes[nodes - 1];
+                if (total < 2 * (minKeys() + 1)) {
+                    sizes[nodes - 2] = total;
+                    nodes--;
+                } else {
+                    sizes[nodes - 1] = minKeys() + 1;
+                    sizes[nodes - 2] = total - sizes[nodes - 1];
+                }
+            }
+            int child = 0;
+            for (int n = 0; n < nodes; n++) {
+                BPlusTreeNode node = new BPlusTreeNode(false, allocateNode(false), order, keyWidth);
+                byte[] firstKey = firstKeys[child];
+                node.insertChild(0, offsets[child++]);
+                for (int c = 1; c < sizes[n]; c++) {
+                    node.insertKey(node.keyCount, firstKeys[child]);
+                    node.insertChild(node.childCount, offsets[child++]);
+                }
+                serializeNode(node);
+                // Nodes of the new level overwrite the entries of the level below, which are consumed
+                firstKeys[n] = firstKey;
+                offsets[n] = node.offset;
+            }
+            count = nodes;
+        }
+        if (count == 1) {
+            setRoot(offsets[0]);
+        }
+    }
+
+    /**
+     * Check whether the children of a level, from one on, fit into one internal node of a bulk
+     * load that fills its page up to a budget, the way {@link BPlusTreeNode#fits()} counts.
+     *
+     * @param firstKeys The separator before every child of the level.
+     * @param from The first child of the node.
+     * @param children The number of children of the node.
+     * @param budget The number of bytes of the page the node may fill, header included.
+     */
+    private boolean fitsInBulkNode(byte[][] firstKeys, int from, int children, int budget) {
+        int keys = children - 1;
+        int prefixLength = Arrays.mismatch(firstKeys[from + 1], firstKeys[from + keys]);
+        if (prefixLength < 0) {
+            prefixLength = keyWidth;
+        }
+        int size = BPlusTreeNode.HEADER_SIZE + children * BPlusTreeNode.OFFSET_SIZE + prefixLength + keys * (keyWidth - prefixLength);
+        return size <= budget;
+    }
+
+    /**
+     * @return true if the tree holds no keys.
+     */
+    public boolean isEmpty() {
+        while (true) {
+            int root = rootOffset;
+            int version = BPlusTreeNode.stableVersion(buffer, root);
+            if (BPlusTreeNode.isObsolete(version) || root != rootOffset) {
+                continue;
+            }
+            boolean isLeaf = BPlusTreeNode.isLeaf(buffer, root);
+            boolean empty = isLeaf && BPlusTreeNode.keyCount(buffer, root) == 0;
+            if (BPlusTreeNode.validate(buffer, root, version)) {
+                // Deferred deletes may have emptied every leaf below an internal root
+                return isLeaf ? empty : !cursor(minKey, maxKey, false).next();
+            }
+        }
+    }
+
+    /**
+     * Insert a key-value pair into the B+ Tree.
+     * <p>
+     * The common case, where the leaf has room, latches only the leaf. Otherwise the insert
+     * descends again with latch crabbing: every node on the way down is latched, and the
+     * latches above a node are released as soon as that node has room for one more key.
+     *
+     * @param key The key to insert.
+     * @param value The value associated with the key.
+     */
+    public void insert(K key, V value) {
+        TreeMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        byte[] encodedKey = keyCodec.encode(key);
+        byte[] encodedValue = valueCodec.encode(value);
+        writeGate.enter();
+        FrontCache<V> cache = frontCache;
+        if (cache != null) {
+            cache.beginWrite(encodedKey);
+        }
+        try {
+            insert(encodedKey, encodedValue);
+        } finally {
+            if (cache != null) {
+                cache.endWrite(encodedKey);
+            }
+            writeGate.exit();
+        }
+        if (log != null) {
+            commit();
+        }
+        if (metrics != null) {
+            metrics.inserted(System.nanoTime() - start);
+        }
+    }
+
+    private void insert(byte[] key, byte[] value) {
+        if (tryInsertInLeaf(key, value)) {
+            return;
+        }
+        Descent descent = descents.get();
+        try {
+            BPlusTreeNode leaf = latchLeaf(descent, key, true);
+            logInsert(key, value);
+            int index = leaf.indexOf(key);
+            if (index >= 0) {
+                // Update the value if key already exists
+                leaf.setValue(index, value);
+                serializeNode(leaf);
+            } else if (leaf.keyCount < order - 1) {
+                // Insert the key-value pair into the leaf node
+                insertInLeaf(leaf, key, value);
+            } else {
+                // Split the leaf node if it is full
+                splitLeaf(descent, leaf, key, value);
+            }
+        } finally {
+            releaseAll(descent);
+        }
+    }
+
+    /**
+     * Insert a key-value pair if that does not split the leaf, latching nothing but the leaf.
+     *
+     * @return true if the pair was inserted, false if the leaf is full.
+     */
+    private boolean tryInsertInLeaf(byte[] key, byte[] value) {
+        while (true) {
+            long leafVersion = findLeafOptimistic(key);
+            int offset = (int) leafVersion;
+            int version = (int) (leafVersion >>> 32);
+            if (!BPlusTreeNode.tryUpgrade(buffer, offset, version)) {
+                continue;
+            }
+            BPlusTreeNode leaf = readLatched(offset, version);
+            int index = leaf.indexOf(key);
+            if (index < 0 && leaf.keyCount >= order - 1) {
+                BPlusTreeNode.unlockUnchanged(buffer, offset, version);
+                return false;
+            }
+            logInsert(key, value);
+            if (index >= 0) {
+                leaf.setValue(index, value);
+                serializeNode(leaf);
+            } else {
+                insertInLeaf(leaf, key, value);
+            }
+            BPlusTreeNode.unlock(buffer, offset);
+            return true;
+        }
+    }
+
+    /**
+     * Insert a run of pairs sorted by key into the leaf of the first one, latching nothing but
+     * the leaf. The following pairs go into the same leaf as long as their keys are below its
+     * fence and it has room, and the leaf is written once at the end.
+     *
+     * @param keys The encoded keys, sorted in ascending order.
+     * @param values The encoded value of every key.
+     * @param from The position of the first pair of the run.
+     * @param to The position after the last pair the run may take.
+     * @param fence Scratch space for the fence of the leaf.
+     * @return The number of pairs inserted, 0 if the leaf is too full for the first one.
+     */
+    private int tryInsertRunInLeaf(byte[][] keys, byte[][] values, int from, int to, byte[] fence) {
+        while (true) {
+            long leafVersion = findLeafOptimistic(keys[from], fence);
+            int offset = (int) leafVersion;
+            int version = (int) (leafVersion >>> 32);
+            if (!BPlusTreeNode.tryUpgrade(buffer, offset, version)) {
+                continue;
+            }
+            BPlusTreeNode leaf = readLatched(offset, version);
+            int end = runEnd(keys, from, to, fence);
+            int inserted = addRunToLeaf(leaf, keys, values, from, end) - from;
+            if (inserted == 0) {
+                BPlusTreeNode.unlockUnchanged(buffer, offset, version);
+                return 0;
+            }
+            serializeNode(leaf);
+            BPlusTreeNode.unlock(buffer, offset);
+            return inserted;
+        }
+    }
+
+    /**
+     * Insert a run of pairs sorted by key whose leaf is too full for it, splitting the leaf
+     * once for the whole run instead of once for every pair that finds it full. The leaf is
+     * latched with latch crabbing. The split goes right before the run, as far as the fill of
+     * both halves allows, so the left half keeps the keys below the run and the run goes on in
+     * the right half. A run of at most {@code order - 1} pairs always fits the two halves.
+     *
+     * @param keys The encoded keys, sorted in ascending order.
+     * @param values The encoded value of every key.
+     * @param from The position of the first pair of the run.
+     * @param to The position after the last pair the run may take.
+     * @param fence Scratch space for the fence of the leaf.
+     * @return The number of pairs inserted, at least 1.
+     */
+    private int insertRunSplitting(byte[][] keys, byte[][] values, int from, int to, byte[] fence) {
+        Descent descent = descents.get();
+        try {
+            BPlusTreeNode leaf = latchLeaf(descent, keys[from], true, fence);
+            int end = runEnd(keys, from, to, fence);
+            int total = leaf.keyCount;
+            for (int i = from; i < end; i++) {
+                if (leaf.indexOf(keys[i]) < 0) {
+                    total++;
+                }
+            }
+            if (total <= order - 1 || (descent.pathLength == 0 && leaf.offset != rootOffset)) {
+                // The leaf got room since it was found full; unless the whole run fits, the
+                // parent was left unlatched, so take what fits and leave the rest to the caller
+                int inserted = addRunToLeaf(leaf, keys, values, from, end) - from;
+                serializeNode(leaf);
+                return inserted;
+            }
+            BPlusTreeNode newLeaf = new BPlusTreeNode(true, allocateNode(true), order, keyWidth);
+            int index = leaf.indexOf(keys[from]);
+            int keysBelowRun = index >= 0 ? index : -(index + 1);
+            // Both halves must hold at least the minimum and at most order - 1 keys
+            int fewestLeft = Math.max(minKeys(), total - (order - 1));
+            int mostLeft = Math.min(order - 1, total - minKeys());
+            int leftCount = Math.min(Math.max(keysBelowRun, fewestLeft), mostLeft);
+
+            // Walk the keys of the leaf and the run in merged order to the split point
+            int kept = 0;
+            int split = from;
+            for (int merged = 0; merged < leftCount; merged++) {
+                int comparison = split == end ? 1 : kept == leaf.keyCount ? -1
+                        : Arrays.compareUnsigned(keys[split], 0, keyWidth, leaf.keys, kept * keyWidth, (kept + 1) * keyWidth);
+                if (comparison <= 0) {
+                    split++;
+                }
+                if (comparison >= 0) {
+                    kept++;
+                }
+            }
+            leaf.moveKeys(kept, newLeaf, 0);
+            BPlusTreeNode.moveOverflowValues(leaf, newLeaf);
+            addRunToLeaf(leaf, keys, values, from, split);
+            addRunToLeaf(newLeaf, keys, values, split, end);
+            linkSplitLeaf(descent, leaf, newLeaf);
+            return end - from;
+        } finally {
+            releaseAll(descent);
+        }
+    }
+
+    /**
+     * @return The position after the last pair of a run that belongs to the leaf of its first
+     *         pair, which is the last one below the fence of the leaf.
+     */
+    private static int runEnd(byte[][] keys, int from, int to, byte[] fence) {
+        int end = from + 1;
+        while (end < to && KEY_ORDER.compare(keys[end], fence) < 0) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Insert the pairs of a run into a leaf in memory, up to the first new key that finds the
+     * leaf full. The caller writes the leaf.
+     *
+     * @return The position after the last pair inserted.
+     */
+    private int addRunToLeaf(BPlusTreeNode leaf, byte[][] keys, byte[][] values, int from, int end) {
+        int next = from;
+        while (next < end) {
+            int index = leaf.indexOf(keys[next]);
+            if (index < 0 && leaf.keyCount >= order - 1) {
+                break;
+            }
+            logInsert(keys[next], values[next]);
+            if (index >= 0) {
+                leaf.setValue(index, values[next]);
+            } else {
+                leaf.insertEntry(-(index + 1), keys[next], values[next]);
+                if (metrics != null) {
+                    metrics.entries.increment();
+                }
+            }
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * Descend optimistically to the leaf where a key should be located, without latching
+     * anything. Every step re-validates the parent after reading the child pointer, and the
+     * descent restarts from the root whenever a node changed underneath it.
+     *
+     * @param key The encoded key to find.
+     * @return The offset of the leaf in the low 32 bits and the version it was read at in the high 32 bits.
+     */
+    long findLeafOptimistic(byte[] key) {
+        return findLeafOptimistic(key, null);
+    }
+
+    /**
+     * Descend optimistically to the leaf where a key should be located, and also find the fence
+     * of the leaf: the smallest separator above the key on the way down. Every key below the
+     * fence belongs to the same leaf for as long as the leaf keeps its version.
+     *
+     * @param key The encoded key to find.
+     * @param fence Receives the fence, or the largest key if the leaf is the last one. May be null.
+     * @return The offset of the leaf in the low 32 bits and the version it was read at in the high 32 bits.
+     */
+    private long findLeafOptimistic(byte[] key, byte[] fence) {
+        restart:
+        while (true) {
+            int node = rootOffset;
+            int version = BPlusTreeNode.stableVersion(buffer, node);
+            if (BPlusTreeNode.isObsolete(version) || node != rootOffset) {
+                continue;
+            }
+            if (fence != null) {
+                System.arraycopy(maxKey, 0, fence, 0, keyWidth);
+            }
+            try {
+                for (int depth = 0; !BPlusTreeNode.isLeaf(buffer, node); depth++) {
+                    int index;
+                    int child;
+                    RoutingCache.Node decoded = routing.get(buffer, node, order, keyWidth, version, depth);
+                    if (decoded != null) {
+                        // The decoded node is the node at this version, so only the child pointer needs validating
+                        index = decoded.childIndex(key);
+                        child = decoded.child(index);
+                        if (fence != null && index < decoded.keyCount()) {
+                            // The ranges of nodes nest, so a deeper separator is always the tighter one
+                            decoded.copyKey(index, fence);
+                        }
+                    } else {
+                        index = BPlusTreeNode.childIndex(buffer, node, keyWidth, key);
+                        child = BPlusTreeNode.childAt(buffer, node, order, keyWidth, index);
+                        if (fence != null && index < BPlusTreeNode.keyCount(buffer, node)) {
+                            BPlusTreeNode.copyKey(buffer, node, keyWidth, index, fence);
+                        }
+                        if (!BPlusTreeNode.validate(buffer, node, version)) {
+                            continue restart;
+                        }
+                    }
+                    int childVersion = BPlusTreeNode.stableVersion(buffer, child);
+                    if (BPlusTreeNode.isObsolete(childVersion) || !BPlusTreeNode.validate(buffer, node, version)) {
+                        continue restart;
+                    }
+                    node = child;
+                    version = childVersion;
+                }
+            } catch (RuntimeException e) {
+                // A torn read of a node that is being changed, unless the node is still intact
+                if (BPlusTreeNode.validate(buffer, node, version)) {
+                    throw e;
+                }
+                continue;
+            }
+            return ((long) version << 32) | (node & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Descend to the leaf where a key should be located with latch crabbing. The root and
+     * every child are latched in turn; whenever a child is safe, meaning the pending insert or
+     * delete cannot propagate above it, the latches of all its ancestors are released. The
+     * internal nodes that stay latched are recorded on the descent path.
+     *
+     * @param descent The state of the operation.
+     * @param key The encoded key to find.
+     * @param forInsert Whether the operation is an insert (or else a delete).
+     * @return The latched leaf node that may contain the key.
      */
-    public BPlusTree() {
-        this(DEFAULT_MB, DEFAULT_ORDER);
+    private BPlusTreeNode latchLeaf(Descent descent, byte[] key, boolean forInsert) {
+        return latchLeaf(descent, key, forInsert, null);
     }
 
     /**
-     * Constructor to initialize the B+ Tree with specified memory size and order.
+     * Descend with latch crabbing like {@link #latchLeaf(Descent, byte[], boolean)}, and also
+     * find the fence of the leaf, which holds for as long as the leaf stays latched.
      *
-     * @param MB The memory size in megabytes.
-     * @param order The order of the B+ Tree.
+     * @param fence Receives the fence, or the largest key if the leaf is the last one. May be null.
      */
-    public BPlusTree(int MB, int order) {
-        if (MB < 1) {
-            throw new IllegalArgumentException("Memory must be 1 MB or more");
+    private BPlusTreeNode latchLeaf(Descent descent, byte[] key, boolean forInsert, byte[] fence) {
+        int node = latchRoot();
+        if (fence != null) {
+            System.arraycopy(maxKey, 0, fence, 0, keyWidth);
         }
-        if (order < 3) {
-            throw new IllegalArgumentException("Order must be 3 or more");
+        while (!BPlusTreeNode.isLeaf(buffer, node)) {
+            int index = BPlusTreeNode.childIndex(buffer, node, keyWidth, key);
+            int child = BPlusTreeNode.childAt(buffer, node, order, keyWidth, index);
+            if (fence != null && index < BPlusTreeNode.keyCount(buffer, node)) {
+                BPlusTreeNode.copyKey(buffer, node, keyWidth, index, fence);
+            }
+            descent.pushPath(node, index);
+            BPlusTreeNode.lock(buffer, child);
+            if (isSafe(child, forInsert, key)) {
+                releaseAncestors(descent);
+            }
+            node = child;
         }
-        // Allocate buffer with the given memory size and set byte order
-        this.buffer = ByteBuffer.allocate((1024 * 1024) * MB);
-        this.buffer.order(ByteOrder.BIG_ENDIAN);
-        this.order = order;
-        // Initialize the root as a leaf node and serialize it
-        this.root = new BPlusTreeNode(true, allocateNode(true),order);
-        serializeNode(root);
+        descent.latch(node);
+        return readNode(node);
     }
 
     /**
-     * Allocate space for a new node in the buffer.
+     * Latch the current root, retrying if the root changes while waiting for its latch.
      *
-     * @return The position where the node is allocated.
+     * @return The offset of the latched root.
      */
-    private int allocateNode(boolean isLeaf) {
-        // Calculate the size of a node based on the order
-        int maxKeys = order - 1; // Maximum number of keys in the node
-        int keySize = 4; // Size of each key (assuming integer keys)
-        int offsetSize = 4; // Size of each offset (assuming integer offsets)
-        int valueSize = 15; // Maximum size of each value (adjust as needed)
-
-        int nodeSize;
-        if (isLeaf) {
-            // Size calculation for leaf nodes
-            nodeSize = (maxKeys * keySize) + (maxKeys * valueSize);
-        } else {
-            // Size calculation for internal nodes
-            nodeSize = (maxKeys * keySize) + ((order * offsetSize) + (offsetSize * (maxKeys + 1)));
+    private int latchRoot() {
+        while (true) {
+            int root = rootOffset;
+            int version = BPlusTreeNode.lock(buffer, root);
+            if (root == rootOffset) {
+                return root;
+            }
+            BPlusTreeNode.unlockUnchanged(buffer, root, version);
         }
+    }
 
-        // Allocate space for the node
-        BPlusTreeNode node = BPlusTreeNode.deserialize(buffer,root!=null?lastAllocatedEndOffset:0,order);
-        int position = node.getEndOffset();
-        if (position + nodeSize > buffer.capacity()) {
-            throw new RuntimeException("Buffer capacity exceeded during node allocation");
+    /**
+     * Check whether an insert or delete below a node can change the node's parent.
+     *
+     * @param key The encoded key the operation descends for.
+     */
+    private boolean isSafe(int node, boolean forInsert, byte[] key) {
+        int keyCount = BPlusTreeNode.keyCount(buffer, node);
+        if (!forInsert) {
+            return keyCount > minKeys();
         }
-        buffer.position(position + nodeSize); // Allocate space for the node
-        lastAllocatedEndOffset = buffer.position();
-        return node.offset;
+        return BPlusTreeNode.isLeaf(buffer, node) ? keyCount < order - 1 : BPlusTreeNode.hasRoomFor(buffer, node, order, keyWidth, key);
     }
 
     /**
-     * Insert multiple key-value pairs into the B+ Tree.
-     *
-     * @param items A map containing key-value pairs to be inserted.
+     * Release the latches of the internal nodes on the descent path.
      */
-    public void insertMany(HashMap<Integer, String> items) {
-        for (var item : items.entrySet()) {
-            insert(item.getKey(), item.getValue());
+    private void releaseAncestors(Descent descent) {
+        for (int i = 0; i < descent.pathLength; i++) {
+            release(descent, descent.pathOffsets[i]);
         }
+        descent.pathLength = 0;
     }
 
     /**
-     * Insert a key-value pair into the B+ Tree.
-     *
-     * @param key The key to insert.
-     * @param value The value associated with the key.
+     * Release every latch of an operation, then hand the blocks of removed nodes back to the
+     * allocator. Blocks are only freed once their latch is gone, so a reused block never
+     * carries a latch of its previous life.
      */
-    public void insert(int key, String value) {
-        BPlusTreeNode leaf = findLeaf(root, key);
-        int index = leaf.keys.indexOf(key);
-        if (index != -1) {
-            // Update the value if key already exists
-            leaf.values.set(index, value);
-            serializeNode(leaf);
-        } else if (leaf.keys.size() < order - 1) {
-            // Insert the key-value pair into the leaf node
-            insertInLeaf(leaf, key, value);
+    private void releaseAll(Descent descent) {
+        releaseAncestors(descent);
+        releaseLatched(descent);
+        for (int i = 0; i < descent.freedCount; i++) {
+            freeNode(descent.freed[i], descent.freedLeaves[i]);
+        }
+        descent.freedCount = 0;
+    }
+
+    /**
+     * Release the latches of the leaves and siblings of an operation, keeping the descent path.
+     */
+    private void releaseLatched(Descent descent) {
+        for (int i = 0; i < descent.latchedCount; i++) {
+            release(descent, descent.latched[i]);
+        }
+        descent.latchedCount = 0;
+    }
+
+    private void release(Descent descent, int offset) {
+        if (descent.isFreed(offset)) {
+            BPlusTreeNode.unlockObsolete(buffer, offset);
         } else {
-            // Split the leaf node if it is full
-            splitLeaf(leaf, key, value);
+            BPlusTreeNode.unlock(buffer, offset);
         }
     }
 
     /**
-     * Find the leaf node where a key should be located.
-     *
-     * @param node The current node.
-     * @param key The key to find.
-     * @return The leaf node containing the key.
+     * Update the previous-leaf link of a leaf that is not otherwise part of the operation.
+     * Leaves are only ever latched this way from their left neighbour, which keeps the
+     * latch order acyclic.
+     */
+    private void relinkPrevious(int leaf, int previous) {
+        BPlusTreeNode.lock(buffer, leaf);
+        touch(leaf, true);
+        BPlusTreeNode.setPreviousLeaf(buffer, leaf, order, keyWidth, previous);
+        BPlusTreeNode.unlock(buffer, leaf);
+    }
+
+    /**
+     * The per-operation state of a writer: the latched internal nodes on the way down from
+     * the highest node the operation may change, the other latched nodes, and the removed
+     * nodes to free once every latch is released. Each thread reuses its own instance.
      */
-    private BPlusTreeNode findLeaf(BPlusTreeNode node, int key) {
-        while (!node.isLeaf) {
-            int i = 0;
-            while (i < node.keys.size() && key >= node.keys.get(i)) {
-                i++;
+    private static final class Descent {
+        private int[] pathOffsets = new int[8]; // Latched internal nodes, top first
+        private int[] pathIndexes = new int[8]; // Child index followed at each of those nodes
+        private int pathLength;
+        private int[] latched = new int[8]; // Latched leaves and siblings
+        private int latchedCount;
+        private int[] freed = new int[4]; // Latched nodes that were removed from the tree
+        private boolean[] freedLeaves = new boolean[4];
+        private int freedCount;
+
+        /**
+         * Record a latched internal node on the descent path.
+         *
+         * @param offset The offset of the internal node.
+         * @param childIndex The index of the child that was followed.
+         */
+        void pushPath(int offset, int childIndex) {
+            if (pathLength == pathOffsets.length) {
+                pathOffsets = Arrays.copyOf(pathOffsets, pathLength * 2);
+                pathIndexes = Arrays.copyOf(pathIndexes, pathLength * 2);
+            }
+            pathOffsets[pathLength] = offset;
+            pathIndexes[pathLength] = childIndex;
+            pathLength++;
+        }
+
+        void latch(int offset) {
+            if (latchedCount == latched.length) {
+                latched = Arrays.copyOf(latched, latchedCount * 2);
+            }
+            latched[latchedCount++] = offset;
+        }
+
+        void free(int offset, boolean isLeaf) {
+            if (freedCount == freed.length) {
+                freed = Arrays.copyOf(freed, freedCount * 2);
+                freedLeaves = Arrays.copyOf(freedLeaves, freedCount * 2);
+            }
+            freed[freedCount] = offset;
+            freedLeaves[freedCount] = isLeaf;
+            freedCount++;
+        }
+
+        boolean isFreed(int offset) {
+            for (int i = 0; i < freedCount; i++) {
+                if (freed[i] == offset) {
+                    return true;
+                }
             }
-            int childOffset = node.childrenOffsets.get(i);
-            node = BPlusTreeNode.deserialize(buffer, childOffset,order);
+            return false;
         }
-        return node;
     }
 
     /**
      * Insert a key-value pair into a leaf node.
      *
      * @param leaf The leaf node.
-     * @param key The key to insert.
-     * @param value The value associated with the key.
+     * @param key The encoded key to insert, it must not be in the leaf yet.
+     * @param value The encoded value associated with the key.
      */
-    private void insertInLeaf(BPlusTreeNode leaf, int key, String value) {
-        int index = 0;
-        while (index < leaf.keys.size() && key > leaf.keys.get(index)) {
-            index++;
-        }
-        leaf.keys.add(index, key);
-        leaf.values.add(index, value);
+    private void insertInLeaf(BPlusTreeNode leaf, byte[] key, byte[] value) {
+        leaf.insertEntry(-(leaf.indexOf(key) + 1), key, value);
         serializeNode(leaf);
+        if (metrics != null) {
+            metrics.entries.increment();
+        }
     }
 
     /**
      * Split a leaf node and distribute its keys and values between the original and new leaf nodes.
      *
+     * @param descent The state of the operation.
      * @param leaf The leaf node to split.
-     * @param key The key to insert into the leaf.
-     * @param value The value associated with the key.
+     * @param key The encoded key to insert into the leaf.
+     * @param value The encoded value associated with the key.
      */
-    private void splitLeaf(BPlusTreeNode leaf, int key, String value) {
+    private void splitLeaf(Descent descent, BPlusTreeNode leaf, byte[] key, byte[] value) {
         int t = (order - 1) / 2; // Number of keys in each split node
-        BPlusTreeNode newLeaf = new BPlusTreeNode(true, allocateNode(true),order);
-
-        // Prepare lists to redistribute keys and values
-        List<Integer> allKeys = new ArrayList<>(leaf.keys);
-        List<String> allValues = new ArrayList<>(leaf.values);
-        int insertIndex = 0;
-        while (insertIndex < allKeys.size() && key > allKeys.get(insertIndex)) {
-            insertIndex++;
-        }
-        allKeys.add(insertIndex, key);
-        allValues.add(insertIndex, value);
-
-        // Split the keys and values between the old and new leaf nodes
-        newLeaf.keys.addAll(allKeys.subList(t + 1, allKeys.size()));
-        newLeaf.values.addAll(allValues.subList(t + 1, allValues.size()));
-        leaf.keys = new ArrayList<>(allKeys.subList(0, t + 1));
-        leaf.values = new ArrayList<>(allValues.subList(0, t + 1));
-
-        // Update the root if necessary
-        if (leaf == root) {
-            BPlusTreeNode newRoot = new BPlusTreeNode(false, allocateNode(false),order);
-            newRoot.keys.add(newLeaf.keys.get(0));
-            newRoot.childrenOffsets.add(leaf.offset);
-            newRoot.childrenOffsets.add(newLeaf.offset);
-            root = newRoot;
-            serializeNode(newRoot);
-        } else {
-            BPlusTreeNode parent = findParent(root, leaf);
-            int index = parent.childrenOffsets.indexOf(leaf.offset);
-            parent.keys.add(index, newLeaf.keys.get(0));
-            parent.childrenOffsets.add(index + 1, newLeaf.offset);
+        BPlusTreeNode newLeaf = new BPlusTreeNode(true, allocateNode(true),order, keyWidth);
 
-            if (parent.keys.size() > order - 1) {
-                splitInternalNode(parent);
-            } else {
-                serializeNode(parent);
-            }
+        // The leaf has room for one entry more than its page, so insert first and split after
+        leaf.insertEntry(-(leaf.indexOf(key) + 1), key, value);
+        leaf.moveKeys(t + 1, newLeaf, 0);
+        BPlusTreeNode.moveOverflowValues(leaf, newLeaf);
+        if (metrics != null) {
+            metrics.entries.increment();
         }
-        serializeNode(leaf);
+        linkSplitLeaf(descent, leaf, newLeaf);
+    }
+
+    /**
+     * Write the two halves of a split leaf, link the new right half in after the old leaf and
+     * insert their separator into the parent.
+     *
+     * @param descent The state of the operation.
+     * @param leaf The leaf that was split, holding the lower keys.
+     * @param newLeaf The new leaf holding the upper keys.
+     */
+    private void linkSplitLeaf(Descent descent, BPlusTreeNode leaf, BPlusTreeNode newLeaf) {
+        // Link the new leaf in between the old leaf and its successor. The new leaf is only
+        // reachable through latched nodes until the operation ends, so it needs no latch itself.
+        newLeaf.previous = leaf.offset;
+        newLeaf.next = leaf.next;
         serializeNode(newLeaf);
+        if (leaf.next != BPlusTreeNode.NIL) {
+            relinkPrevious(leaf.next, newLeaf.offset);
+        }
+        leaf.next = newLeaf.offset;
+
+        serializeNode(leaf);
+        if (metrics != null) {
+            metrics.leafSplits.increment();
+        }
+        // The shortest separator leaves the most trailing zeros for the parent to drop
+        byte[] separator = BPlusTreeNode.separator(leaf.key(leaf.keyCount - 1), newLeaf.key(0));
+        insertInParent(descent, descent.pathLength - 1, leaf, separator, newLeaf);
     }
 
     /**
      * Split an internal node and distribute its keys and children between the original and new internal nodes.
      *
+     * @param descent The state of the operation.
      * @param node The internal node to split.
+     * @param level The position of the node on the descent path.
      */
-    private void splitInternalNode(BPlusTreeNode node) {
-        int t = (order - 1) / 2; // Number of keys in each split node
-        BPlusTreeNode newInternal = new BPlusTreeNode(false, allocateNode(false),order);
+    private void splitInternalNode(Descent descent, BPlusTreeNode node, int level) {
+        BPlusTreeNode newInternal = new BPlusTreeNode(false, allocateNode(false),order, keyWidth);
 
-        // Calculate the middle index
-        int mid = t;
+        // The middle key moves up to the parent, it is kept in neither half
+        int mid = node.splitIndex();
+        byte[] separator = node.key(mid);
 
         // Move the keys and children to the new node
-        newInternal.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
-        newInternal.childrenOffsets.addAll(node.childrenOffsets.subList(mid + 1, node.childrenOffsets.size()));
-
-        // Adjust the current node
-        node.keys = new ArrayList<>(node.keys.subList(0, mid + 1));
-        node.childrenOffsets = new ArrayList<>(node.childrenOffsets.subList(0, mid + 1));
-
-        if (node == root) {
-            // Create a new root
-            BPlusTreeNode newRoot = new BPlusTreeNode(false, allocateNode(false),order);
-            newRoot.keys.add(node.keys.get(mid));
-            newRoot.childrenOffsets.add(node.offset);
-            newRoot.childrenOffsets.add(newInternal.offset);
-            root = newRoot;
+        node.moveKeys(mid + 1, newInternal, 0);
+        node.moveChildren(mid + 1, newInternal, 0);
+        node.removeKey(mid);
+
+        serializeNode(newInternal);
+        serializeNode(node);
+        if (metrics != null) {
+            metrics.internalSplits.increment();
+        }
+        insertInParent(descent, level - 1, node, separator, newInternal);
+    }
+
+    /**
+     * Link a newly split node into the parent found on the descent path, splitting the
+     * parent in turn when it overflows.
+     *
+     * @param descent The state of the operation.
+     * @param level The position of the parent on the descent path, or -1 if the split node is the root.
+     * @param left The node that was split.
+     * @param separator The smallest key reachable through the right node.
+     * @param right The node created by the split.
+     */
+    private void insertInParent(Descent descent, int level, BPlusTreeNode left, byte[] separator, BPlusTreeNode right) {
+        if (level < 0) {
+            if (left.offset != rootOffset) {
+                throw new IllegalStateException("Split reached a node whose parent is not latched");
+            }
+            // The root was split: grow the tree by one level
+            BPlusTreeNode newRoot = new BPlusTreeNode(false, allocateNode(false),order, keyWidth);
+            newRoot.insertKey(0, separator);
+            newRoot.insertChild(0, left.offset);
+            newRoot.insertChild(1, right.offset);
             serializeNode(newRoot);
+            setRoot(newRoot.offset);
+            return;
+        }
+        BPlusTreeNode parent = readNode(descent.pathOffsets[level]);
+        int index = descent.pathIndexes[level];
+        parent.insertKey(index, separator);
+        parent.insertChild(index + 1, right.offset);
+
+        if (!parent.fits()) {
+            splitInternalNode(descent, parent, level);
         } else {
-            BPlusTreeNode parent = findParent(root, node);
-            int index = parent.childrenOffsets.indexOf(node.offset);
-            parent.keys.add(index, node.keys.get(mid));
-            parent.childrenOffsets.add(index + 1, newInternal.offset);
+            serializeNode(parent);
+        }
+    }
 
-            if (parent.keys.size() > order - 1) {
-                splitInternalNode(parent);
-            } else {
-                serializeNode(parent);
+    /**
+     * Search for a key in the B+ Tree and return its associated value. Searches take no
+     * latches and never block writers; they retry when a node changes while it is read. With a
+     * front cache, a hit does not touch the tree at all, see {@link #enableFrontCache(int)}.
+     *
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    public V search(K key) {
+        byte[] encoded = searchKeys.get();
+        TreeMetrics metrics = this.metrics;
+        if (metrics == null) {
+            keyCodec.encode(key, encoded, 0);
+            return searchCached(encoded);
+        }
+        long start = System.nanoTime();
+        keyCodec.encode(key, encoded, 0);
+        V value = searchCached(encoded);
+        metrics.searched(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Search for an encoded key in the front cache, and in the tree if there is no cache or it
+     * misses. The key may be a reused array, the cache copies it if it keeps it.
+     */
+    private V searchCached(byte[] key) {
+        FrontCache<V> cache = frontCache;
+        return cache == null ? searchEncoded(key) : cache.get(key);
+    }
+
+    /**
+     * Search for an encoded key, see {@link #search(Object)}.
+     */
+    V searchEncoded(byte[] key) {
+        while (true) {
+            long leafVersion = findLeafOptimistic(key);
+            int leaf = (int) leafVersion;
+            int version = (int) (leafVersion >>> 32);
+            V value;
+            try {
+                int index = BPlusTreeNode.indexOf(buffer, leaf, keyWidth, key);
+                value = index >= 0 ? BPlusTreeNode.valueAt(buffer, leaf, order, keyWidth, index, valueCodec) : null;
+            } catch (RuntimeException e) {
+                if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                return value;
             }
         }
-        serializeNode(node);
-        serializeNode(newInternal);
     }
 
     /**
-     * Find the parent of a given child node.
+     * Search for many keys at once. The keys are sorted first, so a single descent serves every
+     * key that falls into the same leaf instead of one descent per key.
      *
-     * @param node The current node.
-     * @param child The child node.
-     * @return The parent node, or null if not found.
+     * @param keys The keys to search for, in any order.
+     * @return The value of every key in the order of the keys, null for the keys that are not found.
      */
-    private BPlusTreeNode findParent(BPlusTreeNode node, BPlusTreeNode child) {
-        if (!node.isLeaf && node.childrenOffsets.contains(child.offset)) {
-            return node;
+    public List<V> searchMany(List<? extends K> keys) {
+        int count = keys.size();
+        // One array for every key, each reached at its position times the key width
+        byte[] encoded = new byte[count * keyWidth];
+        for (int i = 0; i < count; i++) {
+            keyCodec.encode(keys.get(i), encoded, i * keyWidth);
         }
-        for (Integer offset : node.childrenOffsets) {
-            BPlusTreeNode n = BPlusTreeNode.deserialize(buffer, offset,order);
-            BPlusTreeNode foundNode = findParent(n, child);
-            if (foundNode != null) {
-                return foundNode;
+        int[] sorted = sortedPositions(encoded, keyWidth);
+        List<V> values = new ArrayList<>(Collections.nCopies(count, null));
+        byte[] key = new byte[keyWidth];
+        byte[] fence = new byte[keyWidth];
+        int next = 0;
+        while (next < count) {
+            System.arraycopy(encoded, sorted[next] * keyWidth, key, 0, keyWidth);
+            long leafVersion = findLeafOptimistic(key, fence);
+            int leaf = (int) leafVersion;
+            int version = (int) (leafVersion >>> 32);
+            int done = next;
+            try {
+                while (done < count && (done == next
+                        || Arrays.compareUnsigned(encoded, sorted[done] * keyWidth, (sorted[done] + 1) * keyWidth, fence, 0, keyWidth) < 0)) {
+                    System.arraycopy(encoded, sorted[done] * keyWidth, key, 0, keyWidth);
+                    int index = BPlusTreeNode.indexOf(buffer, leaf, keyWidth, key);
+                    values.set(sorted[done], index >= 0 ? BPlusTreeNode.valueAt(buffer, leaf, order, keyWidth, index, valueCodec) : null);
+                    done++;
+                }
+            } catch (RuntimeException e) {
+                if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                    throw e;
+                }
+                continue;
             }
+            // Otherwise the leaf changed, so descend again for the same keys
+            if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                next = done;
+            }
+        }
+        if (metrics != null) {
+            metrics.searches.add(count);
         }
-        return null;
+        return values;
     }
 
     /**
-     * Search for a key in the B+ Tree and return its associated value.
+     * Open an ascending cursor over the entries whose keys lie between two bounds, inclusive.
      *
-     * @param key The key to search for.
-     * @return The value associated with the key, or null if the key is not found.
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return A cursor positioned before the first entry of the range.
+     */
+    public BPlusTreeCursor<K, V> cursor(K from, K to) {
+        return cursor(keyCodec.encode(from), keyCodec.encode(to), false);
+    }
+
+    /**
+     * Open a descending cursor over the entries whose keys lie between two bounds, inclusive.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return A cursor positioned before the entry with the largest key of the range.
+     */
+    public BPlusTreeCursor<K, V> descendingCursor(K from, K to) {
+        return cursor(keyCodec.encode(from), keyCodec.encode(to), true);
+    }
+
+    BPlusTreeCursor<K, V> cursor(byte[] from, byte[] to, boolean descending) {
+        return new BPlusTreeCursor<>(this, buffer, order, keyCodec, valueCodec, from, to, descending);
+    }
+
+    /**
+     * Iterate over the entries whose keys lie between two bounds, inclusive, in ascending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return An iterator over the entries of the range.
+     */
+    public Iterator<Map.Entry<K, V>> range(K from, K to) {
+        return cursor(from, to).iterator();
+    }
+
+    /**
+     * Iterate over the entries whose keys lie between two bounds, inclusive, in descending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return An iterator over the entries of the range.
+     */
+    public Iterator<Map.Entry<K, V>> descendingRange(K from, K to) {
+        return descendingCursor(from, to).iterator();
+    }
+
+    /**
+     * Stream the entries whose keys lie between two bounds, inclusive, in ascending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return A sequential stream over the entries of the range.
+     */
+    public Stream<Map.Entry<K, V>> stream(K from, K to) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(range(from, to),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return The entry with the smallest key, or null if the tree is empty.
+     */
+    public Map.Entry<K, V> first() {
+        return firstOf(cursor(minKey, maxKey, false));
+    }
+
+    /**
+     * @return The entry with the largest key, or null if the tree is empty.
+     */
+    public Map.Entry<K, V> last() {
+        return firstOf(cursor(minKey, maxKey, true));
+    }
+
+    /**
+     * @param key The key to look for.
+     * @return The entry with the largest key less than or equal to the given key, or null if there is none.
+     */
+    public Map.Entry<K, V> floor(K key) {
+        return firstOf(cursor(minKey, keyCodec.encode(key), true));
+    }
+
+    /**
+     * @param key The key to look for.
+     * @return The entry with the smallest key greater than or equal to the given key, or null if there is none.
+     */
+    public Map.Entry<K, V> ceiling(K key) {
+        return firstOf(cursor(keyCodec.encode(key), maxKey, false));
+    }
+
+    private static <K, V> Map.Entry<K, V> firstOf(BPlusTreeCursor<K, V> cursor) {
+        return cursor.next() ? cursor.entry() : null;
+    }
+
+    /**
+     * Take a consistent, read-only view of the tree as it is now. Waits for the writes in
+     * progress, then lets writers go on: from now on they copy every block before they first
+     * change or free it, so the snapshot keeps reading the tree as it was. Copies are freed once
+     * no open snapshot reads them, so close every snapshot when done with it.
+     *
+     * @return The snapshot, which must be closed.
+     */
+    public Snapshot<K, V> snapshot() {
+        writeGate.close();
+        try {
+            int generation = versions.open(allocator.getHighWaterMark());
+            return new Snapshot<>(this, buffer, order, keyCodec, valueCodec, versions, generation, rootOffset);
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    /**
+     * Close a snapshot, freeing the copies no other open snapshot reads.
+     *
+     * @param generation The generation of the snapshot.
      */
-    public String search(int key) {
-        BPlusTreeNode leaf = findLeaf(root, key);
-        int index = leaf.keys.indexOf(key);
-        return index != -1 ? leaf.values.get(index) : null;
+    void release(int generation) {
+        writeGate.close();
+        try {
+            if (versions.close(generation)) {
+                writeHeader();
+            }
+        } finally {
+            writeGate.open();
+        }
+    }
+
+    private void closeSnapshots() {
+        writeGate.close();
+        try {
+            if (versions.closeAll()) {
+                writeHeader();
+            }
+        } finally {
+            writeGate.open();
+        }
     }
 
     /**
      * Delete a key from the B+ Tree.
+     * <p>
+     * Like {@link #insert(Object, Object)}, a delete that leaves the leaf at least half full only
+     * latches the leaf; one that needs to borrow or merge descends again with latch crabbing,
+     * unless rebalancing is deferred, see {@link #deferRebalancing(long)}.
      *
      * @param key The key to delete.
      */
-    public void delete(int key) {
-        BPlusTreeNode leaf = findLeaf(root, key);
-        int index = leaf.keys.indexOf(key);
+    public void delete(K key) {
+        TreeMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        byte[] encodedKey = keyCodec.encode(key);
+        writeGate.enter();
+        FrontCache<V> cache = frontCache;
+        if (cache != null) {
+            cache.beginWrite(encodedKey);
+        }
+        try {
+            delete(encodedKey);
+        } finally {
+            if (cache != null) {
+                cache.endWrite(encodedKey);
+            }
+            writeGate.exit();
+        }
+        if (log != null) {
+            commit();
+        }
+        if (metrics != null) {
+            metrics.deleted(System.nanoTime() - start);
+        }
+    }
 
-        if (index != -1) {
-            leaf.keys.remove(index);
-            leaf.values.remove(index);
+    private void delete(byte[] key) {
+        if (tryDeleteInLeaf(key)) {
+            return;
+        }
+        Descent descent = descents.get();
+        try {
+            BPlusTreeNode leaf = latchLeaf(descent, key, false);
+            int index = leaf.indexOf(key);
+            if (index < 0) {
+                return;
+            }
+            logDelete(key);
+            leaf.removeEntry(index);
+            serializeNode(leaf);
+            if (metrics != null) {
+                metrics.entries.decrement();
+            }
             // Handle underflow if necessary
-            if (leaf.keys.size() < (order - 1) / 2 && leaf != root) {
-                handleUnderflow(leaf);
+            if (leaf.keyCount < minKeys() && leaf.offset != rootOffset) {
+                handleUnderflow(descent, leaf, descent.pathLength - 1);
             }
+        } finally {
+            releaseAll(descent);
         }
-        serializeNode(leaf);
+    }
+
+    /**
+     * Delete a key if that does not underflow the leaf, or rebalancing is deferred, latching
+     * nothing but the leaf.
+     *
+     * @return true if the key was deleted or is absent, false if the leaf would underflow.
+     */
+    private boolean tryDeleteInLeaf(byte[] key) {
+        while (true) {
+            long leafVersion = findLeafOptimistic(key);
+            int offset = (int) leafVersion;
+            int version = (int) (leafVersion >>> 32);
+            if (!BPlusTreeNode.tryUpgrade(buffer, offset, version)) {
+                continue;
+            }
+            BPlusTreeNode leaf = readLatched(offset, version);
+            int index = leaf.indexOf(key);
+            if (index < 0) {
+                BPlusTreeNode.unlockUnchanged(buffer, offset, version);
+                return true;
+            }
+            // The root cannot change while its only leaf is latched
+            boolean underflows = leaf.keyCount <= minKeys() && offset != rootOffset;
+            if (underflows && !rebalancingDeferred) {
+                BPlusTreeNode.unlockUnchanged(buffer, offset, version);
+                return false;
+            }
+            logDelete(key);
+            leaf.removeEntry(index);
+            serializeNode(leaf);
+            if (metrics != null) {
+                metrics.entries.decrement();
+            }
+            BPlusTreeNode.unlock(buffer, offset);
+            if (underflows && leaf.keyCount == minKeys() - 1) {
+                // Queue the leaf once, as it drops below half full; it keeps the deleted key's range
+                underfullLeaves.add(key);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The minimum number of keys a non-root node must hold.
+     */
+    private int minKeys() {
+        return (order - 1) / 2;
     }
 
     /**
      * Handle the underflow situation in a node by either borrowing from or merging with siblings.
+     * The parent is latched on the descent path; the sibling is latched here, which is safe
+     * because no other writer can reach it without first latching the parent.
      *
+     * @param descent The state of the operation.
      * @param node The node with underflow.
+     * @param level The position of the node's parent on the descent path.
      */
-    private void handleUnderflow(BPlusTreeNode node) {
-        BPlusTreeNode parent = findParent(root, node);
-        int index = parent.childrenOffsets.indexOf(node.offset);
+    private void handleUnderflow(Descent descent, BPlusTreeNode node, int level) {
+        BPlusTreeNode parent = readNode(descent.pathOffsets[level]);
+        int index = descent.pathIndexes[level];
 
-        if (index > 0) {
-            BPlusTreeNode leftSibling = BPlusTreeNode.deserialize(buffer, parent.childrenOffsets.get(index - 1),order);
-            if (leftSibling.keys.size() > (order - 1) / 2) {
-                borrowFromLeftSibling(parent, index, node, leftSibling);
+        // Borrowing replaces a separator of the parent with a key between its neighbours, which
+        // shares their prefix and so never grows the parent. Only the first separator has no
+        // left neighbour; in a parent that needs its prefix to fit, take from the right instead.
+        if (index > 1 || (index == 1 && parent.keyCount <= order - 1)) {
+            BPlusTreeNode leftSibling = latchSibling(descent, parent.child(index - 1));
+            if (leftSibling.keyCount > minKeys()) {
+                // A leaf left behind by a deferred delete may be short of more than one key
+                do {
+                    borrowFromLeftSibling(parent, index, node, leftSibling);
+                    if (metrics != null) {
+                        metrics.borrows.increment();
+                    }
+                } while (node.keyCount < minKeys() && leftSibling.keyCount > minKeys());
+                serializeNode(leftSibling);
+                serializeNode(node);
             } else {
-                mergeWithLeftSibling(parent, index, node, leftSibling);
+                merge(descent, parent, index - 1, leftSibling, node);
             }
-            serializeNode(leftSibling);
-        } else if (index < parent.childrenOffsets.size() - 1) {
-            BPlusTreeNode rightSibling = BPlusTreeNode.deserialize(buffer, parent.childrenOffsets.get(index + 1),order);
-            if (rightSibling.keys.size() > (order - 1) / 2) {
-                borrowFromRightSibling(parent, index, node, rightSibling);
+        } else {
+            BPlusTreeNode rightSibling = latchSibling(descent, parent.child(index + 1));
+            if (rightSibling.keyCount > minKeys()) {
+                do {
+                    borrowFromRightSibling(parent, index, node, rightSibling);
+                    if (metrics != null) {
+                        metrics.borrows.increment();
+                    }
+                } while (node.keyCount < minKeys() && rightSibling.keyCount > minKeys());
+                serializeNode(rightSibling);
+                serializeNode(node);
             } else {
-                mergeWithRightSibling(parent, index, node, rightSibling);
+                merge(descent, parent, index, node, rightSibling);
             }
-            serializeNode(rightSibling);
         }
         serializeNode(parent);
+
+        if (parent.offset == rootOffset) {
+            // The root lost its last separator: the merged child becomes the new root
+            if (parent.keyCount == 0) {
+                setRoot(parent.child(0));
+                descent.free(parent.offset, false);
+            }
+        } else if (parent.keyCount < minKeys()) {
+            // This level is done. Its latches go before a sibling of the parent is latched,
+            // since a split below that sibling may be waiting to relink one of these leaves.
+            releaseLatched(descent);
+            handleUnderflow(descent, parent, level - 1);
+        }
+    }
+
+    private BPlusTreeNode latchSibling(Descent descent, int offset) {
+        BPlusTreeNode.lock(buffer, offset);
+        descent.latch(offset);
+        return readNode(offset);
     }
 
     /**
@@ -332,23 +2437,18 @@ public class BPlusTree {
      * @param leftSibling The left sibling node.
      */
     private void borrowFromLeftSibling(BPlusTreeNode parent, int index, BPlusTreeNode node, BPlusTreeNode leftSibling) {
+        int parentKeyIndex = index - 1;
         if (node.isLeaf) {
             // Leaf node: borrow a key-value pair from the left sibling
-            int parentKeyIndex = index - 1;
-            int parentKey = parent.keys.get(parentKeyIndex);
-
-            int movingKey = leftSibling.keys.remove(leftSibling.keys.size() - 1);
-            node.keys.add(0, movingKey);
-            node.values.add(0, leftSibling.values.remove(leftSibling.values.size() - 1));
-            parent.keys.set(parentKeyIndex, movingKey);
+            leftSibling.moveKeys(leftSibling.keyCount - 1, node, 0);
+            BPlusTreeNode.moveOverflowValues(leftSibling, node);
+            parent.setKey(parentKeyIndex, BPlusTreeNode.separator(leftSibling.key(leftSibling.keyCount - 1), node.key(0)));
         } else {
-            // Internal node: borrow a key and child from the left sibling
-            int parentKeyIndex = index - 1;
-            int parentKey = parent.keys.get(parentKeyIndex);
-
-            node.keys.add(0, parentKey);
-            node.childrenOffsets.add(0, leftSibling.childrenOffsets.remove(leftSibling.childrenOffsets.size() - 1));
-            parent.keys.set(parentKeyIndex, leftSibling.keys.remove(leftSibling.keys.size() - 1));
+            // Internal node: rotate the separator down and the sibling's last key up
+            node.insertKey(0, parent.key(parentKeyIndex));
+            leftSibling.moveChildren(leftSibling.childCount - 1, node, 0);
+            parent.setKey(parentKeyIndex, leftSibling.key(leftSibling.keyCount - 1));
+            leftSibling.removeKey(leftSibling.keyCount - 1);
         }
     }
 
@@ -361,108 +2461,174 @@ public class BPlusTree {
      * @param rightSibling The right sibling node.
      */
     private void borrowFromRightSibling(BPlusTreeNode parent, int index, BPlusTreeNode node, BPlusTreeNode rightSibling) {
+        int parentKeyIndex = index;
         if (node.isLeaf) {
             // Leaf node: borrow a key-value pair from the right sibling
-            int parentKeyIndex = index;
-            int parentKey = parent.keys.get(parentKeyIndex);
-
-            node.keys.add(parentKey);
-            node.values.add(rightSibling.values.remove(0));
-            parent.keys.set(parentKeyIndex, rightSibling.keys.remove(0));
+            node.insertEntry(node.keyCount, rightSibling.key(0), rightSibling.value(0));
+            rightSibling.removeEntry(0);
+            BPlusTreeNode.moveOverflowValues(rightSibling, node);
+            parent.setKey(parentKeyIndex, BPlusTreeNode.separator(node.key(node.keyCount - 1), rightSibling.key(0)));
         } else {
-            // Internal node: borrow a key and child from the right sibling
-            int parentKeyIndex = index;
-            int parentKey = parent.keys.get(parentKeyIndex);
-
-            node.keys.add(parentKey);
-            node.childrenOffsets.add(rightSibling.childrenOffsets.remove(0));
-            parent.keys.set(parentKeyIndex, rightSibling.keys.remove(0));
+            // Internal node: rotate the separator down and the sibling's first key up
+            node.insertKey(node.keyCount, parent.key(parentKeyIndex));
+            node.insertChild(node.childCount, rightSibling.child(0));
+            rightSibling.removeChild(0);
+            parent.setKey(parentKeyIndex, rightSibling.key(0));
+            rightSibling.removeKey(0);
         }
     }
 
     /**
-     * Merge a node with its left sibling.
+     * Merge a node into its left neighbour and remove the separator between them from the parent.
+     * The merged-away node is freed once the operation releases its latches.
      *
+     * @param descent The state of the operation.
      * @param parent The parent node.
-     * @param index The index of the node in the parent's children list.
-     * @param node The current node.
-     * @param leftSibling The left sibling node.
+     * @param separatorIndex The index of the parent key separating the two nodes.
+     * @param left The node that absorbs the keys.
+     * @param right The node that is merged away.
      */
-    private void mergeWithLeftSibling(BPlusTreeNode parent, int index, BPlusTreeNode node, BPlusTreeNode leftSibling) {
-        int parentKeyIndex = index - 1; // The index of the key in the parent separating the nodes
-
-        // Combine the current node with the left sibling
-        leftSibling.keys.addAll(node.keys);
-        leftSibling.childrenOffsets.addAll(node.childrenOffsets);
-
-        // Remove the key from the parent and the current node from the parent's children list
-        parent.keys.remove(parentKeyIndex);
-        parent.childrenOffsets.remove(index);
+    private void merge(Descent descent, BPlusTreeNode parent, int separatorIndex, BPlusTreeNode left, BPlusTreeNode right) {
+        if (left.isLeaf) {
+            right.moveKeys(0, left, left.keyCount);
+            BPlusTreeNode.moveOverflowValues(right, left);
+            if (right.freeOverflowValues(overflowPages)) {
+                writeHeader();
+            }
+            // Unlink the merged-away leaf
+            left.next = right.next;
+            if (right.next != BPlusTreeNode.NIL) {
+                relinkPrevious(right.next, left.offset);
+            }
+        } else {
+            // Internal nodes pull the separator down between the two halves
+            left.insertKey(left.keyCount, parent.key(separatorIndex));
+            right.moveKeys(0, left, left.keyCount);
+            right.moveChildren(0, left, left.childCount);
+        }
 
-        // Serialize the updated nodes
-        serializeNode(leftSibling);
-        serializeNode(parent);
+        // Remove the separator and the merged-away node from the parent
+        parent.removeKey(separatorIndex);
+        parent.removeChild(separatorIndex + 1);
 
-        // Handle the case where the parent node becomes underflowed
-        if (parent.keys.size() < (order - 1) / 2 && parent != root) {
-            handleUnderflow(parent);
+        serializeNode(left);
+        descent.free(right.offset, right.isLeaf);
+        if (metrics != null) {
+            metrics.merges.increment();
         }
+    }
 
-        // Handle the case where the parent node is empty
-        if (parent.keys.isEmpty()) {
-            int midIndex = (leftSibling.keys.size() - 1) / 2;
-            parent.keys.add(leftSibling.keys.get(midIndex));
+    /**
+     * Read a node a writer is about to change into memory.
+     *
+     * @param offset The offset of the latched node.
+     * @return The node.
+     */
+    private BPlusTreeNode readNode(int offset) {
+        if (metrics != null) {
+            metrics.nodesDeserialized.increment();
         }
+        if (checksumsVerified && !BPlusTreeNode.hasValidChecksum(buffer, offset, order, keyWidth)) {
+            throw new IllegalStateException("Node at " + offset + " fails its checksum");
+        }
+        return BPlusTreeNode.deserialize(buffer, offset, order, keyWidth);
     }
 
     /**
-     * Merge a node with its right sibling.
+     * Read a leaf latched outside of a descent, releasing the latch if it cannot be read.
      *
-     * @param parent The parent node.
-     * @param index The index of the node in the parent's children list.
-     * @param node The current node.
-     * @param rightSibling The right sibling node.
+     * @param offset The offset of the latched leaf.
+     * @param version The version the latch was taken at.
+     * @return The leaf.
      */
-    private void mergeWithRightSibling(BPlusTreeNode parent, int index, BPlusTreeNode node, BPlusTreeNode rightSibling) {
-        int parentKeyIndex = index; // The index of the parent key separating `node` and `rightSibling`
-
-        // Merge the current node with the right sibling
-        node.keys.addAll(rightSibling.keys);
-        if (node.isLeaf) {
-            node.values.addAll(rightSibling.values);
-        } else {
-            node.childrenOffsets.addAll(rightSibling.childrenOffsets);
+    private BPlusTreeNode readLatched(int offset, int version) {
+        try {
+            return readNode(offset);
+        } catch (IllegalStateException e) {
+            BPlusTreeNode.unlockUnchanged(buffer, offset, version);
+            throw e;
         }
+    }
 
-        // Remove the parent key and the right sibling from the parent’s children list
-        parent.keys.remove(parentKeyIndex);
-        parent.childrenOffsets.remove(index + 1);
-
-        // Serialize the updated nodes
-        serializeNode(node);
-        serializeNode(parent);
-
-        // Handle the case where parent node becomes underflowed
-        if (parent.keys.size() < (order - 1) / 2 && parent != root) {
-            handleUnderflow(parent);
+    /**
+     * Serialize a node to the ByteBuffer, persisting the allocation state when overflow pages
+     * were allocated or freed for its values.
+     *
+     * @param node The node to serialize.
+     */
+    private void serializeNode(BPlusTreeNode node) {
+        touch(node.offset, node.isLeaf);
+        if (!node.isLeaf) {
+            routing.invalidate(node.offset);
+        }
+        // Nodes of a bulk load are written without a latch, so pin the segment here as well
+        buffer.pin(node.offset);
+        try {
+            if (node.serialize(buffer, overflowPages)) {
+                writeHeader();
+            }
+        } catch (IllegalStateException e) {
+            writeHeader();
+            throw new RuntimeException("Buffer capacity exceeded during overflow page allocation", e);
+        } finally {
+            buffer.unpin(node.offset);
         }
+    }
 
-        // Handle the case where the parent node is empty
-        if (parent.keys.isEmpty()) {
-            int midIndex = (rightSibling.keys.size() - 1) / 2;
-            parent.keys.add(rightSibling.keys.get(midIndex));
+    /**
+     * Log the image of a node block before it is first changed since the last checkpoint, and
+     * copy it before it is first changed since the newest snapshot.
+     */
+    private void touch(int offset, boolean isLeaf) {
+        int sizeClass = isLeaf ? LEAF_CLASS : INTERNAL_CLASS;
+        if (log != null) {
+            log.touch(offset, allocator.getBlockSize(sizeClass));
         }
+        versions.preserve(offset, sizeClass);
     }
 
     /**
-     * Serialize a node to the ByteBuffer.
+     * Copy a block for the open snapshots into a newly allocated block of its size class.
+     * A node block keeps its own latch word, since a stale reader of the tree may still look at
+     * the latch of the block it used to be.
      *
-     * @param node The node to serialize.
+     * @return The offset of the copy.
      */
-    private void serializeNode(BPlusTreeNode node) {
-        buffer.position(node.offset);
-        node.serialize(buffer);
-        buffer.position(node.getEndOffset());
+    private int copyBlock(int offset, int sizeClass) {
+        int highWaterMark = allocator.getHighWaterMark();
+        int copy;
+        try {
+            copy = allocator.allocate(sizeClass);
+        } catch (IllegalStateException e) {
+            throw new RuntimeException("Buffer capacity exceeded while copying a block for a snapshot", e);
+        }
+        int skip = sizeClass == OVERFLOW_CLASS ? 0 : Integer.BYTES;
+        byte[] contents = new byte[allocator.getBlockSize(sizeClass) - skip];
+        buffer.get(offset + skip, contents);
+        buffer.pin(copy);
+        buffer.put(copy + skip, contents);
+        buffer.unpin(copy);
+        if (skip > 0 && copy >= highWaterMark) {
+            BPlusTreeNode.resetVersion(buffer, copy);
+        }
+        writeHeader();
+        return copy;
+    }
+
+    /**
+     * Log an insert before the latched leaf changes, so the log orders writes of a key the way
+     * the tree applies them.
+     */
+    private void logInsert(byte[] key, byte[] value) {
+        if (log != null) {
+            log.logInsert(key, value);
+        }
+    }
+
+    private void logDelete(byte[] key) {
+        if (log != null) {
+            log.logDelete(key);
+        }
     }
 
     /**
@@ -475,7 +2641,7 @@ public class BPlusTree {
         // Clear the set of printed offsets to ensure a fresh start for printing.
         printedOffsets.clear();
         // Call the recursive printTree method to start printing from the root node.
-        printTree(root, indent, null);
+        printTree(BPlusTreeNode.deserialize(buffer, rootOffset, order, keyWidth), indent, null);
     }
 
     /**
@@ -485,7 +2651,7 @@ public class BPlusTree {
         // Clear the set of printed offsets to ensure a fresh start for printing.
         printedOffsets.clear();
         // Call the recursive printTree method to start printing from the root node.
-        printTree(root, "", null);
+        printTree(BPlusTreeNode.deserialize(buffer, rootOffset, order, keyWidth), "", null);
     }
 
     /**
@@ -504,11 +2670,20 @@ public class BPlusTree {
         // Print node type, offset, and keys
         String nodeType = node.isLeaf ? "Leaf" : "Internal";
         System.out.println(indent + nodeType + " Node (Offset: " + node.offset + "):");
-        System.out.println(indent + "  Keys: " + node.keys);
+        List<K> keys = new ArrayList<>();
+        for (int i = 0; i < node.keyCount; i++) {
+            keys.add(keyCodec.decode(node.keys, i * keyWidth));
+        }
+        System.out.println(indent + "  Keys: " + keys);
         if (node.isLeaf) {
-            System.out.println(indent + "  Values: " + node.values);
+            List<V> values = new ArrayList<>();
+            for (int i = 0; i < node.keyCount; i++) {
+                byte[] value = node.value(i);
+                values.add(valueCodec.decode(ByteBuffer.wrap(value), 0, value.length));
+            }
+            System.out.println(indent + "  Values: " + values);
         } else {
-            System.out.println(indent + "  Children Offsets: " + node.childrenOffsets);
+            System.out.println(indent + "  Children Offsets: " + Arrays.toString(Arrays.copyOf(node.childrenOffsets, node.childCount)));
         }
 
         // Print the parent-child relationship if a parentOffset is provided
@@ -521,8 +2696,9 @@ public class BPlusTree {
 
         // Recursively print child nodes for internal nodes
         if (!node.isLeaf) {
-            for (Integer offset : node.childrenOffsets) {
-                BPlusTreeNode child = BPlusTreeNode.deserialize(buffer, offset, order);
+            for (int i = 0; i < node.childCount; i++) {
+                int offset = node.child(i);
+                BPlusTreeNode child = BPlusTreeNode.deserialize(buffer, offset, order, keyWidth);
                 printTree(child, indent + "  ", node.offset);
             }
         }
@@ -0,0 +1,248 @@
+package org.example;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor over an inclusive key range of a {@link BPlusTree}, in ascending or descending order.
+ * <p>
+ * The cursor starts before the first entry of the range; every call to {@link #next()} moves it
+ * to the following entry. Leaves are walked through their sibling links without going back up
+ * through the internal nodes, and keys are compared straight in the buffer, so scanning allocates
+ * nothing until a key or value is decoded.
+ * <p>
+ * The cursor takes no latches. Every key is validated against the version of its leaf, and when
+ * a leaf changes underneath the cursor it searches the tree again for the key after the last one
+ * it returned. Scans are therefore weakly consistent: keys come out strictly ordered and each
+ * one was in the tree when it was read, but changes made during the scan may or may not be seen.
+ */
+public class BPlusTreeCursor<K, V> {
+    private final BPlusTree<K, V> tree;
+    private final SegmentedBuffer buffer;
+    private final int order;
+    private final KeyCodec<K> keyCodec;
+    private final ValueCodec<V> valueCodec;
+    private final int keyWidth;
+    private final byte[] from; // Encoded smallest key of the range
+    private final byte[] to; // Encoded largest key of the range
+    private final boolean descending;
+    private int leaf;
+    private int version; // Version of the leaf that every read is validated against
+    private int index;
+    private byte[] currentKey; // Encoded key of the last entry the cursor moved to
+    private byte[] candidateKey; // Key being read, it becomes the current key once validated
+    private boolean positioned; // Whether the cursor is on the entry with the current key
+    private boolean started; // Whether the cursor has ever been on an entry
+    private boolean needsSeek = true;
+    private boolean exhausted;
+
+    /**
+     * @param tree The tree to search when the cursor has to find its place again.
+     * @param buffer The buffer holding the tree.
+     * @param order The order of the tree.
+     * @param keyCodec The codec of the keys of the tree.
+     * @param valueCodec The codec of the values of the tree.
+     * @param from The encoded smallest key of the range.
+     * @param to The encoded largest key of the range.
+     * @param descending Whether to walk from the largest key to the smallest.
+     */
+    BPlusTreeCursor(BPlusTree<K, V> tree, SegmentedBuffer buffer, int order, KeyCodec<K> keyCodec,
+                    ValueCodec<V> valueCodec, byte[] from, byte[] to, boolean descending) {
+        this.tree = tree;
+        this.buffer = buffer;
+        this.order = order;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.keyWidth = keyCodec.width();
+        this.from = from;
+        this.to = to;
+        this.descending = descending;
+        this.currentKey = new byte[keyWidth];
+        this.candidateKey = new byte[keyWidth];
+        this.exhausted = Arrays.compareUnsigned(from, to) > 0;
+    }
+
+    /**
+     * Move to the next entry of the range.
+     *
+     * @return true if the cursor is on an entry, false once the range is exhausted.
+     */
+    public boolean next() {
+        while (!exhausted) {
+            if (needsSeek) {
+                if (!seek()) {
+                    continue;
+                }
+            } else if (positioned) {
+                index += descending ? -1 : 1;
+            }
+            positioned = false;
+            boolean valid;
+            try {
+                valid = moveToEntry();
+            } catch (RuntimeException e) {
+                // A torn read of a leaf that is being changed, unless the leaf is still intact
+                if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                    throw e;
+                }
+                valid = false;
+            }
+            if (valid) {
+                return positioned;
+            }
+            needsSeek = true;
+        }
+        return false;
+    }
+
+    /**
+     * Find the leaf and index of the first candidate entry: the start of the range, or the
+     * entry after the current key.
+     *
+     * @return true if the cursor is placed, false if the leaf changed and the seek must be retried.
+     */
+    private boolean seek() {
+        byte[] key = !started ? descending ? to : from : currentKey;
+        long leafVersion = tree.findLeafOptimistic(key);
+        leaf = (int) leafVersion;
+        version = (int) (leafVersion >>> 32);
+        int found;
+        try {
+            found = BPlusTreeNode.indexOf(buffer, leaf, keyWidth, key);
+        } catch (RuntimeException e) {
+            if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                throw e;
+            }
+            return false;
+        }
+        if (!BPlusTreeNode.validate(buffer, leaf, version)) {
+            return false;
+        }
+        if (found >= 0 && started) {
+            // The current key is still there, continue right after it
+            index = descending ? found - 1 : found + 1;
+        } else {
+            // Ascending scans continue at the insertion point, descending ones just before it
+            index = found >= 0 ? found : descending ? -(found + 1) - 1 : -(found + 1);
+        }
+        positioned = false;
+        needsSeek = false;
+        return true;
+    }
+
+    /**
+     * Step over leaf boundaries, and over empty leaves, through the sibling links until the
+     * index is on an entry, then check the entry against the range.
+     *
+     * @return true if the cursor is on an entry or the range is exhausted, false if the leaf
+     *         changed and the cursor must seek again.
+     */
+    private boolean moveToEntry() {
+        while (descending ? index < 0 : index >= BPlusTreeNode.keyCount(buffer, leaf)) {
+            int sibling = descending ? BPlusTreeNode.previousLeaf(buffer, leaf) : BPlusTreeNode.nextLeaf(buffer, leaf);
+            if (!BPlusTreeNode.validate(buffer, leaf, version)) {
+                return false;
+            }
+            if (sibling == BPlusTreeNode.NIL) {
+                exhausted = true;
+                return true;
+            }
+            // A sibling can only be removed by changing this leaf, so validating it again proves
+            // the sibling version belongs to the right node
+            int siblingVersion = BPlusTreeNode.stableVersion(buffer, sibling);
+            if (BPlusTreeNode.isObsolete(siblingVersion) || !BPlusTreeNode.validate(buffer, leaf, version)) {
+                return false;
+            }
+            leaf = sibling;
+            version = siblingVersion;
+            index = descending ? BPlusTreeNode.keyCount(buffer, leaf) - 1 : 0;
+        }
+        int bound = BPlusTreeNode.compareKey(buffer, leaf, keyWidth, index, descending ? from : to);
+        BPlusTreeNode.copyKey(buffer, leaf, keyWidth, index, candidateKey);
+        if (!BPlusTreeNode.validate(buffer, leaf, version)) {
+            return false;
+        }
+        if (descending ? bound < 0 : bound > 0) {
+            exhausted = true;
+            return true;
+        }
+        byte[] previousKey = currentKey;
+        currentKey = candidateKey;
+        candidateKey = previousKey;
+        positioned = true;
+        started = true;
+        return true;
+    }
+
+    /**
+     * @return The key of the current entry.
+     */
+    public K key() {
+        return keyCodec.decode(currentKey, 0);
+    }
+
+    /**
+     * @return The encoded key of the current entry, which the cursor overwrites when it moves.
+     */
+    byte[] encodedKey() {
+        return currentKey;
+    }
+
+    /**
+     * @return The value of the current entry, or null if it was deleted after the cursor moved to it.
+     */
+    public V value() {
+        try {
+            V value = BPlusTreeNode.valueAt(buffer, leaf, order, keyWidth, index, valueCodec);
+            if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                return value;
+            }
+        } catch (RuntimeException e) {
+            if (BPlusTreeNode.validate(buffer, leaf, version)) {
+                throw e;
+            }
+        }
+        // The leaf changed since the key was read, look the key up again
+        return tree.searchEncoded(currentKey);
+    }
+
+    /**
+     * @return The current entry as an immutable map entry.
+     */
+    public Map.Entry<K, V> entry() {
+        return new AbstractMap.SimpleImmutableEntry<>(key(), value());
+    }
+
+    /**
+     * Expose the remaining entries of the cursor as an iterator. The cursor must not be moved
+     * by other callers while the iterator is in use.
+     *
+     * @return An iterator over the remaining entries.
+     */
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new Iterator<>() {
+            private Map.Entry<K, V> pending;
+
+            @Override
+            public boolean hasNext() {
+                if (pending == null && BPlusTreeCursor.this.next()) {
+                    pending = entry();
+                }
+                return pending != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<K, V> entry = pending;
+                pending = null;
+                return entry;
+            }
+        };
+    }
+}
@@ -1,36 +1,215 @@
 package org.example;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.CRC32C;
 
 public class BPlusTreeNode {
+    public static final int NIL = -1; // Marks a missing sibling
+    public static final int HEADER_SIZE = 29; // version latch (4 bytes) + isLeaf flag (1 byte) + key count, next leaf, previous leaf, prefix length, stride, checksum (4 bytes each)
+    private static final int VERSION_POSITION = 0;
+    private static final int LEAF_FLAG_POSITION = 4;
+    private static final int KEY_COUNT_POSITION = 5;
+    private static final int NEXT_LEAF_POSITION = 9;
+    private static final int PREVIOUS_LEAF_POSITION = 13;
+    private static final int PREFIX_LENGTH_POSITION = 17;
+    private static final int STRIDE_POSITION = 21;
+    private static final int CHECKSUM_POSITION = 25;
+    private static final int NODE_ALIGNMENT = 8; // Keeps the version latch of every node aligned
+
+    // Version latch bits: the low two bits are flags, the rest counts modifications
+    private static final int LOCKED = 1;
+    private static final int OBSOLETE = 2;
+    private static final int VERSION_INCREMENT = 4;
+    private static final int SPINS_BEFORE_YIELD = 64;
+    public static final int OFFSET_SIZE = 4; // Integer child offsets
+    public static final int SLOT_SIZE = 8; // Value length + value location
+    public static final int HEAP_BYTES_PER_KEY = 16; // Size of the value heap of a leaf, per key
+    public static final int MAX_INLINE_SIZE = 64; // Larger values always go to overflow pages
+
+    private static final VarHandle BIG_ENDIAN_ARRAY_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final byte[][] NO_VALUES = new byte[0][];
+    private static final int[] NO_CHILDREN = new int[0];
+
+    // In memory a node keeps primitive arrays sized for one entry more than fits on its page,
+    // which is the transient state of a node that is about to split. Keys are kept at their
+    // full width; only their serialized form is compressed.
     public boolean isLeaf;
-    public List<Integer> keys;
-    public List<String> values; // Only for leaf nodes
-    public List<Integer> childrenOffsets; // Only for internal nodes
+    public byte[] keys; // Encoded keys packed one after the other, see KeyCodec
+    public int keyCount;
+    public byte[][] values; // Encoded values, only for leaf nodes
+    public int[] childrenOffsets; // Only for internal nodes
+    public int childCount;
+    public int next = NIL; // Offset of the next leaf in key order, only for leaf nodes
+    public int previous = NIL; // Offset of the previous leaf in key order, only for leaf nodes
+    List<OverflowValue> overflowValues = new ArrayList<>(); // Values of this leaf stored in overflow pages
     public int offset;
     public final int order;
+    public final int keyWidth; // Length of every encoded key
 
-    public BPlusTreeNode(boolean isLeaf, int offset,int order) {
+    public BPlusTreeNode(boolean isLeaf, int offset,int order, int keyWidth) {
+        int maxKeys = maxKeys(isLeaf, order, keyWidth);
         this.isLeaf = isLeaf;
-        this.keys = new ArrayList<>();
-        this.values = new ArrayList<>();
-        this.childrenOffsets = new ArrayList<>();
+        this.keys = new byte[(maxKeys + 1) * keyWidth];
+        this.values = isLeaf ? new byte[maxKeys + 1][] : NO_VALUES;
+        this.childrenOffsets = isLeaf ? NO_CHILDREN : new int[maxKeys + 2];
         this.offset = offset;
         this.order = order;
+        this.keyWidth = keyWidth;
     }
 
     @Override
     public String toString() {
+        StringBuilder keyList = new StringBuilder("[");
+        for (int i = 0; i < keyCount; i++) {
+            keyList.append(i == 0 ? "" : ", ").append(Arrays.toString(key(i)));
+        }
         return "BPlusTreeNode{" +
                 "isLeaf=" + isLeaf +
-                ", keys=" + keys +
-                ", values=" + values +
-                ", childrenOffsets=" + childrenOffsets +
+                ", keys=" + keyList.append(']') +
+                ", values=" + (isLeaf ? keyCount : 0) +
+                ", childrenOffsets=" + Arrays.toString(Arrays.copyOf(childrenOffsets, childCount)) +
+                ", next=" + next +
+                ", previous=" + previous +
                 ", offset=" + offset +
                 '}';
     }
+    /**
+     * @return A copy of the encoded key at an index.
+     */
+    public byte[] key(int index) {
+        int from = index * keyWidth;
+        return Arrays.copyOfRange(keys, from, from + keyWidth);
+    }
+
+    public void setKey(int index, byte[] key) {
+        System.arraycopy(key, 0, keys, index * keyWidth, keyWidth);
+    }
+
+    /**
+     * Binary search the keys for an exact match.
+     *
+     * @param key The encoded key to look for.
+     * @return The index of the key, or {@code -(insertionPoint) - 1} if it is absent.
+     */
+    public int indexOf(byte[] key) {
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int from = mid * keyWidth;
+            int comparison = Arrays.compareUnsigned(keys, from, from + keyWidth, key, 0, keyWidth);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Insert a key, shifting the keys after it. In a leaf, use {@link #insertEntry} instead.
+     */
+    public void insertKey(int index, byte[] key) {
+        System.arraycopy(keys, index * keyWidth, keys, (index + 1) * keyWidth, (keyCount - index) * keyWidth);
+        System.arraycopy(key, 0, keys, index * keyWidth, keyWidth);
+        keyCount++;
+    }
+
+    /**
+     * Remove a key, shifting the keys after it. In a leaf, use {@link #removeEntry} instead.
+     */
+    public void removeKey(int index) {
+        System.arraycopy(keys, (index + 1) * keyWidth, keys, index * keyWidth, (keyCount - index - 1) * keyWidth);
+        keyCount--;
+    }
+
+    public byte[] value(int index) {
+        return values[index];
+    }
+
+    public void setValue(int index, byte[] value) {
+        values[index] = value;
+    }
+
+    /**
+     * Insert a key and its value into a leaf.
+     */
+    public void insertEntry(int index, byte[] key, byte[] value) {
+        System.arraycopy(values, index, values, index + 1, keyCount - index);
+        values[index] = value;
+        insertKey(index, key);
+    }
+
+    /**
+     * Remove a key and its value from a leaf.
+     */
+    public void removeEntry(int index) {
+        System.arraycopy(values, index + 1, values, index, keyCount - index - 1);
+        values[keyCount - 1] = null;
+        removeKey(index);
+    }
+
+    public int child(int index) {
+        return childrenOffsets[index];
+    }
+
+    public void insertChild(int index, int child) {
+        System.arraycopy(childrenOffsets, index, childrenOffsets, index + 1, childCount - index);
+        childrenOffsets[index] = child;
+        childCount++;
+    }
+
+    public void removeChild(int index) {
+        System.arraycopy(childrenOffsets, index + 1, childrenOffsets, index, childCount - index - 1);
+        childCount--;
+    }
+
+    /**
+     * Move the keys from an index to the end, and in a leaf their values, into another node.
+     *
+     * @param from The index of the first key to move.
+     * @param target The node that receives the keys.
+     * @param at The index in the target node where the keys are inserted.
+     */
+    public void moveKeys(int from, BPlusTreeNode target, int at) {
+        int moved = keyCount - from;
+        System.arraycopy(target.keys, at * keyWidth, target.keys, (at + moved) * keyWidth, (target.keyCount - at) * keyWidth);
+        System.arraycopy(keys, from * keyWidth, target.keys, at * keyWidth, moved * keyWidth);
+        if (isLeaf) {
+            System.arraycopy(target.values, at, target.values, at + moved, target.keyCount - at);
+            System.arraycopy(values, from, target.values, at, moved);
+            Arrays.fill(values, from, keyCount, null);
+        }
+        target.keyCount += moved;
+        keyCount = from;
+    }
+
+    /**
+     * Move the children from an index to the end into another internal node.
+     *
+     * @param from The index of the first child to move.
+     * @param target The node that receives the children.
+     * @param at The index in the target node where the children are inserted.
+     */
+    public void moveChildren(int from, BPlusTreeNode target, int at) {
+        int moved = childCount - from;
+        System.arraycopy(target.childrenOffsets, at, target.childrenOffsets, at + moved, target.childCount - at);
+        System.arraycopy(childrenOffsets, from, target.childrenOffsets, at, moved);
+        target.childCount += moved;
+        childCount = from;
+    }
+
     /**
      * Calculate the end offset of the node in the ByteBuffer.
      *
@@ -46,81 +225,925 @@ public class BPlusTreeNode {
      * @return The size of the node in bytes.
      */
     public int getSize() {
-        int keySize = 4; // Assuming integer keys
-        int offsetSize = 4; // Assuming integer offsets
-        int valueSize = 15; // Adjust based on max value length
+        return sizeOf(isLeaf, order, keyWidth);
+    }
 
+    /**
+     * Calculate the size reserved for a node of the given type, order and key width.
+     * Every node has a header followed by room for {@code order - 1} keys of {@code keyWidth}
+     * bytes and then either {@code order} child offsets (internal) or a slotted page (leaf).
+     * The slotted page has {@code order - 1} value slots followed by a heap that holds the bytes
+     * of the values packed one after the other. A slot holds the length and heap position of
+     * its value, or, for a value that did not fit into the heap, its length and the first of
+     * its {@link OverflowPages}.
+     * <p>
+     * Keys are stored compressed: the prefix all keys of the node share is stored once, and
+     * every key is stored as the bytes after it, with the zero bytes that end every key left
+     * out, so all keys keep the same stride. A leaf stores its keys at the start of the key
+     * area; an internal node stores its child offsets first and its keys right after them.
+     *
+     * @param isLeaf Whether the node is a leaf.
+     * @param order The order of the tree.
+     * @param keyWidth The length of every encoded key.
+     * @return The size of the node in bytes.
+     */
+    public static int sizeOf(boolean isLeaf, int order, int keyWidth) {
         int maxKeys = order - 1; // Maximum number of keys
-        int nodeSize;
+        int size;
+        if (isLeaf) {
+            size = HEADER_SIZE + (maxKeys * keyWidth) + (maxKeys * SLOT_SIZE) + heapSize(order);
+        } else {
+            size = HEADER_SIZE + (maxKeys * keyWidth) + (order * OFFSET_SIZE);
+        }
+        return (size + NODE_ALIGNMENT - 1) & -NODE_ALIGNMENT;
+    }
 
+    /**
+     * The most keys a node can hold. A leaf holds {@code order - 1}, since its value heap is
+     * budgeted per key. An internal node holds as many as {@link #fits()} allows, which is
+     * {@code order - 1} when its keys share no prefix and more the longer the prefix is.
+     */
+    public static int maxKeys(boolean isLeaf, int order, int keyWidth) {
         if (isLeaf) {
-            // Size calculation for leaf nodes
-            nodeSize = (maxKeys * keySize) + (maxKeys * valueSize);
+            return order - 1;
+        }
+        // Two or more distinct keys keep at least one byte each besides their prefix
+        return Math.max(order - 1, (internalSpace(order, keyWidth) - OFFSET_SIZE) / (1 + OFFSET_SIZE));
+    }
+
+    /**
+     * Check whether the node fits on its page. A leaf fits with up to {@code order - 1} keys.
+     * An internal node fits if its child offsets and keys do, counting every key at the width
+     * it has after the shared prefix, whatever its trailing zeros. A separator that replaces or
+     * joins the keys between two others shares their prefix, so it never takes more room than
+     * that.
+     */
+    public boolean fits() {
+        if (isLeaf) {
+            return keyCount <= order - 1;
+        }
+        return internalSize(commonPrefix(), keyCount, keyWidth) <= internalSpace(order, keyWidth);
+    }
+
+    /**
+     * Check whether a latched internal node can take the separator of a split below it without
+     * splitting itself. The separator lands next to the child that covers a key; between two
+     * keys it shares their prefix, but before the first or after the last it may share nothing.
+     *
+     * @param key The encoded key whose descent passes the node.
+     */
+    public static boolean hasRoomFor(SegmentedBuffer buffer, int offset, int order, int keyWidth, byte[] key) {
+        int keyCount = keyCount(buffer, offset);
+        int index = childIndex(buffer, offset, keyWidth, key);
+        int prefixLength = index == 0 || index == keyCount ? 0 : prefixLength(buffer, offset, keyWidth);
+        return internalSize(prefixLength, keyCount + 1, keyWidth) <= internalSpace(order, keyWidth);
+    }
+
+    /**
+     * Find the separator with the most trailing zeros between two keys: the shortest prefix of
+     * the upper key that is greater than the lower one, padded with zeros to the key width.
+     *
+     * @param lower An encoded key.
+     * @param upper An encoded key greater than the lower one.
+     * @return A key greater than the lower key and not greater than the upper one.
+     */
+    public static byte[] separator(byte[] lower, byte[] upper) {
+        byte[] separator = new byte[upper.length];
+        System.arraycopy(upper, 0, separator, 0, Arrays.mismatch(lower, upper) + 1);
+        return separator;
+    }
+
+    /**
+     * Find the key an overflowing internal node moves up when it splits, as close to the middle
+     * as both halves allow. Keys between two others share their prefix, so only a key that was
+     * added before the first or after the last can shorten it, and then the half that gets it
+     * is made smaller until it fits; the other half is part of the node before the insert.
+     *
+     * @return The index of the key that goes to neither half.
+     */
+    public int splitIndex() {
+        int space = internalSpace(order, keyWidth);
+        int mid = (keyCount - 1) / 2;
+        while (mid > 1 && internalSize(commonPrefix(0, mid), mid, keyWidth) > space) {
+            mid--;
+        }
+        while (mid < keyCount - 2 && internalSize(commonPrefix(mid + 1, keyCount), keyCount - mid - 1, keyWidth) > space) {
+            mid++;
+        }
+        return mid;
+    }
+
+    /**
+     * @return The length of the prefix all keys of the node share.
+     */
+    int commonPrefix() {
+        return commonPrefix(0, keyCount);
+    }
+
+    /**
+     * @return The length of the prefix the keys from one index up to another share.
+     */
+    private int commonPrefix(int from, int to) {
+        if (to <= from) {
+            return 0;
+        }
+        // Keys are sorted, so the first and the last share the least
+        int mismatch = Arrays.mismatch(keys, from * keyWidth, (from + 1) * keyWidth, keys, (to - 1) * keyWidth, to * keyWidth);
+        return mismatch < 0 ? keyWidth : mismatch;
+    }
+
+    /**
+     * @return The number of bytes every key needs after the prefix, leaving out the zero bytes
+     *         that end all of them.
+     */
+    private int stride(int prefixLength) {
+        int stride = 0;
+        for (int i = 0; i < keyCount; i++) {
+            int from = i * keyWidth;
+            int end = keyWidth;
+            while (end > prefixLength + stride && keys[from + end - 1] == 0) {
+                end--;
+            }
+            stride = Math.max(stride, end - prefixLength);
+        }
+        return stride;
+    }
+
+    private static int internalSpace(int order, int keyWidth) {
+        return sizeOf(false, order, keyWidth) - HEADER_SIZE;
+    }
+
+    private static int internalSize(int prefixLength, int keyCount, int keyWidth) {
+        return (keyCount + 1) * OFFSET_SIZE + prefixLength + keyCount * (keyWidth - prefixLength);
+    }
+
+    private static int heapSize(int order) {
+        return (order - 1) * HEAP_BYTES_PER_KEY;
+    }
+
+    // ---------------------------------------------------------------------
+    // Zero-copy accessors: read a single field of a serialized node straight
+    // from the buffer using absolute positions, without building a node.
+    // ---------------------------------------------------------------------
+
+    public static boolean isLeaf(SegmentedBuffer buffer, int offset) {
+        return buffer.get(offset + LEAF_FLAG_POSITION) == 1;
+    }
+
+    public static int keyCount(SegmentedBuffer buffer, int offset) {
+        return buffer.getInt(offset + KEY_COUNT_POSITION);
+    }
+
+    public static int nextLeaf(SegmentedBuffer buffer, int offset) {
+        return buffer.getInt(offset + NEXT_LEAF_POSITION);
+    }
+
+    public static int previousLeaf(SegmentedBuffer buffer, int offset) {
+        return buffer.getInt(offset + PREVIOUS_LEAF_POSITION);
+    }
+
+    /**
+     * Change the previous-leaf link of a serialized leaf in place, updating its checksum.
+     */
+    public static void setPreviousLeaf(SegmentedBuffer buffer, int offset, int order, int keyWidth, int previous) {
+        buffer.putInt(offset + PREVIOUS_LEAF_POSITION, previous);
+        buffer.putInt(offset + CHECKSUM_POSITION, checksum(buffer, offset, order, keyWidth));
+    }
+
+    /**
+     * Compute the checksum of a serialized node: a CRC32C of its whole page but the version
+     * latch and the checksum itself. Unused space is covered too, which costs less than finding
+     * out where the used bytes end, since every write to a page updates the checksum. Values in
+     * overflow pages are not covered.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param order The order of the tree.
+     * @param keyWidth The length of every encoded key.
+     * @return The checksum.
+     */
+    public static int checksum(SegmentedBuffer buffer, int offset, int order, int keyWidth) {
+        CRC32C crc = new CRC32C();
+        buffer.update(crc, offset + LEAF_FLAG_POSITION, CHECKSUM_POSITION - LEAF_FLAG_POSITION);
+        // A corrupt leaf flag must not send the checksum beyond the segment
+        int end = Math.min(sizeOf(isLeaf(buffer, offset), order, keyWidth), buffer.segmentSize() - buffer.position(offset));
+        buffer.update(crc, offset + HEADER_SIZE, end - HEADER_SIZE);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return true if a serialized node matches its checksum, see {@link #checksum(SegmentedBuffer, int, int, int)}.
+     */
+    public static boolean hasValidChecksum(SegmentedBuffer buffer, int offset, int order, int keyWidth) {
+        return buffer.getInt(offset + CHECKSUM_POSITION) == checksum(buffer, offset, order, keyWidth);
+    }
+
+    /**
+     * Check whether the keys of a serialized internal node fit its page, see {@link #fits()}.
+     */
+    static boolean fits(SegmentedBuffer buffer, int offset, int order, int keyWidth) {
+        int keyCount = keyCount(buffer, offset);
+        if (keyCount < 0) {
+            return false;
+        }
+        if (isLeaf(buffer, offset)) {
+            return keyCount <= order - 1;
+        }
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        return keyCount <= maxKeys(false, order, keyWidth) && internalSize(prefixLength, keyCount, keyWidth) <= internalSpace(order, keyWidth);
+    }
+
+    /**
+     * @return The raw length in the value slot of a leaf: the length of a value in the heap, or
+     *         the complement of the length of a value in overflow pages.
+     */
+    static int slotLength(SegmentedBuffer buffer, int offset, int order, int keyWidth, int index) {
+        return buffer.getInt(payloadPosition(offset, order, keyWidth) + index * SLOT_SIZE);
+    }
+
+    /**
+     * @return The position of a value in the heap, relative to the leaf, or its first overflow page.
+     */
+    static int slotLocation(SegmentedBuffer buffer, int offset, int order, int keyWidth, int index) {
+        return buffer.getInt(payloadPosition(offset, order, keyWidth) + index * SLOT_SIZE + 4);
+    }
+
+    /**
+     * @return The position of the value heap relative to a leaf.
+     */
+    static int heapStart(int order, int keyWidth) {
+        return heapPosition(0, order, keyWidth);
+    }
+
+    /**
+     * @return The end of the value heap relative to a leaf.
+     */
+    static int heapEnd(int order, int keyWidth) {
+        return heapPosition(0, order, keyWidth) + heapSize(order);
+    }
+
+    public static byte[] keyAt(SegmentedBuffer buffer, int offset, int keyWidth, int index) {
+        byte[] key = new byte[keyWidth];
+        copyKey(buffer, offset, keyWidth, index, key);
+        return key;
+    }
+
+    /**
+     * Copy a single encoded key of a node into an existing array.
+     */
+    public static void copyKey(SegmentedBuffer buffer, int offset, int keyWidth, int index, byte[] target) {
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        int stride = stride(buffer, offset, keyWidth, prefixLength);
+        int prefix = prefixPosition(buffer, offset);
+        buffer.get(prefix, target, 0, prefixLength);
+        buffer.get(prefix + prefixLength + index * stride, target, prefixLength, stride);
+        Arrays.fill(target, prefixLength + stride, keyWidth, (byte) 0);
+    }
+
+    /**
+     * Compare a single encoded key of a node with another encoded key, without copying it.
+     *
+     * @return A negative number, zero or a positive number as the key of the node is less than,
+     *         equal to or greater than the given key.
+     */
+    public static int compareKey(SegmentedBuffer buffer, int offset, int keyWidth, int index, byte[] key) {
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        int stride = stride(buffer, offset, keyWidth, prefixLength);
+        int prefix = prefixPosition(buffer, offset);
+        int comparison = buffer.compare(prefix, key, 0, prefixLength);
+        if (comparison == 0) {
+            comparison = buffer.compare(prefix + prefixLength + index * stride, key, prefixLength, stride);
+        }
+        if (comparison == 0 && !isZero(key, prefixLength + stride, keyWidth)) {
+            // The stored key ends in zeros where the given one goes on
+            comparison = -1;
+        }
+        return comparison;
+    }
+
+    public static int childAt(SegmentedBuffer buffer, int offset, int order, int keyWidth, int index) {
+        return buffer.getInt(offset + HEADER_SIZE + index * OFFSET_SIZE);
+    }
+
+    /**
+     * Binary search the keys of an internal node for the child that covers a key.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param order The order of the tree.
+     * @param keyWidth The length of every encoded key.
+     * @param key The encoded key to route.
+     * @return The offset of the child whose subtree may contain the key.
+     */
+    public static int findChild(SegmentedBuffer buffer, int offset, int order, int keyWidth, byte[] key) {
+        return childAt(buffer, offset, order, keyWidth, childIndex(buffer, offset, keyWidth, key));
+    }
+
+    /**
+     * Binary search the keys of an internal node for the index of the child that covers a key.
+     * The key is compared with the shared prefix once, and with the stored part of every key
+     * the search visits.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param keyWidth The length of every encoded key.
+     * @param key The encoded key to route.
+     * @return The index of the child whose subtree may contain the key.
+     */
+    public static int childIndex(SegmentedBuffer buffer, int offset, int keyWidth, byte[] key) {
+        int keyCount = keyCount(buffer, offset);
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        int stride = stride(buffer, offset, keyWidth, prefixLength);
+        int prefix = offset + HEADER_SIZE + (keyCount + 1) * OFFSET_SIZE;
+        int comparison = buffer.compare(prefix, key, 0, prefixLength);
+        if (comparison != 0) {
+            // Every separator is greater than the key, or every one is smaller
+            return comparison > 0 ? 0 : keyCount;
+        }
+        int suffixes = prefix + prefixLength;
+        // Upper bound: the number of separator keys that are <= key. A stored key equal to the
+        // key where it ends is <= key whatever follows, since it ends in zeros.
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.compare(suffixes + mid * stride, key, prefixLength, stride) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Decode the routing part of an internal node: its prefix, separators and children. The
+     * node may change while it is read, so validate its version before using the result.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param order The order of the tree.
+     * @param keyWidth The length of every encoded key.
+     * @param version The stable version the node is read at.
+     * @param depth The number of levels above the node.
+     * @return The decoded node.
+     */
+    static RoutingCache.Node decodeRouting(SegmentedBuffer buffer, int offset, int order, int keyWidth, int version, int depth) {
+        int keyCount = keyCount(buffer, offset);
+        if (keyCount < 0 || keyCount > maxKeys(false, order, keyWidth)) {
+            throw new IllegalStateException("Key count " + keyCount + " out of range in node " + offset);
+        }
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        int stride = stride(buffer, offset, keyWidth, prefixLength);
+        int prefixPosition = offset + HEADER_SIZE + (keyCount + 1) * OFFSET_SIZE;
+        byte[] prefix = new byte[prefixLength];
+        buffer.get(prefixPosition, prefix);
+        byte[] suffixes = new byte[keyCount * stride];
+        buffer.get(prefixPosition + prefixLength, suffixes);
+        int[] children = new int[keyCount + 1];
+        for (int i = 0; i <= keyCount; i++) {
+            children[i] = buffer.getInt(offset + HEADER_SIZE + i * OFFSET_SIZE);
+        }
+        return new RoutingCache.Node(offset, version, depth, keyCount, prefix, stride, suffixes, children);
+    }
+
+    /**
+     * Binary search the keys of a node for an exact match.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param keyWidth The length of every encoded key.
+     * @param key The encoded key to look for.
+     * @return The index of the key, or {@code -(insertionPoint) - 1} if it is absent.
+     */
+    public static int indexOf(SegmentedBuffer buffer, int offset, int keyWidth, byte[] key) {
+        int keyCount = keyCount(buffer, offset);
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        int stride = stride(buffer, offset, keyWidth, prefixLength);
+        boolean isLeaf = isLeaf(buffer, offset);
+        int prefix = prefixPosition(buffer, offset, isLeaf, keyCount);
+        int comparison = buffer.compare(prefix, key, 0, prefixLength);
+        if (comparison != 0) {
+            return comparison > 0 ? -1 : -(keyCount + 1);
+        }
+        int suffixes = prefix + prefixLength;
+        boolean longer = !isZero(key, prefixLength + stride, keyWidth); // Greater than a stored key it equals up to the stride
+        if (isLeaf && stride <= Long.BYTES) {
+            // The value slots follow the keys of a leaf, so reading eight bytes from the last key stays in the node
+            return indexOfShort(buffer, suffixes, keyCount, stride, keyHead(key, prefixLength, stride), longer);
+        }
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            comparison = buffer.compare(suffixes + mid * stride, key, prefixLength, stride);
+            if (comparison < 0 || (comparison == 0 && longer)) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Search stored keys of up to eight bytes each for an exact match without branching on
+     * the comparisons: every step reads the stored key as one long and picks the half to go on
+     * with by a conditional move, so a lookup in a large leaf does not stall on mispredicted
+     * branches. The steps are as many as the bits of the key count, whatever the key.
+     *
+     * @param suffixes The position of the first stored key.
+     * @param head The bytes of the key in the range of the stored keys, see {@link #keyHead}.
+     * @param longer Whether the key has more bytes than a stored key it equals.
+     * @return The index of the key, or {@code -(insertionPoint) - 1} if it is absent.
+     */
+    private static int indexOfShort(SegmentedBuffer buffer, int suffixes, int keyCount, int stride, long head, boolean longer) {
+        long mask = stride == 0 ? 0 : -1L << (Long.SIZE - Byte.SIZE * stride);
+        long target = head ^ Long.MIN_VALUE; // Signed order of the flipped longs is the unsigned order of the bytes
+        if (longer && target == Long.MAX_VALUE) {
+            return -(keyCount + 1);
+        }
+        long bound = longer ? target + 1 : target; // A stored key equal to a longer key is below it
+        if (keyCount == 0) {
+            return -1;
+        }
+        int base = 0;
+        int remaining = keyCount;
+        while (remaining > 1) {
+            int half = remaining >>> 1;
+            long stored = (buffer.getKeyBytes(suffixes + (base + half) * stride) & mask) ^ Long.MIN_VALUE;
+            base = stored < bound ? base + half : base;
+            remaining -= half;
+        }
+        // The key is the first one not below the bound, which is this one or the next
+        int index = ((buffer.getKeyBytes(suffixes + base * stride) & mask) ^ Long.MIN_VALUE) < bound ? base + 1 : base;
+        if (!longer && index < keyCount && ((buffer.getKeyBytes(suffixes + index * stride) & mask) ^ Long.MIN_VALUE) == target) {
+            return index;
+        }
+        return -(index + 1);
+    }
+
+    /**
+     * @return Up to eight bytes of a key as a big-endian long, zero padded, whose unsigned
+     *         order is the order of the bytes.
+     */
+    static long keyHead(byte[] key, int from, int length) {
+        if (length == Long.BYTES) {
+            return (long) BIG_ENDIAN_ARRAY_LONGS.get(key, from);
+        }
+        long head = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            head = (head << Byte.SIZE) | (i < length ? key[from + i] & 0xFF : 0);
+        }
+        return head;
+    }
+
+    /**
+     * Decode a single value of a leaf node. A value in the leaf is handed to the codec straight
+     * from the buffer, so the codec decides what is allocated.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the leaf node.
+     * @param order The order of the tree.
+     * @param keyWidth The length of every encoded key.
+     * @param index The index of the value.
+     * @param codec The codec of the values.
+     * @return The decoded value.
+     */
+    public static <V> V valueAt(SegmentedBuffer buffer, int offset, int order, int keyWidth, int index, ValueCodec<V> codec) {
+        return valueAt(buffer, offset, order, keyWidth, index, codec, IntUnaryOperator.identity());
+    }
+
+    /**
+     * Decode a single value of a leaf node whose overflow pages may be read from elsewhere,
+     * like the copies a snapshot keeps.
+     *
+     * @param pages Maps the offset of every overflow page to the offset its contents are read from.
+     * @see #valueAt(SegmentedBuffer, int, int, int, int, ValueCodec)
+     */
+    public static <V> V valueAt(SegmentedBuffer buffer, int offset, int order, int keyWidth, int index, ValueCodec<V> codec,
+                                IntUnaryOperator pages) {
+        int slot = payloadPosition(offset, order, keyWidth) + index * SLOT_SIZE;
+        int valueLength = buffer.getInt(slot);
+        int location = buffer.getInt(slot + 4);
+        // Check the slot so a torn read during an optimistic traversal fails instead of
+        // reading outside the leaf or allocating an absurd array
+        if (valueLength < 0) {
+            valueLength = ~valueLength;
+            if (valueLength > buffer.capacity()) {
+                throw new IllegalStateException("Corrupt overflow value length " + valueLength);
+            }
+            return codec.decode(ByteBuffer.wrap(OverflowPages.read(buffer, location, valueLength, pages)), 0, valueLength);
+        }
+        int heapStart = heapPosition(0, order, keyWidth);
+        if (location < heapStart || valueLength > heapStart + heapSize(order) - location) {
+            throw new IllegalStateException("Corrupt value slot at " + slot);
+        }
+        int position = offset + location;
+        return codec.decode(buffer.segment(position), buffer.position(position), valueLength);
+    }
+
+    /**
+     * Read the encoded bytes of a single value of a leaf node.
+     */
+    private static byte[] valueBytesAt(SegmentedBuffer buffer, int offset, int order, int keyWidth, int index) {
+        return valueAt(buffer, offset, order, keyWidth, index, ValueCodecs.BYTES);
+    }
+
+    // ---------------------------------------------------------------------
+    // Version latches: the first int of every node is a version that writers
+    // bump on every change. Readers never write it; they read a node
+    // optimistically and check the version afterwards, restarting on change.
+    // ---------------------------------------------------------------------
+
+    /**
+     * Wait until no writer holds the latch of a node and return its version.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @return The version, check it with {@link #isObsolete(int)} before trusting the node.
+     */
+    public static int stableVersion(SegmentedBuffer buffer, int offset) {
+        int spins = 0;
+        int version;
+        while (((version = buffer.getIntVolatile(offset + VERSION_POSITION)) & LOCKED) != 0) {
+            spin(++spins);
+        }
+        return version;
+    }
+
+    /**
+     * @return true if the version belongs to a node that was removed from the tree.
+     */
+    public static boolean isObsolete(int version) {
+        return (version & OBSOLETE) != 0;
+    }
+
+    /**
+     * Check that a node did not change since its version was read, which makes every read
+     * done in between valid.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param version The version read before reading the node.
+     * @return true if the node is unchanged.
+     */
+    public static boolean validate(SegmentedBuffer buffer, int offset, int version) {
+        VarHandle.acquireFence();
+        return buffer.getIntVolatile(offset + VERSION_POSITION) == version;
+    }
+
+    /**
+     * Take the latch of a node, but only if it is still at the given version. A latched node
+     * keeps its segment pinned, so it stays in memory while it is changed.
+     *
+     * @return true if the latch was taken.
+     */
+    public static boolean tryUpgrade(SegmentedBuffer buffer, int offset, int version) {
+        buffer.pin(offset);
+        if (buffer.compareAndSetInt(offset + VERSION_POSITION, version, version | LOCKED)) {
+            return true;
+        }
+        buffer.unpin(offset);
+        return false;
+    }
+
+    /**
+     * Take the latch of a node, waiting for the current holder to release it.
+     *
+     * @return The version the latch was taken at.
+     */
+    public static int lock(SegmentedBuffer buffer, int offset) {
+        buffer.pin(offset);
+        int spins = 0;
+        while (true) {
+            int version = buffer.getIntVolatile(offset + VERSION_POSITION);
+            if ((version & LOCKED) == 0 && buffer.compareAndSetInt(offset + VERSION_POSITION, version, version | LOCKED)) {
+                return version;
+            }
+            spin(++spins);
+        }
+    }
+
+    /**
+     * Release the latch of a node after changing it, which invalidates optimistic readers.
+     */
+    public static void unlock(SegmentedBuffer buffer, int offset) {
+        int version = buffer.getIntVolatile(offset + VERSION_POSITION);
+        buffer.setIntRelease(offset + VERSION_POSITION, (version + VERSION_INCREMENT) & ~LOCKED);
+        buffer.unpin(offset);
+    }
+
+    /**
+     * Release the latch of a node that was removed from the tree; readers that reach it restart.
+     */
+    public static void unlockObsolete(SegmentedBuffer buffer, int offset) {
+        int version = buffer.getIntVolatile(offset + VERSION_POSITION);
+        buffer.setIntRelease(offset + VERSION_POSITION, ((version + VERSION_INCREMENT) & ~LOCKED) | OBSOLETE);
+        buffer.unpin(offset);
+    }
+
+    /**
+     * Release the latch of a node that was not changed, restoring the version it was taken at.
+     */
+    public static void unlockUnchanged(SegmentedBuffer buffer, int offset, int version) {
+        buffer.setIntRelease(offset + VERSION_POSITION, version);
+        buffer.unpin(offset);
+    }
+
+    /**
+     * Give a freshly allocated block a new, unlatched version. The version keeps counting up
+     * from the one the block had before it was freed, so stale readers still notice the change.
+     * The latch is taken first, because a writer that lost a race for the old node may still
+     * be holding it briefly.
+     */
+    public static void initVersion(SegmentedBuffer buffer, int offset) {
+        int version = lock(buffer, offset);
+        unlockUnchanged(buffer, offset, (version & ~(LOCKED | OBSOLETE)) + VERSION_INCREMENT);
+    }
+
+    /**
+     * Reset the version of a block no thread can be holding: one that was never handed out
+     * before, or any node while a tree is being recovered. A latch left behind by a crash is dropped.
+     */
+    public static void resetVersion(SegmentedBuffer buffer, int offset) {
+        buffer.pin(offset);
+        buffer.setIntRelease(offset + VERSION_POSITION, 0);
+        buffer.unpin(offset);
+    }
+
+    private static void spin(int spins) {
+        if (spins % SPINS_BEFORE_YIELD == 0) {
+            Thread.yield();
         } else {
-            // Size calculation for internal nodes
-            nodeSize = (maxKeys * keySize) + (order * offsetSize) + (offsetSize * (maxKeys + 1));
+            Thread.onSpinWait();
         }
+    }
 
-        return nodeSize;
+    /**
+     * Read the length of the shared prefix of a node, kept within the key width so that a torn
+     * read during an optimistic traversal cannot send the reader beyond the node.
+     */
+    private static int prefixLength(SegmentedBuffer buffer, int offset, int keyWidth) {
+        return Math.min(Math.max(buffer.getInt(offset + PREFIX_LENGTH_POSITION), 0), keyWidth);
     }
 
-    public static BPlusTreeNode deserialize(ByteBuffer buffer, int offset,int order) {
-        //System.out.println("deserializing node at offset " + offset);
+    private static int stride(SegmentedBuffer buffer, int offset, int keyWidth, int prefixLength) {
+        return Math.min(Math.max(buffer.getInt(offset + STRIDE_POSITION), 0), keyWidth - prefixLength);
+    }
 
-        buffer.position(offset);
-        boolean isLeaf = buffer.get() == 1;
-        BPlusTreeNode node = new BPlusTreeNode(isLeaf, offset,order);
+    private static int prefixPosition(SegmentedBuffer buffer, int offset) {
+        return prefixPosition(buffer, offset, isLeaf(buffer, offset), keyCount(buffer, offset));
+    }
 
-        int keyCount = buffer.getInt();
+    /**
+     * @return The position of the shared prefix of the keys of a node, which the stored part
+     *         of every key follows.
+     */
+    private static int prefixPosition(SegmentedBuffer buffer, int offset, boolean isLeaf, int keyCount) {
+        return isLeaf ? offset + HEADER_SIZE : offset + HEADER_SIZE + (keyCount + 1) * OFFSET_SIZE;
+    }
+
+    private static boolean isZero(byte[] key, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (key[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int payloadPosition(int offset, int order, int keyWidth) {
+        return offset + HEADER_SIZE + (order - 1) * keyWidth;
+    }
+
+    private static int heapPosition(int offset, int order, int keyWidth) {
+        return payloadPosition(offset, order, keyWidth) + (order - 1) * SLOT_SIZE;
+    }
+
+    public static BPlusTreeNode deserialize(SegmentedBuffer buffer, int offset,int order, int keyWidth) {
+        boolean isLeaf = isLeaf(buffer, offset);
+        BPlusTreeNode node = new BPlusTreeNode(isLeaf, offset,order, keyWidth);
+
+        int keyCount = keyCount(buffer, offset);
+        int prefixLength = prefixLength(buffer, offset, keyWidth);
+        int stride = stride(buffer, offset, keyWidth, prefixLength);
+        int prefix = prefixPosition(buffer, offset, isLeaf, keyCount);
+        if (keyCount > 0) {
+            buffer.get(prefix, node.keys, 0, prefixLength);
+        }
         for (int i = 0; i < keyCount; i++) {
-            node.keys.add(buffer.getInt());
+            int at = i * keyWidth;
+            if (i > 0) {
+                System.arraycopy(node.keys, 0, node.keys, at, prefixLength);
+            }
+            // The zeros that end the key are already there
+            buffer.get(prefix + prefixLength + i * stride, node.keys, at + prefixLength, stride);
         }
+        node.keyCount = keyCount;
 
         if (isLeaf) {
+            node.next = nextLeaf(buffer, offset);
+            node.previous = previousLeaf(buffer, offset);
             for (int i = 0; i < keyCount; i++) {
-                int valueLength = buffer.getInt();
-                byte[] valueBytes = new byte[valueLength];
-                buffer.get(valueBytes);
-                node.values.add(new String(valueBytes));
+                byte[] value = valueBytesAt(buffer, offset, order, keyWidth, i);
+                node.values[i] = value;
+                int slot = payloadPosition(offset, order, keyWidth) + i * SLOT_SIZE;
+                if (buffer.getInt(slot) < 0) {
+                    node.overflowValues.add(new OverflowValue(value, buffer.getInt(slot + 4), ~buffer.getInt(slot)));
+                }
             }
         } else {
             for (int i = 0; i <= keyCount; i++) {
-                node.childrenOffsets.add(buffer.getInt());
+                node.childrenOffsets[i] = childAt(buffer, offset, order, keyWidth, i);
             }
+            node.childCount = keyCount + 1;
         }
-
-            //System.out.println(node);
-
-
         return node;
     }
 
-    public void serialize(ByteBuffer buffer) {
-        //System.out.print("Serializing node with " + keys.size() + " keys at offset " + buffer.position());
-        buffer.put((byte) (isLeaf ? 1 : 0));
-        buffer.putInt(keys.size());
-        for (int key : keys) {
-            buffer.putInt(key);
+    /**
+     * Write the node into its page at {@link #offset}, compressing its keys, and then its
+     * checksum. Only absolute puts are used, so the position of the buffer is left untouched.
+     * <p>
+     * Leaf values are packed into the heap in key order; a value larger than
+     * {@link #MAX_INLINE_SIZE} or than the heap space left goes to overflow pages. A value
+     * that was already in overflow pages when the leaf was read keeps its chain, and the
+     * chains of values the leaf no longer holds are freed.
+     *
+     * @param buffer The buffer to write to.
+     * @param overflow The overflow pages of the tree.
+     * @return true if overflow pages were allocated or freed, so the allocation state changed.
+     * @throws IllegalStateException If the node does not fit, see {@link #fits()}, or the
+     *                               overflow pages cannot be allocated, in which case nothing
+     *                               has been written.
+     */
+    public boolean serialize(SegmentedBuffer buffer, OverflowPages overflow) {
+        int prefixLength = commonPrefix();
+        int stride = stride(prefixLength);
+        int prefix = isLeaf ? offset + HEADER_SIZE : offset + HEADER_SIZE + childCount * OFFSET_SIZE;
+        int keysEnd = prefix + prefixLength + keyCount * stride;
+        if (keysEnd > (isLeaf ? payloadPosition(offset, order, keyWidth) : getEndOffset()) || (!isLeaf && childCount != keyCount + 1)) {
+            throw new IllegalStateException("Node at " + offset + " does not fit its page");
+        }
+        boolean overflowChanged = false;
+        int[] lengths = null;
+        int[] locations = null;
+        if (isLeaf) {
+            // Place every value before writing anything, so a failed allocation leaves the node intact
+            lengths = new int[keyCount];
+            locations = new int[keyCount];
+            List<OverflowValue> unclaimed = overflowValues.isEmpty() ? overflowValues : new ArrayList<>(overflowValues);
+            List<OverflowValue> placed = new ArrayList<>();
+            List<OverflowValue> written = new ArrayList<>();
+            int heap = heapPosition(0, order, keyWidth);
+            int heapEnd = heap + heapSize(order);
+            try {
+                for (int i = 0; i < keyCount; i++) {
+                    byte[] value = values[i];
+                    if (value.length <= MAX_INLINE_SIZE && value.length <= heapEnd - heap) {
+                        lengths[i] = value.length;
+                        locations[i] = heap;
+                        heap += value.length;
+                        continue;
+                    }
+                    OverflowValue overflowValue = claim(unclaimed, value);
+                    if (overflowValue == null) {
+                        overflowValue = new OverflowValue(value, overflow.write(value), value.length);
+                        written.add(overflowValue);
+                    }
+                    placed.add(overflowValue);
+                    lengths[i] = ~overflowValue.length;
+                    locations[i] = overflowValue.firstPage;
+                }
+            } catch (RuntimeException e) {
+                for (OverflowValue overflowValue : written) {
+                    overflow.free(overflowValue.firstPage, overflowValue.length);
+                }
+                throw e;
+            }
+            for (OverflowValue overflowValue : unclaimed) {
+                overflow.free(overflowValue.firstPage, overflowValue.length);
+            }
+            overflowChanged = !written.isEmpty() || !unclaimed.isEmpty();
+            overflowValues = placed;
+        }
+
+        buffer.put(offset + LEAF_FLAG_POSITION, (byte) (isLeaf ? 1 : 0));
+        buffer.putInt(offset + KEY_COUNT_POSITION, keyCount);
+        buffer.putInt(offset + NEXT_LEAF_POSITION, next);
+        buffer.putInt(offset + PREVIOUS_LEAF_POSITION, previous);
+        buffer.putInt(offset + PREFIX_LENGTH_POSITION, prefixLength);
+        buffer.putInt(offset + STRIDE_POSITION, stride);
+        if (keyCount > 0) {
+            buffer.put(prefix, keys, 0, prefixLength);
+        }
+        for (int i = 0; i < keyCount; i++) {
+            buffer.put(prefix + prefixLength + i * stride, keys, i * keyWidth + prefixLength, stride);
         }
 
+        int payload = payloadPosition(offset, order, keyWidth);
         if (isLeaf) {
-            for (String value : values) {
-                byte[] valueBytes = value.getBytes();
-                buffer.putInt(valueBytes.length);
-                buffer.put(valueBytes);
+            for (int i = 0; i < keyCount; i++) {
+                int slot = payload + i * SLOT_SIZE;
+                buffer.putInt(slot, lengths[i]);
+                buffer.putInt(slot + 4, locations[i]);
+                if (lengths[i] >= 0) {
+                    buffer.put(offset + locations[i], values[i]);
+                }
             }
         } else {
-            for (int offset : childrenOffsets) {
-                buffer.putInt(offset);
+            for (int i = 0; i < childCount; i++) {
+                buffer.putInt(offset + HEADER_SIZE + i * OFFSET_SIZE, childrenOffsets[i]);
             }
         }
-        //System.out.println(" serializing end at offset " +buffer.position() +" and the end buffer offset is " + getEndOffset());
+        buffer.putInt(offset + CHECKSUM_POSITION, checksum(buffer, offset, order, keyWidth));
+        return overflowChanged;
+    }
+    /**
+     * Hand the overflow chains of values that moved from one leaf to another over to the
+     * receiving leaf, so the values are not copied into new chains. Call it after moving the
+     * values and before serializing either leaf.
+     *
+     * @param from The leaf the values were taken from.
+     * @param to The leaf the values were added to.
+     */
+    public static void moveOverflowValues(BPlusTreeNode from, BPlusTreeNode to) {
+        Iterator<OverflowValue> candidates = from.overflowValues.iterator();
+        while (candidates.hasNext()) {
+            OverflowValue candidate = candidates.next();
+            if (occurrences(to, candidate.value) > owned(to.overflowValues, candidate.value)
+                    && occurrences(from, candidate.value) < owned(from.overflowValues, candidate.value)) {
+                candidates.remove();
+                to.overflowValues.add(candidate);
+            }
+        }
+    }
 
-           // System.out.println(this);
+    /**
+     * Free the overflow chains of a leaf that is removed from the tree without being written again.
+     *
+     * @param overflow The overflow pages of the tree.
+     * @return true if any chain was freed.
+     */
+    public boolean freeOverflowValues(OverflowPages overflow) {
+        boolean freed = !overflowValues.isEmpty();
+        for (OverflowValue overflowValue : overflowValues) {
+            overflow.free(overflowValue.firstPage, overflowValue.length);
+        }
+        overflowValues = new ArrayList<>();
+        return freed;
+    }
 
+    /**
+     * Take the chain of a value out of a list, matching by identity since only the very
+     * array that was read from a chain is known to hold its bytes.
+     */
+    private static OverflowValue claim(List<OverflowValue> overflowValues, byte[] value) {
+        for (Iterator<OverflowValue> candidates = overflowValues.iterator(); candidates.hasNext(); ) {
+            OverflowValue candidate = candidates.next();
+            if (candidate.value == value) {
+                candidates.remove();
+                return candidate;
+            }
+        }
+        return null;
     }
-}
 
+    private static int occurrences(BPlusTreeNode node, byte[] value) {
+        int count = 0;
+        for (int i = 0; i < node.keyCount; i++) {
+            if (node.values[i] == value) {
+                count++;
+            }
+        }
+        return count;
+    }
 
+    private static int owned(List<OverflowValue> overflowValues, byte[] value) {
+        int count = 0;
+        for (OverflowValue candidate : overflowValues) {
+            if (candidate.value == value) {
+                count++;
+            }
+        }
+        return count;
+    }
 
+    /**
+     * A leaf value stored in a chain of overflow pages.
+     */
+    static final class OverflowValue {
+        final byte[] value;
+        final int firstPage;
+        final int length;
 
+        OverflowValue(byte[] value, int firstPage, int length) {
+            this.value = value;
+            this.firstPage = firstPage;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of the values of frequently searched keys in front of a {@link BPlusTree}, see
+ * {@link BPlusTree#enableFrontCache(int)}. A hit returns the cached value without touching the
+ * tree.
+ * <p>
+ * Admission and eviction follow W-TinyLFU. A new entry goes to a small LRU window, about one
+ * percent of the cache. An entry that falls out of the window only enters the main space, a
+ * segmented LRU of probation and protected entries, if a count-min sketch of recent accesses
+ * says its key is wanted more often than that of the entry it would evict. A burst of one-off
+ * lookups therefore cannot flush the hot keys. The sketch halves its counts every ten times
+ * the capacity additions, so it follows a change in what is hot.
+ * <p>
+ * Entries live in a {@link ConcurrentHashMap}, so hits take no lock, and are looked up through a
+ * reused per-thread probe rather than a new key. Hits and admissions are recorded in lossy
+ * buffers, one of each per stripe of threads, and replayed into the policy under a lock by
+ * whichever thread finds it free, so neither waits for the lock. A hit that finds its buffer
+ * full is not recorded at all, and a miss that finds its buffer full does not cache its value.
+ * <p>
+ * Writers keep the cache exact through stamps, one per stripe of keys. A writer bumps the
+ * count of writers in the low bits of its key's stamp before it changes the tree, and moves the
+ * stamp to a new version when it is done. A miss only adds the value it read from the tree if
+ * no writer was active and the stamp stayed the same meanwhile, and the entry keeps that
+ * stamp. A hit only counts while the entry's stamp is still current, so an entry is stale from
+ * the moment a write to its stripe begins, and the writer removes it when it is done.
+ */
+final class FrontCache<V> {
+    private static final long WRITER = 1; // Count of an active writer in the low bits of a stamp
+    private static final long WRITERS = 0xFFFF; // Bits of a stamp counting active writers
+    private static final long VERSION = 1L << 16; // Increment of the version of a stamp
+    private static final int MAX_STAMPS = 1 << 20; // About as many as entries, so a write rarely costs other keys a hit
+    private static final int MAX_BUFFERS = 8;
+    private static final int BUFFER_SIZE = 64; // Hits or admissions each buffer holds until drained
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    private final int capacity;
+    private final Function<byte[], V> loader; // Searches the tree on a miss
+    private final ConcurrentHashMap<Key, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps;
+    private final int stampMask;
+    private final ThreadLocal<Key> probes = ThreadLocal.withInitial(Key::new); // Look up keys without a new Key
+    private final EntryBuffer[] readBuffers; // Hits not replayed yet
+    private final EntryBuffer[] admissionBuffers; // Entries added to the map but not to the policy yet
+    private final int bufferMask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Policy, guarded by policyLock
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessOrder<V> window = new AccessOrder<>();
+    private final AccessOrder<V> probation = new AccessOrder<>();
+    private final AccessOrder<V> protectedOrder = new AccessOrder<>();
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int protectedCapacity;
+
+    /**
+     * @param capacity The largest number of entries to keep, 1 or more.
+     * @param loader Looks up the value of an encoded key in the tree, null if it is absent.
+     */
+    FrontCache(int capacity, Function<byte[], V> loader) {
+        this.capacity = capacity;
+        this.loader = loader;
+        int stampCount = Math.min(MAX_STAMPS, Integer.highestOneBit(Math.max(64, capacity) - 1) << 1);
+        this.stamps = new AtomicLongArray(stampCount);
+        this.stampMask = stampCount - 1;
+        int bufferCount = Math.min(MAX_BUFFERS, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+        this.readBuffers = new EntryBuffer[bufferCount];
+        this.admissionBuffers = new EntryBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            readBuffers[i] = new EntryBuffer();
+            admissionBuffers[i] = new EntryBuffer();
+        }
+        this.bufferMask = bufferCount - 1;
+        this.sketch = new FrequencySketch(capacity);
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = mainCapacity * 4 / 5;
+    }
+
+    /**
+     * Look a key up, in the cache first and in the tree on a miss.
+     *
+     * @param key The encoded key, which the caller may reuse; the cache keeps a copy of it.
+     * @return The value of the key, null if it is not in the tree.
+     */
+    V get(byte[] key) {
+        Key probe = probes.get().point(key);
+        int stripe = probe.hash & stampMask;
+        long stamp = stamps.get(stripe);
+        Entry<V> entry = entries.get(probe);
+        if (entry != null && entry.stamp == stamp) {
+            hits.increment();
+            recordHit(entry);
+            return entry.value;
+        }
+        misses.increment();
+        V value = loader.apply(key);
+        if (entry != null) {
+            // Written since it was cached, and its writer may not be done yet
+            remove(probe, entry);
+        }
+        if (value != null && (stamp & WRITERS) == 0 && stamps.get(stripe) == stamp) {
+            add(new Key(key.clone(), probe.hash), value, stamp);
+        }
+        return value;
+    }
+
+    /**
+     * Mark a key as being written, before the tree changes. Every call must be followed by
+     * {@link #endWrite(byte[])} for the same key, even if the write fails.
+     *
+     * @param key The encoded key.
+     */
+    void beginWrite(byte[] key) {
+        stamps.getAndAdd(Key.hash(key) & stampMask, WRITER);
+    }
+
+    /**
+     * Mark a write of a key as done, after the tree changed, and drop the key's entry.
+     *
+     * @param key The encoded key.
+     */
+    void endWrite(byte[] key) {
+        Key probe = probes.get().point(key);
+        stamps.getAndAdd(probe.hash & stampMask, VERSION - WRITER);
+        Entry<V> entry = entries.get(probe);
+        if (entry != null) {
+            remove(probe, entry);
+        }
+    }
+
+    /**
+     * Drop every entry after the tree changed as a whole. No writer may be active.
+     */
+    void invalidateAll() {
+        for (int i = 0; i < stamps.length(); i++) {
+            stamps.getAndAdd(i, VERSION);
+        }
+        for (Map.Entry<Key, Entry<V>> entry : entries.entrySet()) {
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of entries, which may briefly exceed the capacity while misses add theirs.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private void recordHit(Entry<V> entry) {
+        EntryBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & bufferMask];
+        long pending = buffer.writes.get() - buffer.reads;
+        buffer.offer(entry);
+        if (pending >= BUFFER_SIZE / 2) {
+            tryDrainBuffers();
+        }
+    }
+
+    /**
+     * Add the entry of a miss to the map, and leave it to the next drain to add it to the policy.
+     */
+    private void add(Key key, V value, long stamp) {
+        Entry<V> entry = new Entry<>(key, value, stamp);
+        if (entries.putIfAbsent(key, entry) != null) {
+            return; // Another miss of the same key got there first
+        }
+        if (!admissionBuffers[(int) Thread.currentThread().getId() & bufferMask].offer(entry)) {
+            // The policy is behind, so the key stays uncached rather than the miss waiting for it
+            entries.remove(key, entry);
+        }
+        tryDrainBuffers();
+    }
+
+    /**
+     * Replay the recorded admissions and hits into the policy, unless another thread is at it.
+     */
+    private void tryDrainBuffers() {
+        if (policyLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Put an entry of a miss into the window, which pushes its least recent entries out into
+     * the main space or out of the cache. Must hold the policy lock.
+     */
+    private void admit(Entry<V> entry) {
+        sketch.increment(entry.key.hash);
+        if (entry.queue != Entry.NEW) {
+            return; // Removed by a writer already
+        }
+        entry.queue = Entry.WINDOW;
+        window.linkLast(entry);
+        while (window.size > windowCapacity) {
+            Entry<V> candidate = window.first();
+            window.unlink(candidate);
+            candidate.queue = Entry.PROBATION;
+            probation.linkLast(candidate);
+            if (probation.size + protectedOrder.size > mainCapacity) {
+                evictFromMain(candidate);
+            }
+        }
+    }
+
+    /**
+     * Admit an entry that left the window into the main space if its key is wanted more often
+     * than the entry that would have to make room for it, or else evict it.
+     */
+    private void evictFromMain(Entry<V> candidate) {
+        Entry<V> victim = probation.first();
+        if (victim == candidate) {
+            victim = protectedOrder.first();
+        }
+        if (victim == null || sketch.frequency(candidate.key.hash) <= sketch.frequency(victim.key.hash)) {
+            victim = candidate;
+        }
+        unlink(victim);
+        entries.remove(victim.key, victim);
+    }
+
+    private void remove(Key key, Entry<V> entry) {
+        if (!entries.remove(key, entry)) {
+            return;
+        }
+        policyLock.lock();
+        try {
+            unlink(entry);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Take an entry out of its access order for good. Must hold the policy lock.
+     */
+    private void unlink(Entry<V> entry) {
+        switch (entry.queue) {
+            case Entry.WINDOW:
+                window.unlink(entry);
+                break;
+            case Entry.PROBATION:
+                probation.unlink(entry);
+                break;
+            case Entry.PROTECTED:
+                protectedOrder.unlink(entry);
+                break;
+            default:
+                break;
+        }
+        entry.queue = Entry.DEAD;
+    }
+
+    /**
+     * Replay the recorded admissions, then the recorded hits, into the policy. Must hold the
+     * policy lock.
+     */
+    private void drainBuffers() {
+        for (EntryBuffer buffer : admissionBuffers) {
+            for (Entry<V> entry; (entry = buffer.poll()) != null; ) {
+                admit(entry);
+            }
+        }
+        for (EntryBuffer buffer : readBuffers) {
+            for (Entry<V> entry; (entry = buffer.poll()) != null; ) {
+                onHit(entry);
+            }
+        }
+    }
+
+    /**
+     * Count a hit and move the entry up: to the end of its LRU order, and from probation to the
+     * protected segment, which makes room by demoting its least recent entry to probation.
+     */
+    private void onHit(Entry<V> entry) {
+        sketch.increment(entry.key.hash);
+        switch (entry.queue) {
+            case Entry.WINDOW:
+                window.moveToLast(entry);
+                break;
+            case Entry.PROBATION:
+                probation.unlink(entry);
+                entry.queue = Entry.PROTECTED;
+                protectedOrder.linkLast(entry);
+                if (protectedOrder.size > protectedCapacity) {
+                    Entry<V> demoted = protectedOrder.first();
+                    protectedOrder.unlink(demoted);
+                    demoted.queue = Entry.PROBATION;
+                    probation.linkLast(demoted);
+                }
+                break;
+            case Entry.PROTECTED:
+                protectedOrder.moveToLast(entry);
+                break;
+            default:
+                break; // Not added yet, or gone already
+        }
+    }
+
+    /**
+     * An encoded key with a hash that mixes every byte into every bit, since the low bits pick
+     * the stamp and the counters of the sketch. {@link Arrays#hashCode(byte[])} collides for
+     * keys a few bytes apart. The keys of entries never change; a probe is pointed at the
+     * bytes of each lookup of its thread and never stored.
+     */
+    private static final class Key {
+        byte[] bytes;
+        int hash;
+
+        /**
+         * Create a probe.
+         */
+        Key() {
+        }
+
+        Key(byte[] bytes, int hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+
+        /**
+         * Point a probe at the bytes of a key.
+         *
+         * @return The probe.
+         */
+        Key point(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = hash(bytes);
+            return this;
+        }
+
+        static int hash(byte[] bytes) {
+            long hash = bytes.length;
+            for (int i = 0; i < bytes.length; i++) {
+                hash = (hash << 8) | (bytes[i] & 0xFF);
+                if ((i & 7) == 7) {
+                    hash *= 0x9E3779B97F4A7C15L;
+                }
+            }
+            // The finalizer of MurmurHash3
+            hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+            hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            return (int) (hash ^ (hash >>> 33));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(bytes, ((Key) other).bytes);
+        }
+    }
+
+    private static final class Entry<V> {
+        static final int NEW = 0;
+        static final int WINDOW = 1;
+        static final int PROBATION = 2;
+        static final int PROTECTED = 3;
+        static final int DEAD = 4;
+
+        final Key key;
+        final V value;
+        final long stamp; // Stamp of the key's stripe the value was read under
+        int queue = NEW; // Where the entry is in the policy, guarded by the policy lock
+        Entry<V> previous;
+        Entry<V> next;
+
+        Entry(Key key, V value, long stamp) {
+            this.key = key;
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * A doubly linked LRU order of entries, least recently used first.
+     */
+    private static final class AccessOrder<V> {
+        private final Entry<V> head = new Entry<>(null, null, 0); // Sentinel
+        int size;
+
+        AccessOrder() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        Entry<V> first() {
+            return size == 0 ? null : head.next;
+        }
+
+        void linkLast(Entry<V> entry) {
+            entry.previous = head.previous;
+            entry.next = head;
+            head.previous.next = entry;
+            head.previous = entry;
+            size++;
+        }
+
+        void unlink(Entry<V> entry) {
+            entry.previous.next = entry.next;
+            entry.next.previous = entry.previous;
+            entry.previous = null;
+            entry.next = null;
+            size--;
+        }
+
+        void moveToLast(Entry<V> entry) {
+            unlink(entry);
+            linkLast(entry);
+        }
+    }
+
+    /**
+     * The hits or admissions of a stripe of threads waiting to be replayed into the policy.
+     * Threads claim a slot by advancing the write count and give up when the buffer is full,
+     * and the draining thread clears the slots it reads.
+     */
+    private static final class EntryBuffer {
+        final AtomicReferenceArray<Entry<?>> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        final AtomicLong writes = new AtomicLong();
+        volatile long reads; // Written under the policy lock only
+
+        /**
+         * @return false if the buffer was full, so the entry was not recorded.
+         */
+        boolean offer(Entry<?> entry) {
+            while (true) {
+                long claimed = writes.get();
+                if (claimed - reads >= BUFFER_SIZE) {
+                    return false;
+                }
+                if (writes.compareAndSet(claimed, claimed + 1)) {
+                    slots.lazySet((int) claimed & BUFFER_MASK, entry);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Take the next recorded entry. Must hold the policy lock.
+         *
+         * @return The entry, null if there is none or its thread has not stored it yet.
+         */
+        @SuppressWarnings("unchecked")
+        <V> Entry<V> poll() {
+            long next = reads;
+            if (next == writes.get()) {
+                return null;
+            }
+            int slot = (int) next & BUFFER_MASK;
+            Entry<V> entry = (Entry<V>) slots.get(slot);
+            if (entry == null) {
+                return null;
+            }
+            slots.lazySet(slot, null);
+            reads = next + 1;
+            return entry;
+        }
+    }
+
+    /**
+     * A count-min sketch of how often keys were accessed lately, with four 4-bit counters per
+     * key packed sixteen to a long. Counts stop at 15, and all of them are halved once the sketch
+     * has counted ten times as many accesses as the cache holds entries.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long HALF_MASK = 0x7777777777777777L; // Clears the bit shifted into each counter
+
+        private final long[] table;
+        private final int counterMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int longs = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            this.table = new long[longs];
+            this.counterMask = longs * 16 - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = counterIndex(hash, i);
+                int shift = (counter & 15) << 2;
+                if (((table[counter >>> 4] >>> shift) & 15) < 15) {
+                    table[counter >>> 4] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = counterIndex(hash, i);
+                frequency = Math.min(frequency, (int) (table[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        private int counterIndex(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & counterMask;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.example;
+
+/**
+ * Turns keys into fixed-width byte strings whose unsigned lexicographic order is the order of
+ * the keys. The tree stores only the encoded form and compares keys byte by byte straight in
+ * its buffer, so it never needs the key objects themselves to search.
+ *
+ * @param <K> The type of the keys.
+ * @see KeyCodecs
+ */
+public interface KeyCodec<K> {
+
+    /**
+     * @return The number of bytes of every encoded key.
+     */
+    int width();
+
+    /**
+     * Encode a key.
+     *
+     * @param key The key.
+     * @param target The array to write {@link #width()} bytes into.
+     * @param offset The position of the first byte in the array.
+     */
+    void encode(K key, byte[] target, int offset);
+
+    /**
+     * Decode a key.
+     *
+     * @param source The array holding the encoded key.
+     * @param offset The position of the first byte in the array.
+     * @return The key.
+     */
+    K decode(byte[] source, int offset);
+
+    /**
+     * Encode a key into a new array.
+     */
+    default byte[] encode(K key) {
+        byte[] encoded = new byte[width()];
+        encode(key, encoded, 0);
+        return encoded;
+    }
+}
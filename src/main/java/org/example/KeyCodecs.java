@@ -0,0 +1,161 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * The built-in {@link KeyCodec}s. Numbers are written big-endian with their sign bit flipped, so
+ * negative numbers sort before positive ones when the bytes are compared unsigned.
+ */
+public final class KeyCodecs {
+
+    private KeyCodecs() {
+    }
+
+    /**
+     * Ints, in numeric order.
+     */
+    public static final KeyCodec<Integer> INT = new KeyCodec<>() {
+        @Override
+        public int width() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(Integer key, byte[] target, int offset) {
+            putInt(target, offset, key ^ Integer.MIN_VALUE);
+        }
+
+        @Override
+        public Integer decode(byte[] source, int offset) {
+            return getInt(source, offset) ^ Integer.MIN_VALUE;
+        }
+    };
+
+    /**
+     * Longs, in numeric order.
+     */
+    public static final KeyCodec<Long> LONG = new KeyCodec<>() {
+        @Override
+        public int width() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Long key, byte[] target, int offset) {
+            putLong(target, offset, key ^ Long.MIN_VALUE);
+        }
+
+        @Override
+        public Long decode(byte[] source, int offset) {
+            return getLong(source, offset) ^ Long.MIN_VALUE;
+        }
+    };
+
+    /**
+     * Doubles, in the order of {@link Double#compare(double, double)}: negative infinity first,
+     * -0.0 before 0.0, and NaN last.
+     */
+    public static final KeyCodec<Double> DOUBLE = new KeyCodec<>() {
+        @Override
+        public int width() {
+            return Double.BYTES;
+        }
+
+        @Override
+        public void encode(Double key, byte[] target, int offset) {
+            long bits = Double.doubleToLongBits(key);
+            // Negative numbers sort in reverse, so all their bits are flipped, not just the sign
+            putLong(target, offset, bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+        }
+
+        @Override
+        public Double decode(byte[] source, int offset) {
+            long bits = getLong(source, offset);
+            return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+        }
+    };
+
+    /**
+     * UUIDs, in the unsigned order of their 16 bytes as defined by RFC 4122. This differs from
+     * {@link java.util.UUID#compareTo(java.util.UUID)}, which compares the two halves as signed numbers.
+     */
+    public static final KeyCodec<java.util.UUID> UUID = new KeyCodec<>() {
+        @Override
+        public int width() {
+            return 2 * Long.BYTES;
+        }
+
+        @Override
+        public void encode(java.util.UUID key, byte[] target, int offset) {
+            putLong(target, offset, key.getMostSignificantBits());
+            putLong(target, offset + Long.BYTES, key.getLeastSignificantBits());
+        }
+
+        @Override
+        public java.util.UUID decode(byte[] source, int offset) {
+            return new java.util.UUID(getLong(source, offset), getLong(source, offset + Long.BYTES));
+        }
+    };
+
+    /**
+     * Byte arrays of an exact width, in unsigned lexicographic order. This is the codec for
+     * composite keys: encode each component with an order-preserving layout and concatenate.
+     *
+     * @param width The length of every key.
+     * @return The codec.
+     */
+    public static KeyCodec<byte[]> fixedBytes(int width) {
+        if (width < 1) {
+            throw new IllegalArgumentException("Key width must be 1 or more");
+        }
+        return new KeyCodec<>() {
+            @Override
+            public int width() {
+                return width;
+            }
+
+            @Override
+            public void encode(byte[] key, byte[] target, int offset) {
+                if (key.length != width) {
+                    throw new IllegalArgumentException("Key must be " + width + " bytes, not " + key.length);
+                }
+                System.arraycopy(key, 0, target, offset, width);
+            }
+
+            @Override
+            public byte[] decode(byte[] source, int offset) {
+                return Arrays.copyOfRange(source, offset, offset + width);
+            }
+        };
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        for (int i = Integer.BYTES - 1; i >= 0; i--) {
+            target[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static int getInt(byte[] source, int offset) {
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = (value << 8) | (source[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] target, int offset, long value) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            target[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] source, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (source[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
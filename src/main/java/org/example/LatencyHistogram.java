@@ -0,0 +1,84 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in log-linear buckets, like HdrHistogram: every power of two is split into
+ * {@value #SUB_BUCKETS} equal buckets, so a recorded value is known to within about 3% while
+ * the whole range from a nanosecond to a quarter of an hour fits in about a thousand counters.
+ * <p>
+ * Recording takes no lock. Threads count into one of several stripes chosen by their id, so
+ * concurrent writers rarely share a counter, and a snapshot adds the stripes up.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BIT = 40; // Values of 2^40 ns and more share the last bucket
+    static final int BUCKETS = (MAX_BIT - SUB_BITS + 2) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = 8;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        int stripeCount = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+        this.stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * Count one latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        stripes[(int) Thread.currentThread().getId() & stripeMask].getAndIncrement(bucket(value));
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return The counts recorded so far.
+     */
+    TreeStats.Latency snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new TreeStats.Latency(counts, total.sum(), max.get());
+    }
+
+    static int bucket(long value) {
+        int bit = 63 - Long.numberOfLeadingZeros(value);
+        if (bit < SUB_BITS) {
+            return (int) value;
+        }
+        if (bit > MAX_BIT) {
+            return BUCKETS - 1;
+        }
+        int shift = bit - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return The largest value that falls into a bucket.
+     */
+    static long highestValue(int bucket) {
+        int shift = bucket / SUB_BUCKETS - 1;
+        if (shift < 0) {
+            return bucket;
+        }
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
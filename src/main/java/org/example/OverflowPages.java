@@ -0,0 +1,141 @@
+package org.example;
+
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Stores values that are too large for a leaf in chains of fixed-size overflow pages taken from
+ * an {@link ArenaAllocator}. Every page starts with the offset of the next page of its chain,
+ * followed by up to {@link #PAYLOAD_SIZE} bytes of the value. The leaf slot of the value keeps
+ * the offset of the first page and the length of the value, so a chain needs no terminator.
+ * <p>
+ * A chain is written completely before a leaf refers to it and is never changed afterwards;
+ * updating a value writes a new chain and frees the old one.
+ */
+public class OverflowPages {
+    public static final int PAGE_SIZE = 256;
+    private static final int NEXT_POSITION = 0;
+    private static final int PAYLOAD_POSITION = 4;
+    public static final int PAYLOAD_SIZE = PAGE_SIZE - PAYLOAD_POSITION;
+    private final ArenaAllocator allocator;
+    private final int sizeClass;
+
+    /**
+     * @param allocator The allocator pages are taken from.
+     * @param sizeClass The size class of {@link #PAGE_SIZE} byte blocks in the allocator.
+     */
+    public OverflowPages(ArenaAllocator allocator, int sizeClass) {
+        if (allocator.getBlockSize(sizeClass) != PAGE_SIZE) {
+            throw new IllegalArgumentException("Overflow pages need a size class of " + PAGE_SIZE + " bytes");
+        }
+        this.allocator = allocator;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * Write a value into a new chain of pages.
+     *
+     * @param value The encoded value, it must not be empty.
+     * @return The offset of the first page.
+     * @throws IllegalStateException If the address space of the buffer is exhausted, in which
+     *                               case no page is left allocated.
+     */
+    public int write(byte[] value) {
+        SegmentedBuffer buffer = allocator.getBuffer();
+        int first = ArenaAllocator.NIL;
+        int previous = ArenaAllocator.NIL;
+        try {
+            for (int start = 0; start < value.length; start += PAYLOAD_SIZE) {
+                int page = allocator.allocate(sizeClass);
+                buffer.pin(page);
+                buffer.putInt(page + NEXT_POSITION, ArenaAllocator.NIL);
+                buffer.put(page + PAYLOAD_POSITION, value, start, Math.min(PAYLOAD_SIZE, value.length - start));
+                buffer.unpin(page);
+                if (previous == ArenaAllocator.NIL) {
+                    first = page;
+                } else {
+                    buffer.pin(previous);
+                    buffer.putInt(previous + NEXT_POSITION, page);
+                    buffer.unpin(previous);
+                }
+                previous = page;
+            }
+        } catch (IllegalStateException e) {
+            // The pages written so far end with a NIL link, which stops the walk
+            if (first != ArenaAllocator.NIL) {
+                free(first, value.length);
+            }
+            throw e;
+        }
+        return first;
+    }
+
+    /**
+     * Return the pages of a chain to the allocator.
+     *
+     * @param first The offset of the first page.
+     * @param length The length of the value held by the chain.
+     */
+    public void free(int first, int length) {
+        SegmentedBuffer buffer = allocator.getBuffer();
+        int page = first;
+        for (int i = pages(length); i > 0 && page != ArenaAllocator.NIL; i--) {
+            int next = buffer.getInt(page + NEXT_POSITION);
+            allocator.deallocate(page, sizeClass);
+            page = next;
+        }
+    }
+
+    /**
+     * Read a value from its chain of pages. The number of pages read is bounded by the length,
+     * so a chain that was freed and reused while it is read yields wrong bytes or an exception,
+     * but never an endless walk.
+     *
+     * @param buffer The buffer holding the pages.
+     * @param first The offset of the first page.
+     * @param length The length of the value.
+     * @return The encoded value.
+     */
+    public static byte[] read(SegmentedBuffer buffer, int first, int length) {
+        return read(buffer, first, length, IntUnaryOperator.identity());
+    }
+
+    /**
+     * Read a value from its chain of pages, taking the contents of every page from elsewhere.
+     *
+     * @param buffer The buffer holding the pages.
+     * @param first The offset of the first page.
+     * @param length The length of the value.
+     * @param pages Maps the offset of every page to the offset its contents are read from.
+     * @return The encoded value.
+     */
+    public static byte[] read(SegmentedBuffer buffer, int first, int length, IntUnaryOperator pages) {
+        byte[] value = new byte[length];
+        int page = first;
+        for (int start = 0; start < length; start += PAYLOAD_SIZE) {
+            int at = pages.applyAsInt(page);
+            buffer.get(at + PAYLOAD_POSITION, value, start, Math.min(PAYLOAD_SIZE, length - start));
+            page = buffer.getInt(at + NEXT_POSITION);
+        }
+        return value;
+    }
+
+    /**
+     * Walk the pages of a chain, following as many links as the length of its value needs.
+     *
+     * @param buffer The buffer holding the pages.
+     * @param first The offset of the first page.
+     * @param length The length of the value.
+     * @param visitor Called with the offset of every page, returns false to stop the walk.
+     */
+    public static void forEachPage(SegmentedBuffer buffer, int first, int length, IntPredicate visitor) {
+        int page = first;
+        for (int i = pages(length); i > 0 && visitor.test(page); i--) {
+            page = buffer.getInt(page + NEXT_POSITION);
+        }
+    }
+
+    private static int pages(int length) {
+        return (length + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE;
+    }
+}
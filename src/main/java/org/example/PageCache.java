@@ -0,0 +1,257 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps a bounded number of the segments of a file in memory for a {@link SegmentedBuffer}, so
+ * a tree can be far larger than the memory given to it. Segments are read on first access with
+ * positioned reads, and when the cache is full the CLOCK algorithm picks one to evict: every
+ * access sets a reference bit, and the hand clears bits until it finds a segment nobody used
+ * since its last pass. Segments on every lookup path, like those holding the root and the
+ * internal nodes below it, therefore stay in memory, while cold leaves come and go. A dirty
+ * segment is written back before it is evicted, after a hook that lets a write-ahead log force
+ * the images of its blocks first. Segment 0, which holds the tree header, is never evicted.
+ * <p>
+ * A segment is never evicted while it is pinned, which writers do for every segment they change,
+ * and it turns dirty when it is unpinned, so a write-back racing a change in progress leaves the
+ * segment dirty for the next one.
+ * Readers do not pin: an evicted frame is never reused for another segment, so a reader still
+ * looking at it sees the segment as it was, and version validation, which reads the current
+ * frame, tells it that it must restart if anything changed since.
+ */
+final class PageCache {
+    private static final int EVICTING = -1; // Pin count of a segment being evicted
+    private static final VarHandle FLAGS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private final FileChannel channel;
+    private final int segmentShift;
+    private final int segmentSize;
+    private final int capacity; // Maximum number of resident segments, exceeded only while all are pinned
+    private final AtomicReferenceArray<ByteBuffer> frames; // The resident segments, null for the others
+    private final AtomicIntegerArray pins; // Pin count of every segment
+    private final byte[] referenced; // CLOCK reference bits, set by every access, accessed through FLAGS
+    private final byte[] dirty; // Segments changed since they were last written back, accessed through FLAGS
+    private volatile Runnable beforeWriteBack; // Run before a dirty segment is written back, null for none
+    private volatile int segmentCount;
+    private volatile int resident; // Changed only while holding this
+    private int hand = 1; // Next segment the CLOCK looks at, guarded by this
+
+    /**
+     * @param channel The file holding the segments.
+     * @param segmentShift The base-2 logarithm of the segment size.
+     * @param maxSegments The number of segments the address space allows.
+     * @param capacity The number of segments kept in memory, 2 or more.
+     */
+    PageCache(FileChannel channel, int segmentShift, int maxSegments, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("A page cache must hold at least 2 segments");
+        }
+        this.channel = channel;
+        this.segmentShift = segmentShift;
+        this.segmentSize = 1 << segmentShift;
+        this.capacity = capacity;
+        this.frames = new AtomicReferenceArray<>(maxSegments);
+        this.pins = new AtomicIntegerArray(maxSegments);
+        this.referenced = new byte[maxSegments];
+        this.dirty = new byte[maxSegments];
+    }
+
+    /**
+     * Run a hook before every write-back of a dirty segment, from eviction as well as from
+     * {@link #force()}. A segment stays dirty and in memory if the hook throws.
+     */
+    void beforeWriteBack(Runnable hook) {
+        this.beforeWriteBack = hook;
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of segments currently in memory.
+     */
+    int resident() {
+        return resident;
+    }
+
+    /**
+     * Get the frame of a segment, reading it from the file if it is not in memory.
+     *
+     * @param index The index of the segment.
+     */
+    ByteBuffer frame(int index) {
+        ByteBuffer frame = frames.get(index);
+        if (frame == null) {
+            frame = load(index);
+        }
+        // Checked first, so hits on a hot segment do not keep writing its cache line
+        if ((byte) FLAGS.getOpaque(referenced, index) == 0) {
+            FLAGS.setOpaque(referenced, index, (byte) 1);
+        }
+        return frame;
+    }
+
+    /**
+     * Keep a segment in memory until it is unpinned. Waits while the segment is being evicted.
+     */
+    void pin(int index) {
+        while (true) {
+            int pinned = pins.get(index);
+            if (pinned >= 0 && pins.compareAndSet(index, pinned, pinned + 1)) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Release a pin after changing the segment, which marks it dirty. The mark comes before the
+     * pin is released, so an eviction that finds the segment unpinned also finds it dirty.
+     */
+    void unpin(int index) {
+        FLAGS.setVolatile(dirty, index, (byte) 1);
+        if (pins.decrementAndGet(index) == 0 && resident > capacity) {
+            // The cache grew past its capacity while every segment was pinned
+            shrink();
+        }
+    }
+
+    private synchronized void shrink() {
+        while (resident > capacity && evictOne()) {
+            // Keep evicting
+        }
+    }
+
+    /**
+     * Append a new, empty segment. It is dirty until it is written to the file for the first time.
+     */
+    synchronized void grow() {
+        int index = segmentCount;
+        if (index == frames.length()) {
+            throw new IllegalStateException("SegmentedBuffer address space exhausted");
+        }
+        makeRoom();
+        frames.set(index, ByteBuffer.allocate(segmentSize).order(SegmentedBuffer.FILE_BYTE_ORDER));
+        FLAGS.setOpaque(referenced, index, (byte) 1);
+        FLAGS.setVolatile(dirty, index, (byte) 1);
+        resident++;
+        segmentCount = index + 1;
+    }
+
+    /**
+     * Take over the segments a file already holds, reading none of them but the first.
+     */
+    synchronized void open(int existing) {
+        segmentCount = existing;
+        load(0);
+    }
+
+    private synchronized ByteBuffer load(int index) {
+        ByteBuffer frame = frames.get(index);
+        if (frame != null) {
+            return frame;
+        }
+        makeRoom();
+        frame = ByteBuffer.allocate(segmentSize).order(SegmentedBuffer.FILE_BYTE_ORDER);
+        long position = (long) index << segmentShift;
+        try {
+            // A segment that was never written back reads as zeros past the end of the file
+            while (frame.hasRemaining() && channel.read(frame, position + frame.position()) >= 0) {
+                // Keep reading until the segment is complete or the file ends
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read segment " + index, e);
+        }
+        frame.clear();
+        frames.set(index, frame);
+        resident++;
+        return frame;
+    }
+
+    /**
+     * Evict segments until there is room for one more, as long as there are unpinned ones.
+     */
+    private void makeRoom() {
+        while (resident >= capacity && evictOne()) {
+            // Keep evicting
+        }
+    }
+
+    private boolean evictOne() {
+        int count = segmentCount;
+        // Two rounds clear every reference bit, so only pinned segments can stop the hand
+        for (int scanned = 0; scanned < 2 * count; scanned++) {
+            int index = hand;
+            hand = index + 1 < count ? index + 1 : 1;
+            if (index == 0 || frames.get(index) == null) {
+                continue;
+            }
+            if ((byte) FLAGS.getOpaque(referenced, index) != 0) {
+                FLAGS.setOpaque(referenced, index, (byte) 0);
+                continue;
+            }
+            if (!pins.compareAndSet(index, 0, EVICTING)) {
+                continue;
+            }
+            try {
+                writeBack(index);
+                frames.set(index, null);
+                resident--;
+            } finally {
+                pins.set(index, 0);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void writeBack(int index) {
+        if ((byte) FLAGS.getVolatile(dirty, index) == 0) {
+            return;
+        }
+        Runnable hook = beforeWriteBack;
+        if (hook != null) {
+            hook.run();
+        }
+        // Cleared first, so a writer that unpins while the segment is written keeps it dirty
+        FLAGS.setVolatile(dirty, index, (byte) 0);
+        ByteBuffer frame = frames.get(index).duplicate();
+        frame.clear();
+        long position = (long) index << segmentShift;
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame, position + frame.position());
+            }
+        } catch (IOException e) {
+            FLAGS.setVolatile(dirty, index, (byte) 1);
+            throw new UncheckedIOException("Failed to write segment " + index, e);
+        }
+    }
+
+    /**
+     * Write every dirty segment back to the file and force the file to the storage device.
+     */
+    synchronized void force() {
+        for (int index = 0; index < segmentCount; index++) {
+            if (frames.get(index) != null) {
+                writeBack(index);
+            }
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to force the tree file", e);
+        }
+    }
+}
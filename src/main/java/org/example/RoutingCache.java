@@ -0,0 +1,193 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Decoded copies of the internal nodes that lock-free descents pass through, keyed by offset.
+ * Routing a key through a node in the buffer reads the header, compares the shared prefix and
+ * binary searches the stored separators with a bounds-checked comparison per step; the same few
+ * hundred upper nodes are routed through on every search. A decoded node keeps the first eight
+ * bytes of every separator after the prefix packed in a {@code long[]}, eight to a cache line,
+ * so its search compares two longs per step without branching, and its children in an
+ * {@code int[]}.
+ * <p>
+ * A decoded node is only used at the version it was decoded at. Every change to a node moves
+ * its version on, so a stale copy is never used, and rewriting or freeing a node also drops
+ * its copy. The cache is direct mapped, and a node only displaces the copy of a deeper node,
+ * so the upper levels stay pinned. The nodes of a level that does not fit, usually the lowest
+ * internal one, keep the slots they took first, and the others are routed in the buffer as
+ * before rather than decoded over and over. Copies are immutable and published through final
+ * fields, so the slots are plain array elements.
+ */
+final class RoutingCache {
+    private static final int SLOT_BITS = 14;
+
+    private final Node[] slots = new Node[1 << SLOT_BITS];
+
+    /**
+     * Find the decoded copy of an internal node, decoding the node if there is no copy at its
+     * version and it may take its slot.
+     *
+     * @param buffer The buffer holding the node.
+     * @param offset The offset of the node.
+     * @param order The order of the tree.
+     * @param keyWidth The length of every encoded key.
+     * @param version The stable version of the node.
+     * @param depth The number of levels above the node.
+     * @return The decoded node, or null if the node is not cached or changed while it was
+     *         decoded; route the key in the buffer then.
+     */
+    Node get(SegmentedBuffer buffer, int offset, int order, int keyWidth, int version, int depth) {
+        int slot = slot(offset);
+        Node node = slots[slot];
+        if (node != null && node.offset == offset && node.version == version) {
+            return node;
+        }
+        if (node != null && node.offset != offset && node.depth <= depth) {
+            return null;
+        }
+        Node decoded = BPlusTreeNode.decodeRouting(buffer, offset, order, keyWidth, version, depth);
+        if (!BPlusTreeNode.validate(buffer, offset, version)) {
+            return null;
+        }
+        slots[slot] = decoded;
+        return decoded;
+    }
+
+    /**
+     * Drop the copy of a node that is being rewritten.
+     */
+    void invalidate(int offset) {
+        int slot = slot(offset);
+        Node node = slots[slot];
+        if (node != null && node.offset == offset) {
+            slots[slot] = null;
+        }
+    }
+
+    /**
+     * Drop every copy, for when the whole tree is replaced.
+     */
+    void clear() {
+        Arrays.fill(slots, null);
+    }
+
+    private static int slot(int offset) {
+        return (offset * 0x9E3779B9) >>> (Integer.SIZE - SLOT_BITS);
+    }
+
+    /**
+     * An internal node as it was at one version: its shared prefix, the separators after the
+     * prefix split into their first eight bytes and the rest, and its children.
+     */
+    static final class Node {
+        final int offset;
+        final int version;
+        final int depth;
+        private final int keyCount;
+        private final byte[] prefix;
+        private final int stride;
+        private final int headLength; // Bytes of a separator after the prefix kept in its head
+        private final long[] heads; // Big-endian, zero padded, sign bit flipped so that signed order is byte order
+        private final byte[] tails; // The bytes of every separator after its head, null if none
+        private final int[] children;
+
+        /**
+         * @param suffixes The stored part of every separator after the prefix, {@code stride} bytes each.
+         */
+        Node(int offset, int version, int depth, int keyCount, byte[] prefix, int stride, byte[] suffixes, int[] children) {
+            this.offset = offset;
+            this.version = version;
+            this.depth = depth;
+            this.keyCount = keyCount;
+            this.prefix = prefix;
+            this.stride = stride;
+            this.headLength = Math.min(stride, Long.BYTES);
+            this.heads = new long[keyCount];
+            int tailLength = stride - headLength;
+            this.tails = tailLength == 0 ? null : new byte[keyCount * tailLength];
+            for (int i = 0; i < keyCount; i++) {
+                heads[i] = BPlusTreeNode.keyHead(suffixes, i * stride, headLength) ^ Long.MIN_VALUE;
+                if (tails != null) {
+                    System.arraycopy(suffixes, i * stride + headLength, tails, i * tailLength, tailLength);
+                }
+            }
+            this.children = children;
+        }
+
+        int keyCount() {
+            return keyCount;
+        }
+
+        int child(int index) {
+            return children[index];
+        }
+
+        /**
+         * Search the separators for the index of the child that covers a key, as
+         * {@link BPlusTreeNode#childIndex(SegmentedBuffer, int, int, byte[])} does in the buffer.
+         * Only separators whose heads equal that of the key compare their tails.
+         *
+         * @param key The encoded key to route.
+         */
+        int childIndex(byte[] key) {
+            int prefixLength = prefix.length;
+            int comparison = Arrays.compareUnsigned(prefix, 0, prefixLength, key, 0, prefixLength);
+            if (comparison != 0) {
+                return comparison > 0 ? 0 : keyCount;
+            }
+            long head = BPlusTreeNode.keyHead(key, prefixLength, headLength) ^ Long.MIN_VALUE;
+            // Upper bound: the number of separators that are <= key, see BPlusTreeNode.childIndex
+            int high = head == Long.MAX_VALUE ? keyCount : countBelow(head + 1);
+            if (tails == null || high == 0 || heads[high - 1] != head) {
+                return high;
+            }
+            int tailFrom = prefixLength + headLength;
+            int tailLength = stride - headLength;
+            int low = countBelow(head);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int tail = mid * tailLength;
+                if (Arrays.compareUnsigned(tails, tail, tail + tailLength, key, tailFrom, tailFrom + tailLength) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Count the heads below a bound. Every step halves the range by a conditional move
+         * rather than a branch, so the search takes as many steps as the bits of the key count
+         * and never stalls on a mispredicted comparison.
+         */
+        private int countBelow(long bound) {
+            int base = 0;
+            int remaining = keyCount;
+            while (remaining > 1) {
+                int half = remaining >>> 1;
+                base = heads[base + half] < bound ? base + half : base;
+                remaining -= half;
+            }
+            return keyCount == 0 || heads[base] >= bound ? base : base + 1;
+        }
+
+        /**
+         * Copy a separator into an existing array at the full key width.
+         */
+        void copyKey(int index, byte[] target) {
+            int prefixLength = prefix.length;
+            System.arraycopy(prefix, 0, target, 0, prefixLength);
+            long head = heads[index] ^ Long.MIN_VALUE;
+            for (int i = 0; i < headLength; i++) {
+                target[prefixLength + i] = (byte) (head >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+            }
+            int tailLength = stride - headLength;
+            if (tails != null) {
+                System.arraycopy(tails, index * tailLength, target, prefixLength + headLength, tailLength);
+            }
+            Arrays.fill(target, prefixLength + stride, target.length, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * A byte store made of a chain of equally sized segments that grows one segment at a time.
+ * <p>
+ * Addresses are plain ints: the high bits select the segment and the low {@code segmentShift}
+ * bits are the position inside it. Existing segments never move, so growing the store copies
+ * nothing and every address stays valid. Values must not straddle two segments; the
+ * {@link ArenaAllocator} guarantees that for the blocks it hands out.
+ * <p>
+ * Segments are allocated on the heap, off-heap with {@link ByteBuffer#allocateDirect(int)},
+ * mapped from a file, or read from a file into a bounded {@link PageCache}. In-memory segments use
+ * the native byte order; file segments use {@link #FILE_BYTE_ORDER} so files stay portable
+ * between machines. Writers must {@link #pin(int)} a cached segment while they change it.
+ * <p>
+ * Every access is absolute, nothing depends on the position of a buffer, so any number of
+ * threads may read and write concurrently. Ints at 4-byte aligned addresses can also be
+ * accessed atomically, which is what node latches are built on.
+ */
+public class SegmentedBuffer {
+    public static final ByteOrder FILE_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+    private final int segmentShift;
+    private final int segmentSize;
+    private final int segmentMask;
+    private final int maxSegments;
+    private final FileChannel channel; // Backing file of mapped segments, null for in-memory segments
+    private final boolean direct; // Whether in-memory segments live outside the heap
+    private static final VarHandle BIG_ENDIAN_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle BIG_ENDIAN_ARRAY_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private final VarHandle ints; // Atomic int view matching the byte order of the segments
+    private volatile ByteBuffer[] segments; // Replaced, never modified, when a segment is added
+    private final PageCache pages; // Bounded cache of the segments of a file, null when all are in memory
+
+    private SegmentedBuffer(int segmentShift, FileChannel channel, boolean direct, int cachedSegments) {
+        if (segmentShift < 10 || segmentShift > 30) {
+            throw new IllegalArgumentException("Segment shift must be between 10 and 30");
+        }
+        this.segmentShift = segmentShift;
+        this.segmentSize = 1 << segmentShift;
+        this.segmentMask = segmentSize - 1;
+        this.maxSegments = (int) ((1L << 31) >>> segmentShift);
+        this.channel = channel;
+        this.direct = direct;
+        this.ints = MethodHandles.byteBufferViewVarHandle(int[].class,
+                channel != null ? FILE_BYTE_ORDER : ByteOrder.nativeOrder());
+        this.segments = new ByteBuffer[0];
+        this.pages = cachedSegments > 0 ? new PageCache(channel, segmentShift, maxSegments, cachedSegments) : null;
+    }
+
+    /**
+     * Create a store whose segments are allocated on the heap.
+     *
+     * @param segmentShift The base-2 logarithm of the segment size.
+     * @return A store with a single segment.
+     */
+    public static SegmentedBuffer heap(int segmentShift) {
+        SegmentedBuffer buffer = new SegmentedBuffer(segmentShift, null, false, 0);
+        buffer.grow();
+        return buffer;
+    }
+
+    /**
+     * Create a store whose segments are allocated off-heap, so they neither count against the
+     * heap nor get scanned or copied by the garbage collector. The memory is released by
+     * {@link #close()}.
+     *
+     * @param segmentShift The base-2 logarithm of the segment size.
+     * @return A store with a single segment.
+     */
+    public static SegmentedBuffer direct(int segmentShift) {
+        SegmentedBuffer buffer = new SegmentedBuffer(segmentShift, null, true, 0);
+        buffer.grow();
+        return buffer;
+    }
+
+    /**
+     * Create a store whose segments are consecutive regions of a file mapped into memory.
+     * Every region the file already covers is mapped; an empty file gets its first segment.
+     *
+     * @param channel The channel of the file, it is closed by {@link #close()}.
+     * @param segmentShift The base-2 logarithm of the segment size.
+     * @return A store over the file.
+     * @throws UncheckedIOException If the file cannot be mapped.
+     */
+    public static SegmentedBuffer mapped(FileChannel channel, int segmentShift) {
+        SegmentedBuffer buffer = new SegmentedBuffer(segmentShift, channel, false, 0);
+        try {
+            long existing = (channel.size() + buffer.segmentSize - 1) >>> segmentShift;
+            do {
+                buffer.grow();
+            } while (buffer.segments.length < existing);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map the tree file", e);
+        }
+        return buffer;
+    }
+
+    /**
+     * Create a store over a file that keeps only a bounded number of its segments in memory.
+     * Segments are read on first access and evicted, after being written back if they changed,
+     * when the cache is full. Only the first segment is read right away.
+     *
+     * @param channel The channel of the file, it is closed by {@link #close()}.
+     * @param segmentShift The base-2 logarithm of the segment size.
+     * @param cachedSegments The number of segments kept in memory, 2 or more.
+     * @return A store over the file.
+     * @throws UncheckedIOException If the file cannot be read.
+     */
+    public static SegmentedBuffer paged(FileChannel channel, int segmentShift, int cachedSegments) {
+        if (cachedSegments < 2) {
+            throw new IllegalArgumentException("A page cache must hold at least 2 segments");
+        }
+        SegmentedBuffer buffer = new SegmentedBuffer(segmentShift, channel, false, cachedSegments);
+        try {
+            long existing = (channel.size() + buffer.segmentSize - 1) >>> segmentShift;
+            if (existing == 0) {
+                buffer.grow();
+            } else {
+                buffer.pages.open((int) existing);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the tree file", e);
+        }
+        return buffer;
+    }
+
+    /**
+     * The smallest segment shift whose segment holds at least the given number of bytes.
+     */
+    public static int shiftFor(long bytes) {
+        int shift = 64 - Long.numberOfLeadingZeros(Math.max(bytes, 1) - 1);
+        return Math.max(shift, 10);
+    }
+
+    /**
+     * Append a new segment to the chain.
+     *
+     * @throws IllegalStateException If the address space is exhausted.
+     * @throws UncheckedIOException If a mapped segment cannot be created.
+     */
+    public synchronized void grow() {
+        if (pages != null) {
+            pages.grow();
+            return;
+        }
+        int index = segments.length;
+        if (index == maxSegments) {
+            throw new IllegalStateException("SegmentedBuffer address space exhausted");
+        }
+        ByteBuffer segment;
+        if (channel != null) {
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, (long) index << segmentShift, segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to map segment " + index, e);
+            }
+            segment.order(FILE_BYTE_ORDER);
+        } else {
+            segment = direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize);
+            segment.order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer[] grown = Arrays.copyOf(segments, index + 1);
+        grown[index] = segment;
+        segments = grown;
+    }
+
+    public int segmentShift() {
+        return segmentShift;
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    public int segmentCount() {
+        return pages != null ? pages.segmentCount() : segments.length;
+    }
+
+    /**
+     * @return The total number of bytes held by all segments.
+     */
+    public long capacity() {
+        return (long) segmentCount() << segmentShift;
+    }
+
+    /**
+     * @return The number of segments kept in memory, the same as {@link #segmentCount()}
+     *         unless the store has a page cache.
+     */
+    public int residentSegments() {
+        return pages != null ? pages.resident() : segments.length;
+    }
+
+    public int address(int segment, int position) {
+        return (segment << segmentShift) | position;
+    }
+
+    public int segmentIndex(int address) {
+        return address >>> segmentShift;
+    }
+
+    /**
+     * @return The segment that holds an address.
+     */
+    public ByteBuffer segment(int address) {
+        return frame(address);
+    }
+
+    private ByteBuffer frame(int address) {
+        return pages == null ? segments[address >>> segmentShift] : pages.frame(address >>> segmentShift);
+    }
+
+    /**
+     * Keep the segment of an address in memory until {@link #unpin(int)}, which marks it dirty.
+     * Every change to a cached segment must happen while it is pinned, or it may be lost to a
+     * concurrent eviction or never be written back. Pins nest. Does nothing unless the store has
+     * a page cache.
+     */
+    public void pin(int address) {
+        if (pages != null) {
+            pages.pin(address >>> segmentShift);
+        }
+    }
+
+    public void unpin(int address) {
+        if (pages != null) {
+            pages.unpin(address >>> segmentShift);
+        }
+    }
+
+    /**
+     * Run a hook before a cached segment that changed is written back to the file, which a
+     * write-ahead log needs to force the images of its blocks first. Does nothing unless the
+     * store has a page cache.
+     */
+    public void beforeWriteBack(Runnable hook) {
+        if (pages != null) {
+            pages.beforeWriteBack(hook);
+        }
+    }
+
+    /**
+     * @return The position of an address inside its segment.
+     */
+    public int position(int address) {
+        return address & segmentMask;
+    }
+
+    public byte get(int address) {
+        return frame(address).get(address & segmentMask);
+    }
+
+    public void put(int address, byte value) {
+        frame(address).put(address & segmentMask, value);
+    }
+
+    public int getInt(int address) {
+        return frame(address).getInt(address & segmentMask);
+    }
+
+    public void putInt(int address, int value) {
+        frame(address).putInt(address & segmentMask, value);
+    }
+
+    public void get(int address, byte[] destination) {
+        frame(address).get(address & segmentMask, destination);
+    }
+
+    public void put(int address, byte[] source) {
+        frame(address).put(address & segmentMask, source);
+    }
+
+    public void get(int address, byte[] destination, int offset, int length) {
+        frame(address).get(address & segmentMask, destination, offset, length);
+    }
+
+    public void put(int address, byte[] source, int offset, int length) {
+        frame(address).put(address & segmentMask, source, offset, length);
+    }
+
+    /**
+     * Add bytes of the store to a checksum. The bytes must not straddle two segments.
+     *
+     * @param checksum The checksum to update.
+     * @param address The address of the first byte.
+     * @param length The number of bytes.
+     */
+    public void update(Checksum checksum, int address, int length) {
+        ByteBuffer segment = frame(address);
+        int position = address & segmentMask;
+        if (segment.hasArray()) {
+            checksum.update(segment.array(), segment.arrayOffset() + position, length);
+            return;
+        }
+        ByteBuffer bytes = segment.duplicate();
+        bytes.limit(position + length).position(position);
+        checksum.update(bytes);
+    }
+
+    /**
+     * Read eight bytes as a big-endian long, whatever the byte order of the store, so that
+     * the unsigned order of two such longs is the order of their bytes. The bytes must not
+     * straddle two segments.
+     */
+    public long getKeyBytes(int address) {
+        return (long) BIG_ENDIAN_LONGS.get(frame(address), address & segmentMask);
+    }
+
+    /**
+     * Compare bytes in the store with an array, both read as unsigned numbers, the way encoded
+     * keys are ordered. The bytes must not straddle two segments.
+     *
+     * @param address The address of the first byte in the store.
+     * @param key The array to compare with.
+     * @param length The number of bytes to compare.
+     * @return A negative number, zero or a positive number as the stored bytes are less than,
+     *         equal to or greater than those of the array.
+     */
+    public int compare(int address, byte[] key, int length) {
+        return compare(address, key, 0, length);
+    }
+
+    /**
+     * Compare bytes in the store with a part of an array, see {@link #compare(int, byte[], int)}.
+     *
+     * @param keyFrom The position of the first byte of the array to compare.
+     */
+    public int compare(int address, byte[] key, int keyFrom, int length) {
+        ByteBuffer segment = frame(address);
+        int position = address & segmentMask;
+        if (segment.hasArray()) {
+            int from = segment.arrayOffset() + position;
+            return Arrays.compareUnsigned(segment.array(), from, from + length, key, keyFrom, keyFrom + length);
+        }
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long stored = (long) BIG_ENDIAN_LONGS.get(segment, position + i);
+            long expected = (long) BIG_ENDIAN_ARRAY_LONGS.get(key, keyFrom + i);
+            if (stored != expected) {
+                return Long.compareUnsigned(stored, expected);
+            }
+        }
+        for (; i < length; i++) {
+            int difference = (segment.get(position + i) & 0xFF) - (key[keyFrom + i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Read an int with volatile semantics. The address must be 4-byte aligned.
+     */
+    public int getIntVolatile(int address) {
+        return (int) ints.getVolatile(frame(address), address & segmentMask);
+    }
+
+    /**
+     * Write an int with release semantics. The address must be 4-byte aligned.
+     */
+    public void setIntRelease(int address, int value) {
+        ints.setRelease(frame(address), address & segmentMask, value);
+    }
+
+    /**
+     * Atomically replace an int if it still holds the expected value. The address must be 4-byte aligned.
+     *
+     * @return true if the int was replaced.
+     */
+    public boolean compareAndSetInt(int address, int expected, int value) {
+        return ints.compareAndSet(frame(address), address & segmentMask, expected, value);
+    }
+
+    /**
+     * Write mapped or cached segments to the storage device. Does nothing for heap segments.
+     */
+    public void force() {
+        if (pages != null) {
+            pages.force();
+            return;
+        }
+        for (ByteBuffer segment : segments) {
+            if (segment instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+    /**
+     * Flush and release the backing file, or free the memory of off-heap segments right away
+     * instead of waiting for the garbage collector. Does nothing for heap segments. An off-heap
+     * store must not be used after it is closed.
+     *
+     * @throws UncheckedIOException If the file cannot be closed.
+     */
+    public synchronized void close() {
+        if (direct) {
+            ByteBuffer[] released = segments;
+            segments = new ByteBuffer[0];
+            for (ByteBuffer segment : released) {
+                release(segment);
+            }
+            return;
+        }
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close the tree file", e);
+        }
+    }
+
+    /**
+     * Free the native memory of a direct buffer. Java 17 has no public API for this, so the
+     * cleaner is invoked through {@code sun.misc.Unsafe}; when that is not available the memory
+     * is left to the garbage collector.
+     */
+    private static void release(ByteBuffer segment) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), segment);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // Fall back to releasing the memory when the buffer is garbage collected
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A key space split into ranges, each held by a {@link BPlusTree} of its own, for ingest that
+ * one tree cannot take. Shards share no root, latch, arena or lock, so writers to different
+ * shards never meet, and {@link #insertMany(Map)} writes the pairs of every shard in parallel.
+ * Partitioning by range rather than by hash keeps every shard a contiguous slice of the key
+ * order, so a range scan reads the shards one after the other and the entries come out in key
+ * order without merging.
+ * <p>
+ * A shard is split roughly in half by {@link #splitShard(Object)}, or where the writes
+ * concentrate by {@link #splitHotShard(int)}. A split waits for the writes in progress on its
+ * shard, holds new ones back, and bulk loads the two halves into fresh trees; searches and scans
+ * go on reading the shard until the routing table with its halves is published, and the other
+ * shards carry on meanwhile. Operations find their shard through an immutable routing table
+ * that a split replaces, and retry if the shard they found was split before they got to it.
+ * Every operation passes one of two {@link WriteGate}s of its shard, one for writes and one for
+ * reads, so operations on a shard share no counter. Scans read a shard a chunk of entries at a
+ * time and look up the shard of the next chunk afresh, so they go on across splits and are
+ * weakly consistent, like those of a single tree.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public class ShardedBPlusTree<K, V> implements AutoCloseable {
+    private static final int SCAN_CHUNK = 256; // Entries a scan reads from a shard at a time
+    private static final double SPLIT_FILL_FACTOR = 0.7; // Leaves room for the writes that keep coming to a split shard
+
+    private final KeyCodec<K> keyCodec;
+    private final Supplier<BPlusTree<K, V>> newTree;
+    private volatile Shard<K, V>[] shards; // Ordered by their smallest keys; replaced, never changed, by splits
+    private volatile boolean closed; // Set before the shards are retired by close()
+
+    /**
+     * Create a sharded tree whose shards keep their nodes on the heap.
+     *
+     * @param MB The segment size of every shard in megabytes, rounded up to a power of two.
+     * @param order The order of every shard.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @param boundaries The smallest key of every shard but the first, in ascending order; empty for one shard.
+     * @throws IllegalArgumentException If the boundaries are not strictly ascending.
+     */
+    public ShardedBPlusTree(int MB, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec, List<? extends K> boundaries) {
+        this(keyCodec, () -> new BPlusTree<>(MB, order, keyCodec, valueCodec), boundaries);
+    }
+
+    /**
+     * Create a sharded tree whose shards keep their nodes off-heap, see
+     * {@link BPlusTree#offHeap(int, int, KeyCodec, ValueCodec)}. The memory of a shard is
+     * released when it is split and by {@link #close()}.
+     *
+     * @param MB The segment size of every shard in megabytes, rounded up to a power of two.
+     * @param order The order of every shard.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @param boundaries The smallest key of every shard but the first, in ascending order; empty for one shard.
+     * @return The new sharded tree, which must be closed.
+     * @throws IllegalArgumentException If the boundaries are not strictly ascending.
+     */
+    public static <K, V> ShardedBPlusTree<K, V> offHeap(int MB, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec,
+                                                        List<? extends K> boundaries) {
+        return new ShardedBPlusTree<>(keyCodec, () -> BPlusTree.offHeap(MB, order, keyCodec, valueCodec), boundaries);
+    }
+
+    private ShardedBPlusTree(KeyCodec<K> keyCodec, Supplier<BPlusTree<K, V>> newTree, List<? extends K> boundaries) {
+        this.keyCodec = keyCodec;
+        this.newTree = newTree;
+        Shard<K, V>[] initial = newShards(boundaries.size() + 1);
+        initial[0] = new Shard<>(new byte[keyCodec.width()], newTree.get());
+        for (int i = 0; i < boundaries.size(); i++) {
+            byte[] low = keyCodec.encode(boundaries.get(i));
+            if (Arrays.compareUnsigned(low, initial[i].low) <= 0) {
+                closeAll(Arrays.copyOf(initial, i + 1));
+                throw new IllegalArgumentException("Boundaries must be strictly ascending, found " + boundaries.get(i));
+            }
+            initial[i + 1] = new Shard<>(low, newTree.get());
+        }
+        this.shards = initial;
+    }
+
+    /**
+     * @return The number of shards the key space is split into.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Insert a key-value pair into the shard whose range holds the key, replacing the value if
+     * the key is already held. Waits while the shard is being split, then inserts into the
+     * half that took over the key.
+     *
+     * @param key The key to insert.
+     * @param value The value associated with the key.
+     * @throws RuntimeException If the shard's storage is full, see {@link BPlusTree#insert(Object, Object)}.
+     * @throws IllegalStateException If the tree is closed.
+     */
+    public void insert(K key, V value) {
+        byte[] encoded = keyCodec.encode(key);
+        while (true) {
+            Shard<K, V> shard = shardOf(shards, encoded);
+            shard.writers.enter();
+            try {
+                if (!shard.retired) {
+                    shard.tree.insert(key, value);
+                    shard.writes.increment();
+                    return;
+                }
+            } finally {
+                shard.writers.exit();
+            }
+            checkOpen();
+        }
+    }
+
+    /**
+     * Insert multiple key-value pairs, replacing the values of keys already held. The pairs are
+     * grouped by shard, and the groups are inserted in parallel, each with
+     * {@link BPlusTree#insertMany(Map)}.
+     *
+     * @param items A map containing key-value pairs to be inserted.
+     * @throws IllegalStateException If the tree is closed.
+     */
+    public void insertMany(Map<? extends K, ? extends V> items) {
+        Shard<K, V>[] current = shards;
+        Map<Shard<K, V>, Map<K, V>> groups = new HashMap<>();
+        for (var item : items.entrySet()) {
+            Shard<K, V> shard = shardOf(current, keyCodec.encode(item.getKey()));
+            groups.computeIfAbsent(shard, s -> new HashMap<>()).put(item.getKey(), item.getValue());
+        }
+        if (groups.size() == 1) {
+            var group = groups.entrySet().iterator().next();
+            insertMany(group.getKey(), group.getValue());
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(groups.size());
+        for (var group : groups.entrySet()) {
+            tasks.add(ForkJoinTask.adapt(() -> insertMany(group.getKey(), group.getValue())));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    /**
+     * Insert the pairs of one shard, or route them again if the shard was split meanwhile.
+     */
+    private void insertMany(Shard<K, V> shard, Map<K, V> group) {
+        shard.writers.enter();
+        try {
+            if (!shard.retired) {
+                shard.tree.insertMany(group);
+                shard.writes.add(group.size());
+                return;
+            }
+        } finally {
+            shard.writers.exit();
+        }
+        checkOpen();
+        insertMany(group);
+    }
+
+    /**
+     * Search for a key.
+     *
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     * @throws IllegalStateException If the tree is closed.
+     */
+    public V search(K key) {
+        byte[] encoded = keyCodec.encode(key);
+        while (true) {
+            Shard<K, V> shard = shardOf(shards, encoded);
+            shard.readers.enter();
+            try {
+                if (!shard.retired) {
+                    return shard.tree.search(key);
+                }
+            } finally {
+                shard.readers.exit();
+            }
+            checkOpen();
+        }
+    }
+
+    /**
+     * Delete a key from the shard whose range holds it. Waits while the shard is being split,
+     * then deletes from the half that took over the key. Does nothing if the key is not held.
+     *
+     * @param key The key to delete.
+     * @throws IllegalStateException If the tree is closed.
+     */
+    public void delete(K key) {
+        byte[] encoded = keyCodec.encode(key);
+        while (true) {
+            Shard<K, V> shard = shardOf(shards, encoded);
+            shard.writers.enter();
+            try {
+                if (!shard.retired) {
+                    shard.tree.delete(key);
+                    shard.writes.increment();
+                    return;
+                }
+            } finally {
+                shard.writers.exit();
+            }
+            checkOpen();
+        }
+    }
+
+    /**
+     * @return true if no shard holds a key.
+     */
+    public boolean isEmpty() {
+        return !new Scan(minKey(), maxKey()).hasNext();
+    }
+
+    /**
+     * Iterate over the entries whose keys lie between two bounds, inclusive, in ascending key
+     * order, shard after shard.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return An iterator over the entries of the range.
+     */
+    public Iterator<Map.Entry<K, V>> range(K from, K to) {
+        return new Scan(keyCodec.encode(from), keyCodec.encode(to));
+    }
+
+    /**
+     * Stream the entries whose keys lie between two bounds, inclusive, in ascending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return A sequential stream over the entries of the range.
+     */
+    public Stream<Map.Entry<K, V>> stream(K from, K to) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(range(from, to),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Split the shard that holds a key roughly in half, at the middle separator of its root.
+     *
+     * @param key Any key of the range of the shard.
+     * @return true if the shard was split, false if it holds fewer than two keys.
+     * @throws IllegalStateException If the tree is closed.
+     */
+    public synchronized boolean splitShard(K key) {
+        checkOpen();
+        return split(shardOf(shards, keyCodec.encode(key)));
+    }
+
+    /**
+     * Split the shard that took the most inserts and deletes since the previous call, so that
+     * a slice of the key space that draws most of the writes gets spread over more shards.
+     * Call it now and then during ingest; it starts the count of writes over for every shard.
+     *
+     * @param maxShards The number of shards not to go beyond.
+     * @return true if a shard was split, false if there are already {@code maxShards} shards,
+     *         there were no writes, or the hottest shard holds fewer than two keys.
+     * @throws IllegalStateException If the tree is closed.
+     */
+    public synchronized boolean splitHotShard(int maxShards) {
+        checkOpen();
+        Shard<K, V> hottest = null;
+        long mostWrites = 0;
+        for (Shard<K, V> shard : shards) {
+            long writes = shard.writes.sumThenReset();
+            if (writes > mostWrites) {
+                hottest = shard;
+                mostWrites = writes;
+            }
+        }
+        return hottest != null && shards.length < maxShards && split(hottest);
+    }
+
+    /**
+     * Split a shard into two fresh trees at the middle separator of its root, then publish a
+     * routing table with the halves in its place. The separator divides the shard roughly in
+     * half without counting its entries, so the shard is walked once, each entry going into
+     * the lower or upper half as it is read. The write gate of the shard is closed throughout,
+     * so its tree does not change while it is copied, but readers go on until the new table is
+     * published. The tree is closed once the readers that found it before then are done.
+     */
+    private boolean split(Shard<K, V> shard) {
+        shard.writers.close();
+        try {
+            byte[] splitKey = shard.tree.middleKey();
+            if (splitKey == null) {
+                return false;
+            }
+            Halves<K, V> halves = new Halves<>(shard.tree.cursor(minKey(), maxKey(), false), splitKey);
+            BPlusTree<K, V> lower = newTree.get();
+            BPlusTree<K, V> upper = newTree.get();
+            try {
+                lower.bulkLoad(halves.lower(), SPLIT_FILL_FACTOR);
+                upper.bulkLoad(halves.upper(), SPLIT_FILL_FACTOR);
+                Shard<K, V>[] current = shards;
+                int index = Arrays.asList(current).indexOf(shard);
+                Shard<K, V>[] next = newShards(current.length + 1);
+                System.arraycopy(current, 0, next, 0, index);
+                next[index] = new Shard<>(shard.low, lower);
+                next[index + 1] = new Shard<>(splitKey, upper);
+                System.arraycopy(current, index + 1, next, index + 2, current.length - index - 1);
+                shards = next;
+            } catch (RuntimeException e) {
+                lower.close();
+                upper.close();
+                throw e;
+            }
+            // Writers waiting at the gate find the shard retired and route to the halves
+            shard.retired = true;
+        } finally {
+            shard.writers.open();
+        }
+        retire(shard);
+        return true;
+    }
+
+    /**
+     * Close every shard, see {@link BPlusTree#close()}. Operations that come after fail with
+     * an {@link IllegalStateException}. Calling it again does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            closeAll(shards);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The sharded tree is closed");
+        }
+    }
+
+    private static <K, V> void closeAll(Shard<K, V>[] shards) {
+        for (Shard<K, V> shard : shards) {
+            shard.writers.close();
+            try {
+                shard.retired = true;
+            } finally {
+                shard.writers.open();
+            }
+            retire(shard);
+        }
+    }
+
+    /**
+     * Close the tree of a retired shard once the readers that found it before it was retired
+     * are done. Readers that come after see it retired and look their shard up again.
+     */
+    private static <K, V> void retire(Shard<K, V> shard) {
+        shard.readers.close();
+        try {
+            shard.tree.close();
+        } finally {
+            shard.readers.open();
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <K, V> Shard<K, V>[] newShards(int length) {
+        return new Shard[length];
+    }
+
+    /**
+     * @return The shard whose range holds a key: the last one whose smallest key is not above it.
+     */
+    private static <K, V> Shard<K, V> shardOf(Shard<K, V>[] shards, byte[] key) {
+        return shards[indexOf(shards, key)];
+    }
+
+    private static int indexOf(Shard<?, ?>[] shards, byte[] key) {
+        int low = 1; // The first shard starts at the smallest key
+        int high = shards.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(shards[mid].low, key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    private byte[] minKey() {
+        return new byte[keyCodec.width()];
+    }
+
+    private byte[] maxKey() {
+        byte[] key = new byte[keyCodec.width()];
+        Arrays.fill(key, (byte) 0xFF);
+        return key;
+    }
+
+    /**
+     * A range of keys and the tree that holds them. The range runs from the smallest key of
+     * the shard to just before that of the next shard.
+     */
+    private static final class Shard<K, V> {
+        final byte[] low; // Encoded smallest key of the range
+        final BPlusTree<K, V> tree;
+        final WriteGate writers = new WriteGate(); // Passed by inserts and deletes, closed while splitting
+        final WriteGate readers = new WriteGate(); // Passed by searches and scans, closed to close the tree
+        final LongAdder writes = new LongAdder(); // Inserts and deletes since the last look for a hot shard
+        volatile boolean retired; // Whether the shard was split or closed; its operations go elsewhere
+
+        Shard(byte[] low, BPlusTree<K, V> tree) {
+            this.low = low;
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * An ascending scan over the shards. Every chunk is read after passing the read gate of its
+     * shard, and the scan resumes after the last key it returned, so no gate is held between
+     * calls and a shard split meanwhile is simply read through its halves.
+     */
+    private final class Scan implements Iterator<Map.Entry<K, V>> {
+        private final byte[] to;
+        private byte[] next; // Encoded key to resume at
+        private boolean resumeAfter; // Whether the entry with the key to resume at was returned already
+        private final ArrayDeque<Map.Entry<K, V>> chunk = new ArrayDeque<>();
+        private boolean exhausted;
+
+        Scan(byte[] from, byte[] to) {
+            this.next = from;
+            this.to = to;
+            this.exhausted = Arrays.compareUnsigned(from, to) > 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (chunk.isEmpty() && !exhausted) {
+                readChunk();
+            }
+            return !chunk.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.poll();
+        }
+
+        private void readChunk() {
+            Shard<K, V>[] current = shards;
+            int index = indexOf(current, next);
+            Shard<K, V> shard = current[index];
+            shard.readers.enter();
+            try {
+                if (shard.retired) {
+                    checkOpen();
+                    return; // Look the shard up again
+                }
+                BPlusTreeCursor<K, V> cursor = shard.tree.cursor(next, to, false);
+                while (chunk.size() < SCAN_CHUNK && cursor.next()) {
+                    if (!resumeAfter || !Arrays.equals(cursor.encodedKey(), next)) {
+                        chunk.add(cursor.entry());
+                    }
+                }
+                if (chunk.size() == SCAN_CHUNK) {
+                    next = cursor.encodedKey().clone();
+                    resumeAfter = true;
+                } else if (index + 1 < current.length && Arrays.compareUnsigned(current[index + 1].low, to) <= 0) {
+                    next = current[index + 1].low;
+                    resumeAfter = false;
+                } else {
+                    exhausted = true;
+                }
+            } finally {
+                shard.readers.exit();
+            }
+        }
+    }
+
+    /**
+     * The entries of a cursor divided at a key: those below it, then, once they are taken, the
+     * rest. Both halves of a split are read this way in a single walk of the shard.
+     */
+    private static final class Halves<K, V> {
+        private final BPlusTreeCursor<K, V> cursor;
+        private final byte[] splitKey;
+        private boolean positioned; // Whether the cursor is on an entry not taken yet
+
+        Halves(BPlusTreeCursor<K, V> cursor, byte[] splitKey) {
+            this.cursor = cursor;
+            this.splitKey = splitKey;
+            this.positioned = cursor.next();
+        }
+
+        /**
+         * @return The entries below the split key.
+         */
+        Iterator<Map.Entry<K, V>> lower() {
+            return half(true);
+        }
+
+        /**
+         * @return The entries from the split key on, once the lower ones are taken.
+         */
+        Iterator<Map.Entry<K, V>> upper() {
+            return half(false);
+        }
+
+        private Iterator<Map.Entry<K, V>> half(boolean belowSplitKey) {
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return positioned && (!belowSplitKey || Arrays.compareUnsigned(cursor.encodedKey(), splitKey) < 0);
+                }
+
+                @Override
+                public Map.Entry<K, V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<K, V> entry = cursor.entry();
+                    positioned = cursor.next();
+                    return entry;
+                }
+            };
+        }
+    }
+}
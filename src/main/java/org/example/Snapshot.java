@@ -0,0 +1,297 @@
+package org.example;
+
+import java.lang.invoke.VarHandle;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A read-only view of a {@link BPlusTree} as it was when {@link BPlusTree#snapshot()} was
+ * called. Writers go on changing the tree meanwhile, but before they first change or free a
+ * block the snapshot can reach, they copy it, and the snapshot reads the copy instead. A
+ * snapshot therefore never blocks writers, and its scans are fully consistent no matter how
+ * long they take.
+ * <p>
+ * A snapshot takes no latches. Every block it reads straight from the tree is checked
+ * afterwards for a copy made meanwhile, and read again from the copy if there is one.
+ * Searches and iterators may be used by several threads at once. Close the snapshot as soon as
+ * it is no longer needed, since the tree keeps copies of everything changed since as long as
+ * it is open; closing the tree closes its snapshots as well.
+ */
+public final class Snapshot<K, V> implements AutoCloseable {
+    private final BPlusTree<K, V> tree;
+    private final SegmentedBuffer buffer;
+    private final int order;
+    private final KeyCodec<K> keyCodec;
+    private final ValueCodec<V> valueCodec;
+    private final int keyWidth;
+    private final VersionStore versions;
+    private final int generation;
+    private final int root;
+    private volatile boolean closed;
+
+    Snapshot(BPlusTree<K, V> tree, SegmentedBuffer buffer, int order, KeyCodec<K> keyCodec, ValueCodec<V> valueCodec,
+             VersionStore versions, int generation, int root) {
+        this.tree = tree;
+        this.buffer = buffer;
+        this.order = order;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.keyWidth = keyCodec.width();
+        this.versions = versions;
+        this.generation = generation;
+        this.root = root;
+    }
+
+    /**
+     * Search for a key as of the snapshot.
+     *
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key was not in the tree.
+     */
+    public V search(K key) {
+        byte[] encoded = keyCodec.encode(key);
+        int leaf = findLeaf(encoded);
+        Read read = new Read();
+        while (true) {
+            int at = read.start(leaf);
+            V value;
+            try {
+                int index = BPlusTreeNode.indexOf(buffer, at, keyWidth, encoded);
+                value = index >= 0 ? BPlusTreeNode.valueAt(buffer, at, order, keyWidth, index, valueCodec, read::resolve) : null;
+            } catch (RuntimeException e) {
+                if (read.isUnchanged()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (read.isUnchanged()) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Iterate over the entries of the snapshot whose keys lie between two bounds, inclusive, in
+     * ascending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return An iterator over the entries of the range.
+     */
+    public Iterator<Map.Entry<K, V>> range(K from, K to) {
+        return new Scan(keyCodec.encode(from), keyCodec.encode(to), false);
+    }
+
+    /**
+     * Iterate over the entries of the snapshot whose keys lie between two bounds, inclusive, in
+     * descending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return An iterator over the entries of the range.
+     */
+    public Iterator<Map.Entry<K, V>> descendingRange(K from, K to) {
+        return new Scan(keyCodec.encode(from), keyCodec.encode(to), true);
+    }
+
+    /**
+     * Stream the entries of the snapshot whose keys lie between two bounds, inclusive, in
+     * ascending key order.
+     *
+     * @param from The smallest key of the range.
+     * @param to The largest key of the range.
+     * @return A sequential stream over the entries of the range.
+     */
+    public Stream<Map.Entry<K, V>> stream(K from, K to) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(range(from, to),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+
+    /**
+     * Release the snapshot, which lets the tree free the copies only this snapshot needed.
+     * The snapshot and its iterators must not be used afterwards. Closing twice does nothing.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            tree.release(generation);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    /**
+     * Descend from the root of the snapshot to the leaf where a key should be located.
+     */
+    private int findLeaf(byte[] key) {
+        checkOpen();
+        Read read = new Read();
+        int node = root;
+        while (true) {
+            int at = read.start(node);
+            int child;
+            try {
+                child = BPlusTreeNode.isLeaf(buffer, at) ? BPlusTreeNode.NIL : BPlusTreeNode.findChild(buffer, at, order, keyWidth, key);
+            } catch (RuntimeException e) {
+                if (read.isUnchanged()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (!read.isUnchanged()) {
+                continue;
+            }
+            if (child == BPlusTreeNode.NIL) {
+                return node;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * One attempt to read a block as of the snapshot, together with the overflow pages of its
+     * values. Remembers the blocks read straight from the tree, which are only trustworthy if
+     * none of them was copied before the attempt ended.
+     */
+    private final class Read {
+        private int[] live = new int[4];
+        private int liveCount;
+
+        /**
+         * Start a new attempt.
+         *
+         * @return The offset to read the block from.
+         */
+        int start(int offset) {
+            liveCount = 0;
+            return resolve(offset);
+        }
+
+        int resolve(int offset) {
+            int at = versions.resolve(offset, generation);
+            if (at == offset) {
+                if (liveCount == live.length) {
+                    live = Arrays.copyOf(live, liveCount * 2);
+                }
+                live[liveCount++] = offset;
+            }
+            return at;
+        }
+
+        /**
+         * @return true if no block read straight from the tree was copied since, so every read
+         *         saw the blocks as of the snapshot.
+         */
+        boolean isUnchanged() {
+            // A writer copies a block before changing it, so a changed block has a copy by now
+            VarHandle.acquireFence();
+            for (int i = 0; i < liveCount; i++) {
+                if (versions.resolve(live[i], generation) != live[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Walks the leaves of a range through their sibling links, reading a whole leaf at a time.
+     */
+    private final class Scan implements Iterator<Map.Entry<K, V>> {
+        private final byte[] from;
+        private final byte[] to;
+        private final boolean descending;
+        private final Read read = new Read();
+        private final List<Map.Entry<K, V>> entries = new ArrayList<>();
+        private int position;
+        private int leaf; // Next leaf to read, NIL once the range is exhausted
+
+        Scan(byte[] from, byte[] to, boolean descending) {
+            this.from = from;
+            this.to = to;
+            this.descending = descending;
+            this.leaf = findLeaf(descending ? to : from);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (position == entries.size() && leaf != BPlusTreeNode.NIL) {
+                checkOpen();
+                readLeaf();
+            }
+            return position < entries.size();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries.get(position++);
+        }
+
+        /**
+         * Replace the entries with those of the next leaf that lie in the range.
+         */
+        private void readLeaf() {
+            while (true) {
+                entries.clear();
+                position = 0;
+                int at = read.start(leaf);
+                int sibling;
+                try {
+                    sibling = collect(at);
+                } catch (RuntimeException e) {
+                    if (read.isUnchanged()) {
+                        throw e;
+                    }
+                    continue;
+                }
+                if (read.isUnchanged()) {
+                    leaf = sibling;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return The leaf to read next, NIL if the range ends in this one.
+         */
+        private int collect(int at) {
+            int keyCount = BPlusTreeNode.keyCount(buffer, at);
+            if (keyCount < 0 || keyCount >= order) {
+                throw new IllegalStateException("Corrupt key count " + keyCount);
+            }
+            for (int n = 0; n < keyCount; n++) {
+                int i = descending ? keyCount - 1 - n : n;
+                int start = BPlusTreeNode.compareKey(buffer, at, keyWidth, i, descending ? to : from);
+                if (descending ? start > 0 : start < 0) {
+                    // Before the start of the range
+                    continue;
+                }
+                int end = BPlusTreeNode.compareKey(buffer, at, keyWidth, i, descending ? from : to);
+                if (descending ? end < 0 : end > 0) {
+                    return BPlusTreeNode.NIL;
+                }
+                byte[] key = BPlusTreeNode.keyAt(buffer, at, keyWidth, i);
+                V value = BPlusTreeNode.valueAt(buffer, at, order, keyWidth, i, valueCodec, read::resolve);
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(keyCodec.decode(key, 0), value));
+            }
+            return descending ? BPlusTreeNode.previousLeaf(buffer, at) : BPlusTreeNode.nextLeaf(buffer, at);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.example;
+
+/**
+ * When a {@link WriteAheadLog} forces its records to the storage device, and how long a write
+ * waits for that. Records of concurrent writers are always forced together, so one device flush
+ * covers every operation that finished while the previous flush was running.
+ */
+public final class SyncPolicy {
+
+    enum Mode {
+        PER_OPERATION, BATCHED, ASYNC
+    }
+
+    final Mode mode;
+    final long intervalMillis;
+
+    private SyncPolicy(Mode mode, long intervalMillis) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Every write returns only once its record is on the storage device. Writers that finish
+     * while a flush is running share the next one.
+     */
+    public static SyncPolicy perOperation() {
+        return new SyncPolicy(Mode.PER_OPERATION, 0);
+    }
+
+    /**
+     * The log is flushed every {@code intervalMillis} milliseconds, and every write waits for the
+     * flush that covers it. Writes are as durable as with {@link #perOperation()}, at the cost of
+     * up to one interval of latency, and a single flush covers all of them.
+     *
+     * @param intervalMillis The time between flushes, 1 or more.
+     */
+    public static SyncPolicy batched(long intervalMillis) {
+        return new SyncPolicy(Mode.BATCHED, checkInterval(intervalMillis));
+    }
+
+    /**
+     * The log is flushed every {@code intervalMillis} milliseconds and writes do not wait for it.
+     * A crash loses at most the writes of the last interval, and the tree is recovered as it was
+     * before them.
+     *
+     * @param intervalMillis The time between flushes, 1 or more.
+     */
+    public static SyncPolicy async(long intervalMillis) {
+        return new SyncPolicy(Mode.ASYNC, checkInterval(intervalMillis));
+    }
+
+    private static long checkInterval(long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Flush interval must be 1 ms or more");
+        }
+        return intervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.PER_OPERATION ? "SyncPolicy{perOperation}" : "SyncPolicy{" + mode + ", " + intervalMillis + " ms}";
+    }
+}
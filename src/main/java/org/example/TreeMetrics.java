@@ -0,0 +1,61 @@
+package org.example;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histograms of a tree whose metrics are enabled. Every counter is a
+ * {@link LongAdder}, so concurrent operations rarely contend on one. The node and entry counts
+ * are kept up to date by the writers after being counted once when the metrics are enabled.
+ */
+final class TreeMetrics {
+    final LongAdder searches = new LongAdder();
+    final LongAdder inserts = new LongAdder();
+    final LongAdder deletes = new LongAdder();
+    final LongAdder leafSplits = new LongAdder();
+    final LongAdder internalSplits = new LongAdder();
+    final LongAdder merges = new LongAdder();
+    final LongAdder borrows = new LongAdder();
+    final LongAdder nodesDeserialized = new LongAdder();
+    final LatencyHistogram searchLatency = new LatencyHistogram();
+    final LatencyHistogram insertLatency = new LatencyHistogram();
+    final LatencyHistogram deleteLatency = new LatencyHistogram();
+    // Gauges, changed only by writers and by counting the tree while no writer runs
+    final LongAdder leafNodes = new LongAdder();
+    final LongAdder internalNodes = new LongAdder();
+    final LongAdder entries = new LongAdder();
+
+    void searched(long nanos) {
+        searches.increment();
+        searchLatency.record(nanos);
+    }
+
+    void inserted(long nanos) {
+        inserts.increment();
+        insertLatency.record(nanos);
+    }
+
+    void deleted(long nanos) {
+        deletes.increment();
+        deleteLatency.record(nanos);
+    }
+
+    void nodeAdded(boolean isLeaf) {
+        (isLeaf ? leafNodes : internalNodes).increment();
+    }
+
+    void nodeRemoved(boolean isLeaf) {
+        (isLeaf ? leafNodes : internalNodes).decrement();
+    }
+
+    /**
+     * Replace the gauges with a fresh count of the tree.
+     */
+    void recount(long leafNodes, long internalNodes, long entries) {
+        this.leafNodes.reset();
+        this.leafNodes.add(leafNodes);
+        this.internalNodes.reset();
+        this.internalNodes.add(internalNodes);
+        this.entries.reset();
+        this.entries.add(entries);
+    }
+}
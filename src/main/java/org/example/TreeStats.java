@@ -0,0 +1,310 @@
+package org.example;
+
+/**
+ * What a {@link BPlusTree} has done since its metrics were enabled and what it looks like now,
+ * as returned by {@link BPlusTree#stats()}. The counters and latencies are read one after the
+ * other while writers go on, so they may be a few operations apart from each other; compare two
+ * stats taken a while apart to see what happened in between.
+ */
+public final class TreeStats {
+    private final long searches;
+    private final long inserts;
+    private final long deletes;
+    private final long leafSplits;
+    private final long internalSplits;
+    private final long merges;
+    private final long borrows;
+    private final long nodesDeserialized;
+    private final Latency searchLatency;
+    private final Latency insertLatency;
+    private final Latency deleteLatency;
+    private final int height;
+    private final long leafNodes;
+    private final long internalNodes;
+    private final long entries;
+    private final int order;
+    private final long arenaBytesUsed;
+    private final long capacity;
+    private final long residentBytes;
+    private final long cacheHits;
+    private final long cacheMisses;
+
+    TreeStats(TreeMetrics metrics, int height, int order, long arenaBytesUsed, long capacity, long residentBytes,
+              long cacheHits, long cacheMisses) {
+        this.searches = metrics.searches.sum();
+        this.inserts = metrics.inserts.sum();
+        this.deletes = metrics.deletes.sum();
+        this.leafSplits = metrics.leafSplits.sum();
+        this.internalSplits = metrics.internalSplits.sum();
+        this.merges = metrics.merges.sum();
+        this.borrows = metrics.borrows.sum();
+        this.nodesDeserialized = metrics.nodesDeserialized.sum();
+        this.searchLatency = metrics.searchLatency.snapshot();
+        this.insertLatency = metrics.insertLatency.snapshot();
+        this.deleteLatency = metrics.deleteLatency.snapshot();
+        this.height = height;
+        this.leafNodes = metrics.leafNodes.sum();
+        this.internalNodes = metrics.internalNodes.sum();
+        this.entries = metrics.entries.sum();
+        this.order = order;
+        this.arenaBytesUsed = arenaBytesUsed;
+        this.capacity = capacity;
+        this.residentBytes = residentBytes;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    /**
+     * @return The number of keys searched for, counting every key of a batch.
+     */
+    public long searches() {
+        return searches;
+    }
+
+    /**
+     * @return The number of pairs inserted or updated, counting every pair of a batch.
+     */
+    public long inserts() {
+        return inserts;
+    }
+
+    public long deletes() {
+        return deletes;
+    }
+
+    public long leafSplits() {
+        return leafSplits;
+    }
+
+    public long internalSplits() {
+        return internalSplits;
+    }
+
+    /**
+     * @return The number of nodes merged into a sibling, leaves and internal nodes alike.
+     */
+    public long merges() {
+        return merges;
+    }
+
+    /**
+     * @return The number of keys borrowed from a sibling to fix an underflow.
+     */
+    public long borrows() {
+        return borrows;
+    }
+
+    /**
+     * @return The number of nodes writers read into memory. Searches and scans read nodes in
+     *         place and add nothing.
+     */
+    public long nodesDeserialized() {
+        return nodesDeserialized;
+    }
+
+    /**
+     * @return The average number of nodes an insert or delete read into memory, 0 before the first one.
+     */
+    public double nodesDeserializedPerWrite() {
+        long writes = inserts + deletes;
+        return writes == 0 ? 0 : (double) nodesDeserialized / writes;
+    }
+
+    /**
+     * @return The latencies of single searches; batches are not timed.
+     */
+    public Latency searchLatency() {
+        return searchLatency;
+    }
+
+    /**
+     * @return The latencies of single inserts, including the wait for the write-ahead log.
+     */
+    public Latency insertLatency() {
+        return insertLatency;
+    }
+
+    /**
+     * @return The latencies of single deletes, including the wait for the write-ahead log.
+     */
+    public Latency deleteLatency() {
+        return deleteLatency;
+    }
+
+    /**
+     * @return The number of levels of the tree, 1 while the root is a leaf.
+     */
+    public int height() {
+        return height;
+    }
+
+    public long leafNodes() {
+        return leafNodes;
+    }
+
+    public long internalNodes() {
+        return internalNodes;
+    }
+
+    public long nodeCount() {
+        return leafNodes + internalNodes;
+    }
+
+    /**
+     * @return The number of keys in the tree.
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * @return The fraction of the key slots of all leaves that hold a key.
+     */
+    public double fillFactor() {
+        return leafNodes == 0 ? 0 : (double) entries / (leafNodes * (order - 1));
+    }
+
+    /**
+     * @return The number of bytes of the arena handed out so far, free blocks included.
+     */
+    public long arenaBytesUsed() {
+        return arenaBytesUsed;
+    }
+
+    /**
+     * @return The number of bytes reserved for the tree's storage, see {@link BPlusTree#capacity()}.
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of bytes of the tree's storage held in memory, see {@link BPlusTree#residentBytes()}.
+     */
+    public long residentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The number of searches the front cache answered, 0 without a cache, see
+     *         {@link BPlusTree#enableFrontCache(int)}.
+     */
+    public long cacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return The number of searches the front cache passed on to the tree, 0 without a cache.
+     */
+    public long cacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * @return The fraction of the searches through the front cache that hit, 0 before the first one.
+     */
+    public double cacheHitRate() {
+        long lookups = cacheHits + cacheMisses;
+        return lookups == 0 ? 0 : (double) cacheHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeStats{" +
+                "searches=" + searches +
+                ", inserts=" + inserts +
+                ", deletes=" + deletes +
+                ", leafSplits=" + leafSplits +
+                ", internalSplits=" + internalSplits +
+                ", merges=" + merges +
+                ", borrows=" + borrows +
+                ", nodesDeserialized=" + nodesDeserialized +
+                ", searchLatency=" + searchLatency +
+                ", insertLatency=" + insertLatency +
+                ", deleteLatency=" + deleteLatency +
+                ", height=" + height +
+                ", leafNodes=" + leafNodes +
+                ", internalNodes=" + internalNodes +
+                ", entries=" + entries +
+                ", fillFactor=" + fillFactor() +
+                ", arenaBytesUsed=" + arenaBytesUsed +
+                ", capacity=" + capacity +
+                ", residentBytes=" + residentBytes +
+                ", cacheHits=" + cacheHits +
+                ", cacheMisses=" + cacheMisses +
+                '}';
+    }
+
+    /**
+     * The distribution of the latencies of one kind of operation, in nanoseconds. Percentiles
+     * are accurate to about 3% and never below the true value.
+     */
+    public static final class Latency {
+        private final long[] counts; // Count of every bucket of a LatencyHistogram
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Latency(long[] counts, long total, long max) {
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return The mean latency, 0 if nothing was timed.
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return The largest latency, exact.
+         */
+        public long max() {
+            return max;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 100.
+         * @return The latency that percentile of the operations did not exceed, 0 if nothing was timed.
+         */
+        public long percentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be in [0, 100]");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(LatencyHistogram.highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Latency{" +
+                    "count=" + count +
+                    ", p50=" + percentile(50) +
+                    ", p99=" + percentile(99) +
+                    ", p999=" + percentile(99.9) +
+                    ", max=" + max +
+                    '}';
+        }
+    }
+}
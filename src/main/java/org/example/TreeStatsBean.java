@@ -0,0 +1,183 @@
+package org.example;
+
+import java.util.function.Supplier;
+
+/**
+ * Serves the attributes of {@link TreeStatsMXBean} from stats that are taken again once they
+ * are a second old.
+ */
+final class TreeStatsBean implements TreeStatsMXBean {
+    private static final long REFRESH_NANOS = 1_000_000_000L;
+
+    private final Supplier<TreeStats> source;
+    private TreeStats stats;
+    private long takenAt;
+
+    TreeStatsBean(Supplier<TreeStats> source) {
+        this.source = source;
+    }
+
+    private synchronized TreeStats stats() {
+        long now = System.nanoTime();
+        if (stats == null || now - takenAt >= REFRESH_NANOS) {
+            stats = source.get();
+            takenAt = now;
+        }
+        return stats;
+    }
+
+    @Override
+    public long getSearches() {
+        return stats().searches();
+    }
+
+    @Override
+    public long getInserts() {
+        return stats().inserts();
+    }
+
+    @Override
+    public long getDeletes() {
+        return stats().deletes();
+    }
+
+    @Override
+    public long getLeafSplits() {
+        return stats().leafSplits();
+    }
+
+    @Override
+    public long getInternalSplits() {
+        return stats().internalSplits();
+    }
+
+    @Override
+    public long getMerges() {
+        return stats().merges();
+    }
+
+    @Override
+    public long getBorrows() {
+        return stats().borrows();
+    }
+
+    @Override
+    public long getNodesDeserialized() {
+        return stats().nodesDeserialized();
+    }
+
+    @Override
+    public double getNodesDeserializedPerWrite() {
+        return stats().nodesDeserializedPerWrite();
+    }
+
+    @Override
+    public long getSearchP50() {
+        return stats().searchLatency().percentile(50);
+    }
+
+    @Override
+    public long getSearchP99() {
+        return stats().searchLatency().percentile(99);
+    }
+
+    @Override
+    public long getSearchP999() {
+        return stats().searchLatency().percentile(99.9);
+    }
+
+    @Override
+    public long getSearchMax() {
+        return stats().searchLatency().max();
+    }
+
+    @Override
+    public long getInsertP50() {
+        return stats().insertLatency().percentile(50);
+    }
+
+    @Override
+    public long getInsertP99() {
+        return stats().insertLatency().percentile(99);
+    }
+
+    @Override
+    public long getInsertP999() {
+        return stats().insertLatency().percentile(99.9);
+    }
+
+    @Override
+    public long getInsertMax() {
+        return stats().insertLatency().max();
+    }
+
+    @Override
+    public long getDeleteP50() {
+        return stats().deleteLatency().percentile(50);
+    }
+
+    @Override
+    public long getDeleteP99() {
+        return stats().deleteLatency().percentile(99);
+    }
+
+    @Override
+    public long getDeleteP999() {
+        return stats().deleteLatency().percentile(99.9);
+    }
+
+    @Override
+    public long getDeleteMax() {
+        return stats().deleteLatency().max();
+    }
+
+    @Override
+    public int getHeight() {
+        return stats().height();
+    }
+
+    @Override
+    public long getNodeCount() {
+        return stats().nodeCount();
+    }
+
+    @Override
+    public long getEntries() {
+        return stats().entries();
+    }
+
+    @Override
+    public double getFillFactor() {
+        return stats().fillFactor();
+    }
+
+    @Override
+    public long getArenaBytesUsed() {
+        return stats().arenaBytesUsed();
+    }
+
+    @Override
+    public long getCapacity() {
+        return stats().capacity();
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return stats().residentBytes();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return stats().cacheHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return stats().cacheMisses();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        return stats().cacheHitRate();
+    }
+}
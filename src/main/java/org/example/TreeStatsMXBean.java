@@ -0,0 +1,71 @@
+package org.example;
+
+/**
+ * The metrics of a {@link BPlusTree} as a JMX MXBean, registered by
+ * {@link BPlusTree#registerMBean(String)}. Latencies are in nanoseconds. The attributes come
+ * from {@link TreeStats} taken at most once a second, so reading them all at once costs one
+ * snapshot.
+ */
+public interface TreeStatsMXBean {
+    long getSearches();
+
+    long getInserts();
+
+    long getDeletes();
+
+    long getLeafSplits();
+
+    long getInternalSplits();
+
+    long getMerges();
+
+    long getBorrows();
+
+    long getNodesDeserialized();
+
+    double getNodesDeserializedPerWrite();
+
+    long getSearchP50();
+
+    long getSearchP99();
+
+    long getSearchP999();
+
+    long getSearchMax();
+
+    long getInsertP50();
+
+    long getInsertP99();
+
+    long getInsertP999();
+
+    long getInsertMax();
+
+    long getDeleteP50();
+
+    long getDeleteP99();
+
+    long getDeleteP999();
+
+    long getDeleteMax();
+
+    int getHeight();
+
+    long getNodeCount();
+
+    long getEntries();
+
+    double getFillFactor();
+
+    long getArenaBytesUsed();
+
+    long getCapacity();
+
+    long getResidentBytes();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+}
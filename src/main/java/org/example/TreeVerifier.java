@@ -0,0 +1,346 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks a whole tree for corruption, see {@link BPlusTree#verify()}. Every internal node whose
+ * children are internal nodes checks them in fork-join tasks of their own, so a large tree is
+ * spread over all cores, while the leaves below an internal node are checked by its task.
+ * <p>
+ * Besides the nodes, every block of the storage is accounted for: nodes, overflow pages, free
+ * blocks and snapshot copies are gathered, sorted by offset, and must follow one another up to
+ * the high-water mark. A block counted twice is reachable twice or both in use and free; a gap
+ * is a leaked block, unless it is the tail of a segment too short for the block after it.
+ * The subtree of a node too broken to follow counts as leaked as well.
+ * <p>
+ * No writer may run while it checks.
+ */
+final class TreeVerifier {
+    private static final int MAX_PROBLEMS = 100; // Problems beyond these are only counted
+
+    private final SegmentedBuffer buffer;
+    private final ArenaAllocator allocator;
+    private final VersionStore versions;
+    private final int rootOffset;
+    private final int order;
+    private final int keyWidth;
+    private final int minKeys;
+    private final int leafMinKeys; // Lower while deletes leave underfull leaves to the compactor
+    private final int highWaterMark;
+    private final int leafSize;
+    private final int internalSize;
+    private final ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger problemCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<long[]> blocks = new ConcurrentLinkedQueue<>(); // Chunks of blocks, see Blocks
+
+    TreeVerifier(SegmentedBuffer buffer, ArenaAllocator allocator, VersionStore versions, int rootOffset,
+                 int order, int keyWidth, int minKeys, int leafMinKeys) {
+        this.buffer = buffer;
+        this.allocator = allocator;
+        this.versions = versions;
+        this.rootOffset = rootOffset;
+        this.order = order;
+        this.keyWidth = keyWidth;
+        this.minKeys = minKeys;
+        this.leafMinKeys = leafMinKeys;
+        this.highWaterMark = allocator.getHighWaterMark();
+        this.leafSize = allocator.getBlockSize(BPlusTree.LEAF_CLASS);
+        this.internalSize = allocator.getBlockSize(BPlusTree.INTERNAL_CLASS);
+    }
+
+    /**
+     * @return A description of every problem found, empty if the tree is sound.
+     */
+    List<String> verify() {
+        Subtree tree = new NodeCheck(rootOffset, null, null, true).invoke();
+        if (tree != null && tree.firstLeaf != BPlusTreeNode.NIL && BPlusTreeNode.previousLeaf(buffer, tree.firstLeaf) != BPlusTreeNode.NIL) {
+            problem("First leaf " + tree.firstLeaf + " links to a previous leaf");
+        }
+        if (tree != null && tree.lastLeaf != BPlusTreeNode.NIL && BPlusTreeNode.nextLeaf(buffer, tree.lastLeaf) != BPlusTreeNode.NIL) {
+            problem("Last leaf " + tree.lastLeaf + " links to a next leaf");
+        }
+        Blocks free = new Blocks();
+        for (int sizeClass : new int[]{BPlusTree.LEAF_CLASS, BPlusTree.INTERNAL_CLASS, BPlusTree.OVERFLOW_CLASS}) {
+            collectFree(sizeClass, free);
+        }
+        versions.forEachCopy((offset, sizeClass) -> free.add(offset, allocator.getBlockSize(sizeClass)));
+        free.flush();
+        checkBlocks();
+
+        List<String> found = new ArrayList<>(problems);
+        int more = problemCount.get() - found.size();
+        if (more > 0) {
+            found.add("and " + more + " more problems");
+        }
+        return found;
+    }
+
+    private void problem(String description) {
+        if (problemCount.getAndIncrement() < MAX_PROBLEMS) {
+            problems.add(description);
+        }
+    }
+
+    /**
+     * @return true if a block of a size lies between the tree header and the high-water mark.
+     */
+    private boolean isBlock(int offset, int size) {
+        return offset >= BPlusTree.TREE_HEADER_SIZE && offset <= highWaterMark - size
+                && buffer.position(offset) + size <= buffer.segmentSize();
+    }
+
+    /**
+     * Check a node and everything below it.
+     *
+     * @param lower The smallest key the node may hold, null if there is none.
+     * @param upper The key every key of the node must be below, null if there is none.
+     * @return The shape of the subtree, or null if it is too broken to tell.
+     */
+    private Subtree check(int node, byte[] lower, byte[] upper, boolean isRoot, Blocks used) {
+        if (!isBlock(node, Math.min(leafSize, internalSize))) {
+            problem("Node offset " + node + " lies outside the tree");
+            return null;
+        }
+        boolean isLeaf = BPlusTreeNode.isLeaf(buffer, node);
+        if (!isBlock(node, isLeaf ? leafSize : internalSize)) {
+            problem("Node offset " + node + " lies outside the tree");
+            return null;
+        }
+        used.add(node, isLeaf ? leafSize : internalSize);
+        if (!BPlusTreeNode.hasValidChecksum(buffer, node, order, keyWidth)) {
+            problem("Node at " + node + " fails its checksum");
+            return null;
+        }
+        if (!BPlusTreeNode.fits(buffer, node, order, keyWidth)) {
+            problem("Node at " + node + " holds more keys than fit its page");
+            return null;
+        }
+        int keyCount = BPlusTreeNode.keyCount(buffer, node);
+        if (keyCount < (isRoot ? (isLeaf ? 0 : 1) : isLeaf ? leafMinKeys : minKeys)) {
+            problem("Node at " + node + " is underfull with " + keyCount + " keys");
+        }
+        byte[][] keys = new byte[keyCount][];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = BPlusTreeNode.keyAt(buffer, node, keyWidth, i);
+            byte[] before = i > 0 ? keys[i - 1] : lower;
+            if (before != null && Arrays.compareUnsigned(keys[i], before) < (i > 0 ? 1 : 0)) {
+                problem("Key " + i + " of node " + node + " is out of order");
+            }
+            if (upper != null && Arrays.compareUnsigned(keys[i], upper) >= 0) {
+                problem("Key " + i + " of node " + node + " is not below the separator above it");
+            }
+        }
+        if (isLeaf) {
+            checkValues(node, keyCount, used);
+            return new Subtree(1, node, node);
+        }
+
+        Subtree[] children = new Subtree[keyCount + 1];
+        int first = BPlusTreeNode.childAt(buffer, node, order, keyWidth, 0);
+        if (isBlock(first, Math.min(leafSize, internalSize)) && !BPlusTreeNode.isLeaf(buffer, first)) {
+            NodeCheck[] tasks = new NodeCheck[keyCount + 1];
+            for (int i = 0; i <= keyCount; i++) {
+                tasks[i] = new NodeCheck(BPlusTreeNode.childAt(buffer, node, order, keyWidth, i),
+                        i == 0 ? lower : keys[i - 1], i == keyCount ? upper : keys[i], false);
+            }
+            ForkJoinTask.invokeAll(tasks);
+            for (int i = 0; i <= keyCount; i++) {
+                children[i] = tasks[i].join();
+            }
+        } else {
+            for (int i = 0; i <= keyCount; i++) {
+                children[i] = check(BPlusTreeNode.childAt(buffer, node, order, keyWidth, i),
+                        i == 0 ? lower : keys[i - 1], i == keyCount ? upper : keys[i], false, used);
+            }
+        }
+
+        // A broken child hides its leaves, so the links around it cannot be checked
+        int height = 0;
+        int firstLeaf = BPlusTreeNode.NIL;
+        int lastLeaf = BPlusTreeNode.NIL;
+        for (int i = 0; i <= keyCount; i++) {
+            Subtree child = children[i];
+            if (child == null) {
+                lastLeaf = BPlusTreeNode.NIL;
+                continue;
+            }
+            if (height == 0) {
+                height = child.height + 1;
+            } else if (child.height + 1 != height) {
+                problem("Children of node " + node + " have leaves at different depths");
+            }
+            if (i == 0) {
+                firstLeaf = child.firstLeaf;
+            }
+            if (lastLeaf != BPlusTreeNode.NIL && child.firstLeaf != BPlusTreeNode.NIL
+                    && (BPlusTreeNode.nextLeaf(buffer, lastLeaf) != child.firstLeaf || BPlusTreeNode.previousLeaf(buffer, child.firstLeaf) != lastLeaf)) {
+                problem("Leaves " + lastLeaf + " and " + child.firstLeaf + " are not linked to each other");
+            }
+            lastLeaf = child.lastLeaf;
+        }
+        return height == 0 ? null : new Subtree(height, firstLeaf, lastLeaf);
+    }
+
+    /**
+     * Check that the values of a leaf are packed into its heap in key order, and walk the
+     * overflow pages of the others.
+     */
+    private void checkValues(int leaf, int keyCount, Blocks used) {
+        int heap = BPlusTreeNode.heapStart(order, keyWidth);
+        int heapEnd = BPlusTreeNode.heapEnd(order, keyWidth);
+        for (int i = 0; i < keyCount; i++) {
+            int length = BPlusTreeNode.slotLength(buffer, leaf, order, keyWidth, i);
+            int location = BPlusTreeNode.slotLocation(buffer, leaf, order, keyWidth, i);
+            if (length >= 0) {
+                if (location != heap || length > BPlusTreeNode.MAX_INLINE_SIZE || length > heapEnd - heap) {
+                    problem("Value " + i + " of leaf " + leaf + " is misplaced in its heap");
+                    return;
+                }
+                heap += length;
+                continue;
+            }
+            OverflowPages.forEachPage(buffer, location, ~length, page -> {
+                if (!isBlock(page, OverflowPages.PAGE_SIZE)) {
+                    problem("Overflow pages of leaf " + leaf + " link to " + page + ", outside the tree");
+                    return false;
+                }
+                used.add(page, OverflowPages.PAGE_SIZE);
+                return true;
+            });
+        }
+    }
+
+    private void collectFree(int sizeClass, Blocks free) {
+        int size = allocator.getBlockSize(sizeClass);
+        int[] remaining = {highWaterMark / size + 1}; // More blocks than fit means a cycle
+        allocator.forEachFree(sizeClass, block -> {
+            if (!isBlock(block, size)) {
+                problem("Free list of size class " + sizeClass + " links to " + block + ", outside the tree");
+                return false;
+            }
+            if (--remaining[0] < 0) {
+                problem("Free list of size class " + sizeClass + " has a cycle");
+                return false;
+            }
+            free.add(block, size);
+            return true;
+        });
+    }
+
+    /**
+     * Check that the blocks gathered cover everything from the tree header to the high-water
+     * mark exactly once.
+     */
+    private void checkBlocks() {
+        long[] all = new long[blocks.stream().mapToInt(chunk -> chunk.length).sum()];
+        int filled = 0;
+        for (long[] chunk : blocks) {
+            System.arraycopy(chunk, 0, all, filled, chunk.length);
+            filled += chunk.length;
+        }
+        Arrays.parallelSort(all);
+        int end = BPlusTree.TREE_HEADER_SIZE;
+        long leaked = 0;
+        int firstLeak = -1;
+        for (long block : all) {
+            int offset = (int) (block >>> 32);
+            int size = (int) block;
+            if (offset < end) {
+                problem("Block at " + offset + " is in use twice, or both in use and free");
+            } else if (offset > end && !isSegmentTail(end, offset, size)) {
+                leaked += offset - end;
+                firstLeak = firstLeak < 0 ? end : firstLeak;
+            }
+            end = Math.max(end, offset + size);
+        }
+        if (end < highWaterMark) {
+            leaked += highWaterMark - end;
+            firstLeak = firstLeak < 0 ? end : firstLeak;
+        }
+        if (leaked > 0) {
+            problem(leaked + " bytes are neither in use nor free, starting at " + firstLeak);
+        }
+    }
+
+    /**
+     * @return true if the space from one offset to a block is the end of a segment the
+     *         allocator left unused because the block did not fit there.
+     */
+    private boolean isSegmentTail(int from, int block, int size) {
+        return buffer.position(block) == 0 && buffer.segmentIndex(block) == buffer.segmentIndex(from) + 1
+                && buffer.segmentSize() - buffer.position(from) < size;
+    }
+
+    /**
+     * Checks the subtree of a node, collecting its blocks.
+     */
+    private final class NodeCheck extends RecursiveTask<Subtree> {
+        private static final long serialVersionUID = 1L;
+
+        private final int node;
+        private final byte[] lower;
+        private final byte[] upper;
+        private final boolean isRoot;
+
+        NodeCheck(int node, byte[] lower, byte[] upper, boolean isRoot) {
+            this.node = node;
+            this.lower = lower;
+            this.upper = upper;
+            this.isRoot = isRoot;
+        }
+
+        @Override
+        protected Subtree compute() {
+            Blocks used = new Blocks();
+            try {
+                return check(node, lower, upper, isRoot, used);
+            } finally {
+                used.flush();
+            }
+        }
+    }
+
+    /**
+     * The blocks one task found, each as its offset in the high and its size in the low 32
+     * bits, so sorting them sorts by offset.
+     */
+    private final class Blocks {
+        private long[] entries = new long[64];
+        private int count;
+
+        void add(int offset, int size) {
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            entries[count++] = (long) offset << 32 | size;
+        }
+
+        void flush() {
+            if (count > 0) {
+                blocks.add(Arrays.copyOf(entries, count));
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * The shape of a checked subtree.
+     */
+    private static final class Subtree {
+        final int height;
+        final int firstLeaf; // NIL if a broken node hides it
+        final int lastLeaf; // NIL if a broken node hides it
+
+        Subtree(int height, int firstLeaf, int lastLeaf) {
+            this.height = height;
+            this.firstLeaf = firstLeaf;
+            this.lastLeaf = lastLeaf;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns values into bytes and back. Values are stored exactly as encoded, so a codec decides
+ * both the format and the size of what the tree keeps.
+ *
+ * @param <V> The type of the values.
+ * @see ValueCodecs
+ */
+public interface ValueCodec<V> {
+
+    /**
+     * Encode a value.
+     *
+     * @param value The value.
+     * @return The encoded value, the tree does not modify it.
+     */
+    byte[] encode(V value);
+
+    /**
+     * Decode a value from a buffer. The buffer is shared with the tree: the codec may read it
+     * with absolute gets but must not modify it, keep it, or rely on its position.
+     *
+     * @param source The buffer holding the encoded value.
+     * @param position The position of the first byte in the buffer.
+     * @param length The length of the encoded value.
+     * @return The value.
+     */
+    V decode(ByteBuffer source, int position, int length);
+}
@@ -0,0 +1,68 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The built-in {@link ValueCodec}s.
+ */
+public final class ValueCodecs {
+
+    private ValueCodecs() {
+    }
+
+    /**
+     * Strings encoded as UTF-8, whatever the platform's default charset.
+     */
+    public static final ValueCodec<String> UTF8 = new ValueCodec<>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer source, int position, int length) {
+            if (source.hasArray()) {
+                return new String(source.array(), source.arrayOffset() + position, length, StandardCharsets.UTF_8);
+            }
+            byte[] bytes = new byte[length];
+            source.get(position, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Raw bytes, stored as they are. Decoding returns a new array.
+     */
+    public static final ValueCodec<byte[]> BYTES = new ValueCodec<>() {
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer source, int position, int length) {
+            byte[] bytes = new byte[length];
+            source.get(position, bytes);
+            return bytes;
+        }
+    };
+
+    /**
+     * The remaining bytes of a buffer, whose position is left untouched. Decoding returns a new
+     * heap buffer that the caller owns.
+     */
+    public static final ValueCodec<ByteBuffer> BYTE_BUFFER = new ValueCodec<>() {
+        @Override
+        public byte[] encode(ByteBuffer value) {
+            byte[] bytes = new byte[value.remaining()];
+            value.get(value.position(), bytes);
+            return bytes;
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer source, int position, int length) {
+            return ByteBuffer.wrap(BYTES.decode(source, position, length));
+        }
+    };
+}
@@ -0,0 +1,241 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the blocks of a tree the way its open snapshots saw them. Every snapshot gets a
+ * generation, and the first time a writer changes or frees a block after the newest snapshot
+ * was taken, the block is first copied into another block of its size class. A snapshot reads
+ * a block from the oldest copy made at or after its generation, or from the tree itself when
+ * no such copy exists, since the block is then unchanged. The generations double as reclamation
+ * epochs: once no open snapshot has a generation a copy serves, the copy is freed.
+ * <p>
+ * Snapshots are opened and closed while no writer runs. Copies are made under the allocator
+ * lock, and readers look them up without locking.
+ */
+final class VersionStore {
+    private static final int NO_COPY = ArenaAllocator.NIL; // Copy of a block no snapshot can reach
+
+    /**
+     * Makes and frees the copies of blocks.
+     */
+    interface Blocks {
+        /**
+         * Copy a block into a newly allocated block of the same size class.
+         *
+         * @return The offset of the copy.
+         */
+        int copy(int offset, int sizeClass);
+
+        void free(int offset, int sizeClass);
+    }
+
+    private final ArenaAllocator allocator;
+    private final Blocks blocks;
+    private final ConcurrentHashMap<Integer, Versions> versions = new ConcurrentHashMap<>(); // Copies by the offset of the block
+    private final TreeMap<Integer, Integer> open = new TreeMap<>(); // High-water mark of every open generation
+    private int lastGeneration;
+    // Changed only while no writer runs
+    private int newest; // Generation of the newest open snapshot, 0 if there is none
+    private int highWaterMark; // Blocks at or above it are newer than every open snapshot
+    private boolean reclaiming; // Freeing copies, which must not be copied themselves
+
+    VersionStore(ArenaAllocator allocator, Blocks blocks) {
+        this.allocator = allocator;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Start a new generation for a snapshot of the tree as it is now.
+     *
+     * @param highWaterMark The high-water mark of the allocator.
+     * @return The generation of the snapshot.
+     */
+    int open(int highWaterMark) {
+        synchronized (allocator) {
+            int generation = ++lastGeneration;
+            open.put(generation, highWaterMark);
+            newest = generation;
+            this.highWaterMark = highWaterMark;
+            return generation;
+        }
+    }
+
+    /**
+     * Forget a generation and free the copies no other open snapshot reads.
+     *
+     * @return false if the generation was already closed.
+     */
+    boolean close(int generation) {
+        synchronized (allocator) {
+            if (open.remove(generation) == null) {
+                return false;
+            }
+            newest = open.isEmpty() ? 0 : open.lastKey();
+            highWaterMark = open.isEmpty() ? 0 : open.get(newest);
+            reclaiming = true;
+            try {
+                for (var iterator = versions.entrySet().iterator(); iterator.hasNext(); ) {
+                    Map.Entry<Integer, Versions> entry = iterator.next();
+                    Versions kept = entry.getValue().retain(open, blocks);
+                    if (kept == null) {
+                        iterator.remove();
+                    } else {
+                        entry.setValue(kept);
+                    }
+                }
+            } finally {
+                reclaiming = false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Forget every generation, freeing every copy.
+     *
+     * @return false if no generation was open.
+     */
+    boolean closeAll() {
+        synchronized (allocator) {
+            boolean closed = false;
+            while (!open.isEmpty()) {
+                closed |= close(open.firstKey());
+            }
+            return closed;
+        }
+    }
+
+    /**
+     * Copy a block before it is changed or freed, unless it is already copied for the newest
+     * snapshot or newer than all of them.
+     */
+    void preserve(int offset, int sizeClass) {
+        add(offset, sizeClass, true);
+    }
+
+    /**
+     * Note that a freed block is handed out again. The open snapshots cannot reach it, or it
+     * would have been copied when it was freed, so it needs no copy.
+     */
+    void reused(int offset, int sizeClass) {
+        add(offset, sizeClass, false);
+    }
+
+    private void add(int offset, int sizeClass, boolean copy) {
+        if (newest == 0 || offset >= highWaterMark || isCurrent(versions.get(offset))) {
+            return;
+        }
+        synchronized (allocator) {
+            Versions current = versions.get(offset);
+            if (reclaiming || isCurrent(current)) {
+                return;
+            }
+            int copyOffset = copy ? blocks.copy(offset, sizeClass) : NO_COPY;
+            versions.put(offset, Versions.append(current, sizeClass, newest, copyOffset));
+        }
+    }
+
+    private boolean isCurrent(Versions current) {
+        return current != null && current.generations[current.generations.length - 1] >= newest;
+    }
+
+    /**
+     * Visit every copy kept for the open snapshots. No writer may run.
+     */
+    void forEachCopy(CopyVisitor visitor) {
+        synchronized (allocator) {
+            for (Versions current : versions.values()) {
+                for (int copy : current.copies) {
+                    if (copy != NO_COPY) {
+                        visitor.visit(copy, current.sizeClass);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Learns about the copies of blocks, see {@link #forEachCopy(CopyVisitor)}.
+     */
+    interface CopyVisitor {
+        void visit(int offset, int sizeClass);
+    }
+
+    /**
+     * Find where a snapshot reads a block from.
+     *
+     * @param offset The offset of the block in the tree.
+     * @param generation The generation of the snapshot.
+     * @return The offset of the copy, or the offset of the block itself if it did not change.
+     */
+    int resolve(int offset, int generation) {
+        Versions current = versions.get(offset);
+        if (current != null) {
+            for (int i = 0; i < current.generations.length; i++) {
+                if (current.generations[i] >= generation) {
+                    return current.copies[i];
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * The copies of a single block, oldest first. A copy serves the generations after the one of
+     * the copy before it, up to its own. Never changed, so readers need no lock.
+     */
+    private static final class Versions {
+        final int sizeClass;
+        final int[] generations;
+        final int[] copies;
+
+        Versions(int sizeClass, int[] generations, int[] copies) {
+            this.sizeClass = sizeClass;
+            this.generations = generations;
+            this.copies = copies;
+        }
+
+        static Versions append(Versions current, int sizeClass, int generation, int copy) {
+            if (current == null) {
+                return new Versions(sizeClass, new int[]{generation}, new int[]{copy});
+            }
+            int length = current.generations.length;
+            int[] generations = Arrays.copyOf(current.generations, length + 1);
+            int[] copies = Arrays.copyOf(current.copies, length + 1);
+            generations[length] = generation;
+            copies[length] = copy;
+            return new Versions(sizeClass, generations, copies);
+        }
+
+        /**
+         * Free the copies that serve no open generation.
+         *
+         * @return The remaining copies, or null if there are none.
+         */
+        Versions retain(TreeMap<Integer, Integer> open, Blocks blocks) {
+            int[] generations = new int[this.generations.length];
+            int[] copies = new int[this.copies.length];
+            int kept = 0;
+            int after = 0;
+            for (int i = 0; i < this.generations.length; i++) {
+                Integer served = open.ceilingKey(after + 1);
+                if (served != null && served <= this.generations[i]) {
+                    generations[kept] = this.generations[i];
+                    copies[kept++] = this.copies[i];
+                } else if (this.copies[i] != NO_COPY) {
+                    blocks.free(this.copies[i], sizeClass);
+                }
+                after = this.generations[i];
+            }
+            if (kept == 0) {
+                return null;
+            }
+            return kept == generations.length ? this
+                    : new Versions(sizeClass, Arrays.copyOf(generations, kept), Arrays.copyOf(copies, kept));
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * The write-ahead log of a file-backed {@link BPlusTree}. It makes every write durable without
+ * forcing the mapped tree file, which would write back every dirty page of it.
+ * <p>
+ * The log holds two kinds of records since the last checkpoint:
+ * <ul>
+ *     <li>Images: the bytes a block of the tree file had at the checkpoint, logged before the block
+ *     is first changed. Blocks beyond the high-water mark of the checkpoint were free space then
+ *     and need no image.</li>
+ *     <li>Inserts and deletes: the logical operations, logged before the tree is changed.</li>
+ * </ul>
+ * The operating system writes dirty pages of the tree file back in any order, so after a crash the
+ * file can hold any mix of old and new pages. Recovery first writes every image back, which
+ * restores the file exactly as it was at the checkpoint, then replays the operations on it.
+ * A checkpoint forces the tree file and empties the log.
+ * <p>
+ * Every record is {@code [int payload length][int CRC32C][byte type][payload]}, the checksum
+ * covering the type and the payload. Replay stops at the first record that is incomplete or fails
+ * its checksum, which is where a crash cut the log off.
+ * <p>
+ * Records are appended to an in-memory buffer and written and forced in batches, one batch for
+ * all writers that are waiting, as decided by the {@link SyncPolicy}. Images are the exception:
+ * they are handed to the operating system before their block changes, which makes recovery from
+ * a crash of the process exact. Forcing each image would cost a device flush per block after
+ * every checkpoint, so images are forced by {@link #forceImages()} instead, right before tree
+ * pages are written back: a tree forces them before it forces its file at a checkpoint, and a
+ * paged tree before its {@link PageCache} writes a dirty segment back. The operating system
+ * writes the pages of a mapped tree file back whenever it likes, so a power failure can leave
+ * such a page on the device ahead of its image; a mapped tree recovers exactly from a crash of
+ * the process only, a paged tree from a power failure as well.
+ * <p>
+ * Every method is thread-safe.
+ */
+public class WriteAheadLog {
+    private static final int MAGIC = 0x4250574C; // "BPWL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int STATE_POSITION = 8;
+    private static final int STATE_OPEN = 0;
+    private static final int STATE_CLEAN = 1;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final byte IMAGE = 1;
+    private static final byte INSERT = 2;
+    private static final byte DELETE = 3;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Receives the logical operations of the log during recovery.
+     */
+    public interface Replay {
+        void insert(byte[] key, byte[] value);
+
+        void delete(byte[] key);
+    }
+
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final boolean clean; // Whether the log was closed cleanly before it was opened
+    private final Set<Integer> touched = ConcurrentHashMap.newKeySet(); // Blocks imaged since the checkpoint
+    private final CRC32C checksum = new CRC32C(); // Guarded by this
+    private final Object syncLock = new Object(); // Held by the one thread writing a batch
+    private final Thread flusher;
+    private volatile SegmentedBuffer buffer;
+    private volatile int checkpointHighWaterMark;
+    private volatile boolean replaying;
+    private volatile boolean closed;
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Guarded by this
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Guarded by syncLock
+    private long appended; // Log sequence number of the end of the last record, guarded by this
+    private volatile long imaged; // Log sequence number of the end of the last image
+    private volatile long durable; // Log sequence number up to which the log is forced
+    private long writePosition; // File position of the next batch, guarded by syncLock
+    private volatile IOException failure;
+
+    private WriteAheadLog(FileChannel channel, SyncPolicy policy, boolean clean) {
+        this.channel = channel;
+        this.policy = policy;
+        this.clean = clean;
+        this.writePosition = HEADER_SIZE;
+        if (policy.mode != SyncPolicy.Mode.PER_OPERATION) {
+            flusher = new Thread(this::flushPeriodically, "bplustree-wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Open the log of a tree, creating it if it does not exist. A new log counts as clean.
+     *
+     * @param file The path of the log.
+     * @param policy When records are forced to the storage device.
+     * @return The log, positioned at its first record.
+     * @throws UncheckedIOException If the file cannot be opened or is not a log.
+     */
+    public static WriteAheadLog open(Path file, SyncPolicy policy) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean clean = true;
+            if (channel.size() >= HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                    throw new IOException("Not a write-ahead log of a supported version: " + file);
+                }
+                clean = header.getInt(STATE_POSITION) == STATE_CLEAN;
+            } else {
+                channel.truncate(0);
+                writeHeader(channel, STATE_CLEAN);
+                channel.force(true);
+            }
+            return new WriteAheadLog(channel, policy, clean);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new UncheckedIOException("Failed to open the write-ahead log", e);
+        }
+    }
+
+    /**
+     * @return Whether the log was closed cleanly, so the tree file needs no recovery.
+     */
+    public boolean isClean() {
+        return clean;
+    }
+
+    /**
+     * Write the image of every block back into the tree file, restoring it as it was at the last
+     * checkpoint, and cut off a torn record at the end of the log.
+     *
+     * @param tree The buffer over the tree file.
+     */
+    public void restoreImages(SegmentedBuffer tree) {
+        long end = scan((type, payload) -> {
+            if (type == IMAGE) {
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                int offset = record.getInt();
+                while (tree.segmentIndex(offset) >= tree.segmentCount()) {
+                    tree.grow();
+                }
+                tree.pin(offset);
+                tree.put(offset, payload, Integer.BYTES, payload.length - Integer.BYTES);
+                tree.unpin(offset);
+            }
+        });
+        synchronized (syncLock) {
+            try {
+                channel.truncate(end);
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to truncate the write-ahead log", e);
+            }
+            writePosition = end;
+        }
+    }
+
+    /**
+     * Start logging the changes of a tree. From here on every block below the high-water mark is
+     * imaged before it is first changed.
+     *
+     * @param tree The buffer over the tree file.
+     * @param highWaterMark The high-water mark of the allocator of the tree.
+     */
+    public void attach(SegmentedBuffer tree, int highWaterMark) {
+        this.buffer = tree;
+        this.checkpointHighWaterMark = highWaterMark;
+        touched.clear();
+    }
+
+    /**
+     * Hand the inserts and deletes of the log to a replay, in the order they were logged. Nothing
+     * is logged for them, but blocks they change are still imaged.
+     */
+    public void replay(Replay replay) {
+        replaying = true;
+        try {
+            scan((type, payload) -> {
+                if (type == INSERT) {
+                    ByteBuffer record = ByteBuffer.wrap(payload);
+                    byte[] key = new byte[record.getInt()];
+                    record.get(key);
+                    byte[] value = new byte[record.remaining()];
+                    record.get(value);
+                    replay.insert(key, value);
+                } else if (type == DELETE) {
+                    replay.delete(payload);
+                }
+            });
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Log the image of a block before it is changed, unless it is already logged or was free space
+     * at the last checkpoint. Does nothing while the log is not attached to a tree.
+     *
+     * @param offset The offset of the block in the tree file.
+     * @param length The size of the block.
+     */
+    public void touch(int offset, int length) {
+        SegmentedBuffer tree = buffer;
+        if (tree == null || offset >= checkpointHighWaterMark || !touched.add(offset)) {
+            return;
+        }
+        byte[] image = new byte[Integer.BYTES + length];
+        ByteBuffer.wrap(image).putInt(offset);
+        tree.get(offset, image, Integer.BYTES, length);
+        // The block changes right after this, and the operating system may write it back to the
+        // tree file at any time, so the image cannot wait in memory for the next batch
+        synchronized (syncLock) {
+            checkFailure();
+            imaged = append(IMAGE, image);
+            write();
+        }
+    }
+
+    /**
+     * Force every image logged so far to the storage device, unless a batch already did. Must be
+     * called before changed tree pages are written back, so no page reaches the device ahead of
+     * the image that undoes it.
+     *
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    public void forceImages() {
+        long target = imaged;
+        if (durable < target) {
+            sync(target);
+        }
+    }
+
+    public void logInsert(byte[] key, byte[] value) {
+        if (replaying) {
+            return;
+        }
+        byte[] payload = new byte[Integer.BYTES + key.length + value.length];
+        ByteBuffer.wrap(payload).putInt(key.length).put(key).put(value);
+        append(INSERT, payload);
+    }
+
+    public void logDelete(byte[] key) {
+        if (!replaying) {
+            append(DELETE, key);
+        }
+    }
+
+    /**
+     * @return The log sequence number of the end of the record.
+     */
+    private synchronized long append(byte type, byte[] payload) {
+        int length = RECORD_HEADER_SIZE + payload.length;
+        if (pending.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        checksum.reset();
+        checksum.update(type);
+        checksum.update(payload);
+        pending.putInt(payload.length).putInt((int) checksum.getValue()).put(type).put(payload);
+        appended += length;
+        return appended;
+    }
+
+    /**
+     * Wait until the records appended so far are as durable as the policy demands.
+     *
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    public void commit() {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        switch (policy.mode) {
+            case PER_OPERATION:
+                sync(target);
+                break;
+            case BATCHED:
+                awaitDurable(target);
+                break;
+            case ASYNC:
+                checkFailure();
+                break;
+        }
+    }
+
+    /**
+     * Write and force every appended record, unless another thread already did so for all records
+     * up to the target. Threads that arrive while a batch is written form the next batch.
+     */
+    private void sync(long target) {
+        synchronized (syncLock) {
+            checkFailure();
+            if (durable >= target) {
+                return;
+            }
+            long end = write();
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                syncLock.notifyAll();
+                throw new UncheckedIOException("Failed to force the write-ahead log", e);
+            }
+            durable = end;
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Hand every appended record to the operating system, without forcing it. The caller must
+     * hold the sync lock.
+     *
+     * @return The log sequence number of the end of the last record written.
+     */
+    private long write() {
+        ByteBuffer batch;
+        long end;
+        synchronized (this) {
+            batch = pending;
+            pending = spare;
+            end = appended;
+        }
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                writePosition += channel.write(batch, writePosition);
+            }
+        } catch (IOException e) {
+            failure = e;
+            syncLock.notifyAll();
+            throw new UncheckedIOException("Failed to write the write-ahead log", e);
+        } finally {
+            batch.clear();
+            spare = batch;
+        }
+        return end;
+    }
+
+    private void awaitDurable(long target) {
+        synchronized (syncLock) {
+            boolean interrupted = false;
+            while (durable < target && failure == null && !closed) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() {
+        IOException e = failure;
+        if (e != null) {
+            throw new UncheckedIOException("Failed to write the write-ahead log", e);
+        }
+    }
+
+    /**
+     * The loop of the flusher thread. It parks rather than sleeps, since interrupting a thread
+     * in the middle of a write would close the channel.
+     */
+    private void flushPeriodically() {
+        long interval = TimeUnit.MILLISECONDS.toNanos(policy.intervalMillis);
+        while (true) {
+            LockSupport.parkNanos(this, interval);
+            if (closed) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                target = appended;
+            }
+            try {
+                sync(target);
+            } catch (UncheckedIOException e) {
+                return; // Writers see the failure
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes the log holds, including records not written yet.
+     */
+    public long size() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                return writePosition + pending.position();
+            }
+        }
+    }
+
+    /**
+     * Empty the log after the tree file was forced. The caller must make sure nothing is appended
+     * meanwhile.
+     *
+     * @param highWaterMark The high-water mark of the allocator of the tree.
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    public void checkpoint(int highWaterMark) {
+        synchronized (syncLock) {
+            synchronized (this) {
+                pending.clear();
+                durable = appended;
+                try {
+                    channel.truncate(HEADER_SIZE);
+                    writeHeader(channel, STATE_OPEN);
+                    channel.force(true);
+                } catch (IOException e) {
+                    failure = e;
+                    throw new UncheckedIOException("Failed to reset the write-ahead log", e);
+                } finally {
+                    syncLock.notifyAll();
+                }
+                writePosition = HEADER_SIZE;
+                touched.clear();
+                checkpointHighWaterMark = highWaterMark;
+            }
+        }
+    }
+
+    /**
+     * Mark the log clean and close it. The tree must be checkpointed right before.
+     *
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    public void close() {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (syncLock) {
+            syncLock.notifyAll();
+            try {
+                writeHeader(channel, STATE_CLEAN);
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to close the write-ahead log", e);
+            }
+        }
+    }
+
+    /**
+     * Close the log without marking it clean, after the tree failed to open.
+     */
+    public void abandon() {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Already failing, keep the original exception
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int state) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putInt(STATE_POSITION, state);
+        channel.write(header, 0);
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, byte[] payload);
+    }
+
+    /**
+     * Visit every valid record of the log in order.
+     *
+     * @return The file position after the last valid record.
+     */
+    private long scan(RecordVisitor visitor) {
+        long end = HEADER_SIZE;
+        try {
+            long size = channel.size();
+            InputStream stream = Channels.newInputStream(channel.position(HEADER_SIZE));
+            DataInputStream input = new DataInputStream(new BufferedInputStream(stream, INITIAL_BUFFER_SIZE));
+            CRC32C crc = new CRC32C();
+            while (true) {
+                int length;
+                int expected;
+                byte type;
+                byte[] payload;
+                try {
+                    length = input.readInt();
+                    expected = input.readInt();
+                    if (length < 0 || length > size - end - RECORD_HEADER_SIZE) {
+                        break;
+                    }
+                    type = input.readByte();
+                    payload = new byte[length];
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                visitor.visit(type, payload);
+                end += RECORD_HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the write-ahead log", e);
+        }
+        return end;
+    }
+}
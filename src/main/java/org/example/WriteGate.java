@@ -0,0 +1,96 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The gate every write of a {@link BPlusTree} passes, which checkpoints, snapshots and the other
+ * operations that need the tree at rest close to wait for the writes in progress and hold off
+ * new ones.
+ * <p>
+ * Writers count themselves in one of several stripes, picked by thread and each on cache lines
+ * of its own, so concurrent writers share no counter the way the readers of a read-write lock
+ * do. Closing the gate raises a flag and waits until every stripe drains. A writer raises its
+ * stripe before it checks the flag and the closer raises the flag before it checks the stripes,
+ * so at least one of them sees the other; a writer that finds the gate closed backs out and
+ * waits for it to open.
+ * <p>
+ * A {@link ShardedBPlusTree} gives every shard two gates, one passed by its writes and one by
+ * its reads, which a split closes one after the other.
+ */
+final class WriteGate {
+    private static final int MAX_STRIPES = 32;
+    private static final int STRIPE_SPACING = 16; // Longs from one stripe to the next, two cache lines
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private final AtomicLongArray stripes; // Writers that passed the gate, per stripe of threads
+    private final int stripeMask;
+    private final ReentrantLock closer = new ReentrantLock(); // Held for as long as the gate is closed
+    private volatile boolean closed;
+
+    WriteGate() {
+        int stripeCount = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+        this.stripes = new AtomicLongArray(stripeCount * STRIPE_SPACING);
+        this.stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * Pass the gate to write, waiting while it is closed. The thread that closed the gate passes
+     * it right away. Every call must be followed by {@link #exit()} on the same thread.
+     */
+    void enter() {
+        int stripe = stripe();
+        while (true) {
+            stripes.getAndIncrement(stripe);
+            if (!closed || closer.isHeldByCurrentThread()) {
+                return;
+            }
+            stripes.getAndDecrement(stripe);
+            // Only returns once the closer opened the gate again
+            closer.lock();
+            closer.unlock();
+        }
+    }
+
+    /**
+     * Leave the gate after a write.
+     */
+    void exit() {
+        stripes.getAndDecrement(stripe());
+    }
+
+    /**
+     * Close the gate and wait for the writes that passed it. May be called again by the thread
+     * that closed it, and must be followed by as many calls to {@link #open()}.
+     */
+    void close() {
+        closer.lock();
+        if (closer.getHoldCount() > 1) {
+            return;
+        }
+        closed = true;
+        for (int stripe = 0; stripe < stripes.length(); stripe += STRIPE_SPACING) {
+            for (int spins = 1; stripes.get(stripe) != 0; spins++) {
+                if (spins % SPINS_BEFORE_YIELD == 0) {
+                    Thread.yield();
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the gate closed by {@link #close()}, letting the waiting writers through.
+     */
+    void open() {
+        if (closer.getHoldCount() == 1) {
+            closed = false;
+        }
+        closer.unlock();
+    }
+
+    private int stripe() {
+        return ((int) Thread.currentThread().getId() & stripeMask) * STRIPE_SPACING;
+    }
+}
@@ -1,8 +1,33 @@
 
 import org.example.BPlusTree;
+import org.example.KeyCodec;
+import org.example.KeyCodecs;
+import org.example.ShardedBPlusTree;
+import org.example.SyncPolicy;
+import org.example.ValueCodecs;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -10,7 +35,7 @@ public class BPlusTreeTest {
    @Test
     public void should_create_tree(){
 
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(3,"4");
       tree.printTree("test");
    }
@@ -24,26 +49,26 @@ public class BPlusTreeTest {
    }
    @Test
    public void should_find_insertion(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(3,"4");
       assertEquals("4",tree.search(3));
    }
    @Test
    public void should_notFind_insertion(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(3,"4");
       assertNotEquals(0,tree.search(2));
    }
    @Test
    public void should_fix_order_in_leaf(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(3,"4");
       tree.insert(2,"4");
       tree.printTree("");
    }
    @Test
    public void should_inert_many(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       var items = new HashMap<Integer,String>();
       for(int i = 0;i<10;i++){
          items.put(i, String.valueOf((int)(50 + Math.random() * 51)));
@@ -53,7 +78,7 @@ public class BPlusTreeTest {
    }
    @Test
    public void should_inert_many_plus(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       var items = new HashMap<Integer,String>();
       for(int i = 0;i<20;i++){
          items.put(i, String.valueOf((int)(50 + Math.random() * 51)));
@@ -63,7 +88,7 @@ public class BPlusTreeTest {
    }
    @Test
    public  void should_split_root(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       var items = new HashMap<Integer,String>();
       for(int i = 0;i<4;i++){
          items.put(i, String.valueOf((int)(50 + Math.random() * 51)));
@@ -73,7 +98,7 @@ public class BPlusTreeTest {
    }
    @Test
    public void should_delete_from_root(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(0,"test");
       tree.insert(1,"test2");
 
@@ -83,7 +108,7 @@ public class BPlusTreeTest {
    }
    @Test
    public void should_handle_under_flow_from_left_borrow(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(0,"test");
       tree.insert(1,"test2");
       tree.insert(2,"test");
@@ -93,7 +118,7 @@ public class BPlusTreeTest {
    }
    @Test
    public void should_handle_under_flow_from_left_merge(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       tree.insert(0,"test");
       tree.insert(1,"test2");
       tree.insert(2,"test");
@@ -106,7 +131,7 @@ public class BPlusTreeTest {
 
    @Test
    public void should_handle_under_flow_from_right_borrow(){
-      var tree = new BPlusTree();
+      var tree = new BPlusTree<Integer,String>();
       var items = new HashMap<Integer,String>();
       for(int i = 0;i<5;i++){
          items.put(i, String.valueOf((int)(50 + Math.random() * 51)));
@@ -116,4 +141,1116 @@ public class BPlusTreeTest {
       tree.delete(4);
       tree.printTree("");
    }
+   @Test
+   public void should_find_every_key_after_many_inserts(){
+      var tree = new BPlusTree<Integer,String>(1,4);
+      for(int i = 0;i<200;i++){
+         tree.insert(i,"v"+i);
+      }
+      for(int i = 0;i<200;i++){
+         assertEquals("v"+i,tree.search(i));
+      }
+      assertNull(tree.search(-1));
+      assertNull(tree.search(200));
+   }
+   @Test
+   public void should_store_values_of_any_length(){
+      var tree = new BPlusTree<Integer,String>(1,4);
+      int[] lengths = {0,1,15,16,64,65,252,253,5000};
+      for(int round = 0;round<3;round++){
+         for(int i = 0;i<300;i++){
+            tree.insert(i,String.valueOf((char)('a'+i%26)).repeat(lengths[(i+round)%lengths.length]));
+         }
+         for(int i = 0;i<300;i++){
+            assertEquals(String.valueOf((char)('a'+i%26)).repeat(lengths[(i+round)%lengths.length]),tree.search(i));
+         }
+         var scanned = new ArrayList<Map.Entry<Integer,String>>();
+         tree.range(0,299).forEachRemaining(scanned::add);
+         assertEquals(300,scanned.size());
+         assertEquals("c".repeat(lengths[(2+round)%lengths.length]),scanned.get(2).getValue());
+         for(int i = 0;i<300;i+=2){
+            tree.delete(i);
+         }
+      }
+      long capacity = tree.capacity();
+      for(int round = 0;round<50;round++){
+         for(int i = 0;i<300;i++){
+            tree.insert(i,"x".repeat(1000));
+         }
+         for(int i = 0;i<300;i++){
+            tree.delete(i);
+         }
+      }
+      // Overflow pages of deleted and replaced values are reused
+      assertEquals(capacity,tree.capacity());
+      assertTrue(tree.isEmpty());
+   }
+   @Test
+   public void should_match_reference_map_after_random_inserts_and_deletes(){
+      for(int order = 3;order<=6;order++){
+         var tree = new BPlusTree<Integer,String>(4,order);
+         var reference = new TreeMap<Integer,String>();
+         var random = new Random(order);
+         for(int i = 0;i<3000;i++){
+            int key = random.nextInt(500);
+            if(random.nextInt(3) == 0){
+               tree.delete(key);
+               reference.remove(key);
+            }else{
+               tree.insert(key,"v"+i);
+               reference.put(key,"v"+i);
+            }
+         }
+         for(int key = 0;key<500;key++){
+            assertEquals(reference.get(key),tree.search(key));
+         }
+         for(int key : new ArrayList<>(reference.keySet())){
+            tree.delete(key);
+         }
+         for(int key = 0;key<500;key++){
+            assertNull(tree.search(key));
+         }
+      }
+   }
+   @Test
+   public void should_reopen_file_backed_tree() throws Exception{
+      var file = Files.createTempFile("bplustree",".idx");
+      try{
+         Files.delete(file);
+         try(var tree = BPlusTree.open(file,1,4)){
+            for(int i = 0;i<100;i++){
+               tree.insert(i,"v"+i);
+            }
+            tree.delete(50);
+            tree.insert(200,"long".repeat(200));
+         }
+         try(var tree = BPlusTree.open(file,1,4)){
+            for(int i = 0;i<100;i++){
+               assertEquals(i == 50 ? null : "v"+i,tree.search(i));
+            }
+            assertEquals("long".repeat(200),tree.search(200));
+            tree.insert(100,"v100");
+            assertEquals("v100",tree.search(100));
+         }
+         assertThrows(IllegalStateException.class,()->BPlusTree.open(file,1,5));
+      }finally{
+         Files.deleteIfExists(file);
+      }
+   }
+   @Test
+   public void should_reuse_nodes_under_insert_delete_churn(){
+      var tree = new BPlusTree<Integer,String>(1,4);
+      for(int round = 0;round<2000;round++){
+         for(int i = 0;i<100;i++){
+            tree.insert(round * 100 + i,"v"+i);
+         }
+         for(int i = 0;i<100;i++){
+            tree.delete(round * 100 + i);
+         }
+      }
+      assertNull(tree.search(0));
+   }
+   @Test
+   public void should_grow_past_initial_segment(){
+      var tree = new BPlusTree<Integer,String>(1,4);
+      for(int i = 0;i<50000;i++){
+         tree.insert(i,"v"+i);
+      }
+      assertTrue(tree.capacity() > 1024 * 1024);
+      for(int i = 0;i<50000;i++){
+         assertEquals("v"+i,tree.search(i));
+      }
+   }
+   @Test
+   public void should_reopen_file_backed_tree_with_several_segments() throws Exception{
+      var file = Files.createTempFile("bplustree",".idx");
+      try{
+         Files.delete(file);
+         try(var tree = BPlusTree.open(file,1,8)){
+            for(int i = 0;i<50000;i++){
+               tree.insert(i,"v"+i);
+            }
+            assertTrue(tree.capacity() > 1024 * 1024);
+         }
+         try(var tree = BPlusTree.open(file,4,8)){
+            for(int i = 0;i<50000;i++){
+               assertEquals("v"+i,tree.search(i));
+            }
+         }
+      }finally{
+         Files.deleteIfExists(file);
+      }
+   }
+   @Test
+   public void should_store_nodes_off_heap(){
+      try(var tree = BPlusTree.offHeap(1,8)){
+         for(int i = 0;i<50000;i++){
+            tree.insert(i,"v"+i);
+         }
+         for(int i = 0;i<50000;i+=2){
+            tree.delete(i);
+         }
+         for(int i = 0;i<50000;i++){
+            assertEquals(i % 2 == 0 ? null : "v"+i,tree.search(i));
+         }
+      }
+   }
+   @Test
+   public void should_scan_ranges_in_both_directions(){
+      var tree = new BPlusTree<Integer,String>(1,4);
+      var reference = new TreeMap<Integer,String>();
+      var random = new Random(7);
+      for(int i = 0;i<2000;i++){
+         int key = random.nextInt(1000) * 2;
+         tree.insert(key,"v"+key);
+         reference.put(key,"v"+key);
+      }
+      for(int i = 0;i<500;i++){
+         int key = random.nextInt(1000) * 2;
+         tree.delete(key);
+         reference.remove(key);
+      }
+      for(int i = 0;i<50;i++){
+         int from = random.nextInt(2100) - 50;
+         int to = from + random.nextInt(400);
+         var ascending = new ArrayList<Map.Entry<Integer,String>>();
+         tree.range(from,to).forEachRemaining(ascending::add);
+         assertEquals(new ArrayList<>(reference.subMap(from,true,to,true).entrySet()),ascending);
+         var descending = new ArrayList<Map.Entry<Integer,String>>();
+         tree.descendingRange(from,to).forEachRemaining(descending::add);
+         assertEquals(new ArrayList<>(reference.subMap(from,true,to,true).descendingMap().entrySet()),descending);
+         assertEquals(reference.subMap(from,true,to,true).size(),tree.stream(from,to).count());
+         assertEquals(reference.floorEntry(from),tree.floor(from));
+         assertEquals(reference.ceilingEntry(from),tree.ceiling(from));
+      }
+      assertEquals(reference.firstEntry(),tree.first());
+      assertEquals(reference.lastEntry(),tree.last());
+      assertFalse(tree.cursor(10,5).next());
+   }
+   @Test
+   public void should_return_no_bounds_for_empty_tree(){
+      var tree = new BPlusTree<Integer,String>();
+      assertNull(tree.first());
+      assertNull(tree.last());
+      assertNull(tree.floor(3));
+      assertNull(tree.ceiling(3));
+   }
+   @Test
+   public void should_bulk_load_sorted_input(){
+      for(int order = 3;order<=8;order++){
+         for(double fillFactor : new double[]{1.0,0.7,0.3}){
+            var tree = new BPlusTree<Integer,String>(1,order);
+            int size = 5000 + order;
+            var keys = new Integer[size];
+            var values = new String[size];
+            var reference = new TreeMap<Integer,String>();
+            for(int i = 0;i<size;i++){
+               keys[i] = i * 3;
+               values[i] = "v"+i;
+               reference.put(keys[i],values[i]);
+            }
+            tree.bulkLoad(keys,values,fillFactor);
+            assertEquals(size,tree.stream(Integer.MIN_VALUE,Integer.MAX_VALUE).count());
+            var random = new Random(order);
+            for(int i = 0;i<3000;i++){
+               int key = random.nextInt(size * 3);
+               if(random.nextBoolean()){
+                  tree.delete(key);
+                  reference.remove(key);
+               }else{
+                  tree.insert(key,"n"+i);
+                  reference.put(key,"n"+i);
+               }
+            }
+            var scanned = new ArrayList<Map.Entry<Integer,String>>();
+            tree.range(Integer.MIN_VALUE,Integer.MAX_VALUE).forEachRemaining(scanned::add);
+            assertEquals(new ArrayList<>(reference.entrySet()),scanned);
+         }
+      }
+   }
+   @Test
+   public void should_reject_unsorted_bulk_load_and_stay_empty(){
+      var tree = new BPlusTree<Integer,String>(1,4);
+      var items = new TreeMap<Integer,String>();
+      for(int i = 0;i<100;i++){
+         items.put(i,"v"+i);
+      }
+      var entries = new ArrayList<>(items.entrySet());
+      entries.add(Map.entry(5,"late"));
+      assertThrows(IllegalArgumentException.class,()->tree.bulkLoad(entries.iterator(),1.0));
+      assertTrue(tree.isEmpty());
+      tree.bulkLoad(items.entrySet().iterator(),1.0);
+      assertEquals("v42",tree.search(42));
+      assertThrows(IllegalStateException.class,()->tree.bulkLoad(items.entrySet().iterator(),1.0));
+   }
+   @Test
+   public void should_stay_consistent_under_concurrent_writers_and_readers() throws Exception{
+      for(int order = 3;order<=8;order+=5){
+         var tree = new BPlusTree<Integer,String>(1,order);
+         int writers = 4;
+         int perWriter = 2000;
+         ExecutorService pool = Executors.newFixedThreadPool(writers + 2);
+         var done = new AtomicBoolean();
+         var futures = new ArrayList<Future<?>>();
+         for(int w = 0;w<writers;w++){
+            int writer = w;
+            futures.add(pool.submit(()->{
+               // Keys of a writer are interleaved with the keys of every other writer
+               for(int i = 0;i<perWriter;i++){
+                  tree.insert(i * writers + writer,"w"+writer+"-"+i);
+               }
+               for(int i = 0;i<perWriter;i+=2){
+                  tree.delete(i * writers + writer);
+               }
+               return null;
+            }));
+         }
+         for(int r = 0;r<2;r++){
+            futures.add(pool.submit(()->{
+               while(!done.get()){
+                  int previous = Integer.MIN_VALUE;
+                  var cursor = tree.cursor(Integer.MIN_VALUE,Integer.MAX_VALUE);
+                  while(cursor.next()){
+                     assertTrue(cursor.key() > previous);
+                     previous = cursor.key();
+                     String value = tree.search(cursor.key());
+                     assertTrue(value == null || value.startsWith("w" + cursor.key() % writers));
+                  }
+               }
+               return null;
+            }));
+         }
+         for(int i = 0;i<writers;i++){
+            futures.get(i).get(60,TimeUnit.SECONDS);
+         }
+         done.set(true);
+         for(var future : futures){
+            future.get(60,TimeUnit.SECONDS);
+         }
+         pool.shutdown();
+
+         var expected = new TreeMap<Integer,String>();
+         for(int w = 0;w<writers;w++){
+            for(int i = 1;i<perWriter;i+=2){
+               expected.put(i * writers + w,"w"+w+"-"+i);
+            }
+         }
+         var scanned = new ArrayList<Map.Entry<Integer,String>>();
+         tree.range(Integer.MIN_VALUE,Integer.MAX_VALUE).forEachRemaining(scanned::add);
+         assertEquals(new ArrayList<>(expected.entrySet()),scanned);
+         for(int key = 0;key<writers * perWriter;key++){
+            assertEquals(expected.get(key),tree.search(key));
+         }
+      }
+   }
+   @Test
+   public void should_order_keys_by_their_codec(){
+      var random = new Random(7);
+      var longs = new ArrayList<Long>();
+      var doubles = new ArrayList<Double>(List.of(-0.0,0.0,Double.NEGATIVE_INFINITY,Double.POSITIVE_INFINITY,Double.NaN,-Double.MIN_VALUE));
+      var uuids = new ArrayList<UUID>();
+      var bytes = new ArrayList<byte[]>();
+      for(int i = 0;i<500;i++){
+         longs.add(random.nextLong());
+         doubles.add((random.nextDouble() - 0.5) * Math.pow(10,random.nextInt(20)));
+         uuids.add(new UUID(random.nextLong(),random.nextLong()));
+         var key = new byte[3];
+         random.nextBytes(key);
+         bytes.add(key);
+      }
+      assertScannedInOrder(KeyCodecs.LONG,longs,Long::compare);
+      assertScannedInOrder(KeyCodecs.DOUBLE,doubles,Double::compare);
+      assertScannedInOrder(KeyCodecs.UUID,uuids,Comparator.comparing(UUID::getMostSignificantBits,Long::compareUnsigned)
+            .thenComparing(UUID::getLeastSignificantBits,Long::compareUnsigned));
+      assertScannedInOrder(KeyCodecs.fixedBytes(3),bytes,Arrays::compareUnsigned);
+   }
+   private static <K> void assertScannedInOrder(KeyCodec<K> codec,List<K> keys,Comparator<K> order){
+      var sorted = new TreeSet<>(order);
+      sorted.addAll(keys);
+      var shuffled = new ArrayList<>(sorted);
+      Collections.shuffle(shuffled,new Random(3));
+      var tree = new BPlusTree<K,String>(1,5,codec,ValueCodecs.UTF8);
+      for(int i = 0;i<shuffled.size();i++){
+         tree.insert(shuffled.get(i),String.valueOf(i));
+      }
+      var cursor = tree.cursor(sorted.first(),sorted.last());
+      for(K key : sorted){
+         assertTrue(cursor.next());
+         assertEquals(0,order.compare(key,cursor.key()));
+         assertEquals(0,order.compare(key,shuffled.get(Integer.parseInt(cursor.value()))));
+      }
+      assertFalse(cursor.next());
+      for(int i = 0;i<shuffled.size();i++){
+         assertEquals(String.valueOf(i),tree.search(shuffled.get(i)));
+      }
+   }
+   @Test
+   public void should_store_binary_values(){
+      var tree = new BPlusTree<Long,byte[]>(1,4,KeyCodecs.LONG,ValueCodecs.BYTES);
+      for(long i = 0;i<200;i++){
+         var value = new byte[(int) i];
+         Arrays.fill(value,(byte) i);
+         tree.insert(i * 1_000_000_007L,value);
+      }
+      for(long i = 0;i<200;i++){
+         var value = tree.search(i * 1_000_000_007L);
+         assertEquals(i,value.length);
+         for(byte b : value){
+            assertEquals((byte) i,b);
+         }
+      }
+      var buffers = new BPlusTree<Integer,ByteBuffer>(1,4,KeyCodecs.INT,ValueCodecs.BYTE_BUFFER);
+      var value = ByteBuffer.allocate(100);
+      value.position(10);
+      buffers.insert(-5,value);
+      assertEquals(10,value.position());
+      assertEquals(value,buffers.search(-5));
+      assertEquals(-5,(int) buffers.first().getKey());
+   }
+   @Test
+   public void should_reject_reopen_with_other_key_width() throws Exception{
+      var file = Files.createTempFile("bplustree",".idx");
+      try{
+         Files.delete(file);
+         try(var tree = BPlusTree.open(file,1,4,KeyCodecs.LONG,ValueCodecs.UTF8)){
+            tree.insert(Long.MIN_VALUE,"min");
+            tree.insert(Long.MAX_VALUE,"max");
+         }
+         assertThrows(IllegalStateException.class,()->BPlusTree.open(file,1,4));
+         try(var tree = BPlusTree.open(file,1,4,KeyCodecs.LONG,ValueCodecs.UTF8)){
+            assertEquals("min",tree.first().getValue());
+            assertEquals("max",tree.last().getValue());
+         }
+      }finally{
+         Files.deleteIfExists(file);
+      }
+   }
+   @Test
+   public void should_match_reference_map_with_wide_keys(){
+      var order = Comparator.comparing(UUID::getMostSignificantBits,Long::compareUnsigned)
+            .thenComparing(UUID::getLeastSignificantBits,Long::compareUnsigned);
+      for(int treeOrder = 3;treeOrder<=6;treeOrder++){
+         var tree = new BPlusTree<UUID,String>(1,treeOrder,KeyCodecs.UUID,ValueCodecs.UTF8);
+         var reference = new TreeMap<UUID,String>(order);
+         var random = new Random(treeOrder);
+         for(int i = 0;i<5000;i++){
+            var key = new UUID(random.nextInt(50),random.nextInt(50));
+            if(random.nextInt(3) == 0){
+               tree.delete(key);
+               reference.remove(key);
+            }else{
+               tree.insert(key,"v"+i);
+               reference.put(key,"v"+i);
+            }
+         }
+         var scanned = new ArrayList<Map.Entry<UUID,String>>();
+         tree.range(new UUID(0,0),new UUID(-1,-1)).forEachRemaining(scanned::add);
+         assertEquals(new ArrayList<>(reference.entrySet()),scanned);
+      }
+   }
+   @Test
+   public void should_recover_from_write_ahead_log_after_crash() throws Exception{
+      var dir = Files.createTempDirectory("bplustree");
+      var file = dir.resolve("tree.idx");
+      var crashed = dir.resolve("crashed.idx");
+      try{
+         var reference = new TreeMap<Integer,String>();
+         var random = new Random(7);
+         try(var tree = BPlusTree.open(file,1,4,KeyCodecs.INT,ValueCodecs.UTF8,SyncPolicy.perOperation())){
+            for(int i = 0;i<2000;i++){
+               tree.insert(i,"v"+i);
+               reference.put(i,"v"+i);
+            }
+            tree.flush();
+            var checkpoint = Files.readAllBytes(file);
+            for(int i = 0;i<3000;i++){
+               int key = random.nextInt(3000);
+               if(random.nextInt(3) == 0){
+                  tree.delete(key);
+                  reference.remove(key);
+               }else{
+                  var value = random.nextInt(10) == 0 ? "x".repeat(300 + i) : "w"+i;
+                  tree.insert(key,value);
+                  reference.put(key,value);
+               }
+            }
+            // A crash may leave any mix of pages from before and after the checkpoint in the file
+            var current = Files.readAllBytes(file);
+            for(int page = 0;page * 4096<checkpoint.length;page++){
+               if(random.nextBoolean()){
+                  System.arraycopy(checkpoint,page * 4096,current,page * 4096,Math.min(4096,checkpoint.length - page * 4096));
+               }
+            }
+            Files.write(crashed,current);
+            Files.copy(Path.of(file+".wal"),Path.of(crashed+".wal"));
+         }
+         // A record torn by the crash ends the log
+         Files.write(Path.of(crashed+".wal"),new byte[]{0,0,0,40,1,2,3},StandardOpenOption.APPEND);
+         for(int open = 0;open<2;open++){
+            try(var tree = BPlusTree.open(crashed,1,4,KeyCodecs.INT,ValueCodecs.UTF8,SyncPolicy.perOperation())){
+               var scanned = new ArrayList<Map.Entry<Integer,String>>();
+               tree.range(Integer.MIN_VALUE,Integer.MAX_VALUE).forEachRemaining(scanned::add);
+               assertEquals(new ArrayList<>(reference.entrySet()),scanned);
+               tree.insert(-1,"after");
+               reference.put(-1,"after");
+            }
+         }
+      }finally{
+         deleteDirectory(dir);
+      }
+   }
+   @Test
+   public void should_keep_writes_of_every_sync_policy() throws Exception{
+      for(var policy : List.of(SyncPolicy.perOperation(),SyncPolicy.batched(2),SyncPolicy.async(2))){
+         var dir = Files.createTempDirectory("bplustree");
+         var file = dir.resolve("tree.idx");
+         try{
+            try(var tree = BPlusTree.open(file,1,8,KeyCodecs.INT,ValueCodecs.UTF8,policy)){
+               ExecutorService executor = Executors.newFixedThreadPool(4);
+               var futures = new ArrayList<Future<?>>();
+               for(int t = 0;t<4;t++){
+                  int thread = t;
+                  futures.add(executor.submit(()->{
+                     for(int i = 0;i<500;i++){
+                        tree.insert(i * 4 + thread,"v"+i);
+                     }
+                  }));
+               }
+               for(var future : futures){
+                  future.get(60,TimeUnit.SECONDS);
+               }
+               executor.shutdown();
+            }
+            try(var tree = BPlusTree.open(file,1,8)){
+               for(int key = 0;key<2000;key++){
+                  assertEquals(policy.toString(),"v"+key / 4,tree.search(key));
+               }
+            }
+         }finally{
+            deleteDirectory(dir);
+         }
+      }
+   }
+   @Test
+   public void should_page_tree_larger_than_its_cache() throws Exception{
+      var dir = Files.createTempDirectory("bplustree");
+      var file = dir.resolve("tree.idx");
+      try{
+         try(var tree = BPlusTree.paged(file,16,1,16,KeyCodecs.INT,ValueCodecs.UTF8,null)){
+            for(int i = 0;i<200000;i++){
+               tree.insert(i,i % 100 == 0 ? "long".repeat(100) : "v"+i);
+            }
+            assertTrue(tree.capacity() > 8 * 1024 * 1024);
+            assertTrue(tree.residentBytes() <= 1024 * 1024);
+            for(int i = 0;i<200000;i += 2){
+               tree.delete(i);
+            }
+         }
+         try(var tree = BPlusTree.paged(file,64,1,16,KeyCodecs.INT,ValueCodecs.UTF8,null)){
+            for(int i = 0;i<200000;i++){
+               assertEquals(i % 2 == 0 ? null : i % 100 == 0 ? "long".repeat(100) : "v"+i,tree.search(i));
+            }
+            assertTrue(tree.residentBytes() <= 1024 * 1024);
+         }
+         try(var tree = BPlusTree.open(file,1,16)){
+            assertEquals(100000,tree.stream(0,200000).count());
+         }
+      }finally{
+         deleteDirectory(dir);
+      }
+   }
+   @Test
+   public void should_match_single_operations_with_batches(){
+      for(int order = 3;order<=16;order+=13){
+         var tree = new BPlusTree<Integer,String>(1,order);
+         var expected = new TreeMap<Integer,String>();
+         var random = new Random(order);
+         for(int round = 0;round<20;round++){
+            var items = new HashMap<Integer,String>();
+            for(int i = 0;i<300;i++){
+               int key = random.nextInt(5000) - 2500;
+               items.put(key,key % 17 == 0 ? "long".repeat(120) + round : "r"+round+"-"+key);
+            }
+            tree.insertMany(items);
+            expected.putAll(items);
+            var keys = new ArrayList<Integer>();
+            for(int i = 0;i<400;i++){
+               keys.add(random.nextInt(6000) - 3000);
+            }
+            keys.add(keys.get(0));
+            keys.add(Integer.MIN_VALUE);
+            keys.add(Integer.MAX_VALUE);
+            var values = tree.searchMany(keys);
+            assertEquals(keys.size(),values.size());
+            for(int i = 0;i<keys.size();i++){
+               assertEquals(expected.get(keys.get(i)),values.get(i));
+            }
+         }
+         var scanned = new ArrayList<Map.Entry<Integer,String>>();
+         tree.range(Integer.MIN_VALUE,Integer.MAX_VALUE).forEachRemaining(scanned::add);
+         assertEquals(new ArrayList<>(expected.entrySet()),scanned);
+         assertTrue(tree.searchMany(List.of()).isEmpty());
+      }
+      // Long keys below 2^32 agree on their first bytes, and the 12-byte keys often tie past the prefix
+      var longs = new BPlusTree<Long,String>(1,8,KeyCodecs.LONG,ValueCodecs.UTF8);
+      var wide = new BPlusTree<byte[],String>(1,8,KeyCodecs.fixedBytes(12),ValueCodecs.UTF8);
+      var longItems = new HashMap<Long,String>();
+      var wideItems = new HashMap<byte[],String>();
+      var random = new Random(3);
+      for(int i = 0;i<2000;i++){
+         long key = random.nextInt(100000) * (i % 3 == 0 ? -1L : 1L);
+         longItems.put(key,"l"+key);
+         var bytes = new byte[12];
+         bytes[10] = (byte) random.nextInt(4);
+         bytes[11] = (byte) random.nextInt(256);
+         wideItems.put(bytes,"b"+bytes[10]+"-"+bytes[11]);
+      }
+      longs.insertMany(longItems);
+      wide.insertMany(wideItems);
+      var longKeys = new ArrayList<>(longItems.keySet());
+      longKeys.add(123456789L);
+      var longValues = longs.searchMany(longKeys);
+      for(int i = 0;i<longKeys.size();i++){
+         assertEquals(longItems.get(longKeys.get(i)),longValues.get(i));
+         assertEquals(longs.search(longKeys.get(i)),longValues.get(i));
+      }
+      var wideKeys = new ArrayList<>(wideItems.keySet());
+      var wideValues = wide.searchMany(wideKeys);
+      for(int i = 0;i<wideKeys.size();i++){
+         assertEquals(wide.search(wideKeys.get(i)),wideValues.get(i));
+         assertEquals("b"+wideKeys.get(i)[10]+"-"+wideKeys.get(i)[11],wideValues.get(i));
+      }
+   }
+   @Test
+   public void should_read_snapshot_as_of_when_it_was_taken(){
+      var tree = new BPlusTree<Integer,String>(1,8);
+      for(int i = 0;i<10000;i++){
+         tree.insert(i,i % 50 == 0 ? "long".repeat(150) + i : "a"+i);
+      }
+      var snapshot = tree.snapshot();
+      for(int i = 0;i<10000;i+=2){
+         tree.insert(i,"b"+i);
+      }
+      for(int i = 0;i<10000;i+=3){
+         tree.delete(i);
+      }
+      for(int i = 10000;i<20000;i++){
+         tree.insert(i,"c"+i);
+      }
+      for(int i = 0;i<20000;i++){
+         String old = i >= 10000 ? null : i % 50 == 0 ? "long".repeat(150) + i : "a"+i;
+         assertEquals(old,snapshot.search(i));
+      }
+      var scanned = new ArrayList<Integer>();
+      snapshot.range(-1,30000).forEachRemaining(entry -> scanned.add(entry.getKey()));
+      assertEquals(10000,scanned.size());
+      for(int i = 0;i<10000;i++){
+         assertEquals(i,(int) scanned.get(i));
+      }
+      var descending = snapshot.descendingRange(100,199);
+      for(int i = 199;i>=100;i--){
+         assertEquals(i,(int) descending.next().getKey());
+      }
+      assertFalse(descending.hasNext());
+      assertEquals(100,snapshot.stream(5000,5099).count());
+      assertEquals(null,tree.search(3));
+      assertEquals("b2",tree.search(2));
+      snapshot.close();
+      assertThrows(IllegalStateException.class,() -> snapshot.search(1));
+
+      // Closed snapshots give their copies back, so repeated snapshots do not grow the tree
+      long capacity = 0;
+      for(int round = 0;round<30;round++){
+         try(var each = tree.snapshot()){
+            for(int i = 10000;i<20000;i++){
+               tree.insert(i,"r"+round);
+            }
+            assertEquals(round == 0 ? "c10000" : "r"+(round - 1),each.search(10000));
+         }
+         if(round == 5){
+            capacity = tree.capacity();
+         }
+      }
+      assertEquals(capacity,tree.capacity());
+   }
+   @Test
+   public void should_scan_snapshot_while_writers_change_tree() throws Exception{
+      var tree = new BPlusTree<Integer,String>(1,6);
+      int keys = 4000;
+      for(int i = 0;i<keys;i++){
+         tree.insert(i,"a"+i);
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      try(var snapshot = tree.snapshot()){
+         var futures = new ArrayList<Future<?>>();
+         for(int w = 0;w<2;w++){
+            int writer = w;
+            futures.add(pool.submit(()->{
+               for(int round = 0;round<5;round++){
+                  for(int i = writer;i<keys * 2;i+=2){
+                     if(i % 5 == round){
+                        tree.delete(i);
+                     }else{
+                        tree.insert(i,"w"+round);
+                     }
+                  }
+               }
+               return null;
+            }));
+         }
+         for(int r = 0;r<2;r++){
+            futures.add(pool.submit(()->{
+               for(int scan = 0;scan<20;scan++){
+                  int expected = 0;
+                  var entries = snapshot.range(Integer.MIN_VALUE,Integer.MAX_VALUE);
+                  while(entries.hasNext()){
+                     var entry = entries.next();
+                     assertEquals(expected,(int) entry.getKey());
+                     assertEquals("a"+expected,entry.getValue());
+                     expected++;
+                  }
+                  assertEquals(keys,expected);
+               }
+               return null;
+            }));
+         }
+         for(var future : futures){
+            future.get(60,TimeUnit.SECONDS);
+         }
+      }finally{
+         pool.shutdown();
+      }
+      for(int i = 0;i<keys * 2;i++){
+         assertEquals(i % 5 == 4 ? null : "w4",tree.search(i));
+      }
+   }
+   @Test
+   public void should_fan_out_wider_with_shared_key_prefixes(){
+      var shared = new BPlusTree<byte[],String>(1,4,KeyCodecs.fixedBytes(32),ValueCodecs.UTF8);
+      var distinct = new BPlusTree<byte[],String>(1,4,KeyCodecs.fixedBytes(32),ValueCodecs.UTF8);
+      var reference = new TreeMap<byte[],String>(Arrays::compareUnsigned);
+      var random = new Random(19);
+      for(int i = 0;i<3000;i++){
+         var suffix = ByteBuffer.allocate(4).putInt(random.nextInt(5000)).array();
+         var key = new byte[32];
+         Arrays.fill(key,0,28,(byte) 'p');
+         System.arraycopy(suffix,0,key,28,4);
+         var spread = new byte[32];
+         System.arraycopy(suffix,0,spread,0,4);
+         shared.insert(key,"v"+i);
+         distinct.insert(spread,"v"+i);
+         reference.put(key,"v"+i);
+      }
+      shared.enableMetrics();
+      distinct.enableMetrics();
+      assertTrue(shared.stats().height()<distinct.stats().height());
+      var keys = new ArrayList<>(reference.keySet());
+      Collections.shuffle(keys,random);
+      for(int i = 0;i<keys.size()*3/4;i++){
+         shared.delete(keys.get(i));
+         reference.remove(keys.get(i));
+      }
+      assertTrue(shared.stats().merges()>0 && shared.stats().borrows()>0);
+      var scanned = new ArrayList<Map.Entry<byte[],String>>();
+      shared.range(new byte[32],reference.lastKey()).forEachRemaining(scanned::add);
+      assertEquals(reference.size(),scanned.size());
+      for(int i = 0;i<scanned.size();i++){
+         var expected = reference.pollFirstEntry();
+         assertArrayEquals(expected.getKey(),scanned.get(i).getKey());
+         assertEquals(expected.getValue(),scanned.get(i).getValue());
+      }
+   }
+   @Test
+   public void should_detect_corrupt_nodes_by_checksum() throws Exception{
+      var file = Files.createTempFile("bplustree",".idx");
+      try{
+         Files.delete(file);
+         try(var tree = BPlusTree.open(file,1,8)){
+            var keys = new Integer[1000];
+            var values = new String[1000];
+            for(int i = 0;i<1000;i++){
+               keys[i] = i;
+               values[i] = "value-"+i;
+            }
+            // A bulk load writes every leaf once, so the file holds a single copy of every value
+            tree.bulkLoad(keys,values,1.0);
+            assertEquals(List.of(),tree.verify());
+         }
+         var bytes = Files.readAllBytes(file);
+         var value = "value-777".getBytes(StandardCharsets.UTF_8);
+         for(int i = 0;i+value.length<=bytes.length;i++){
+            if(Arrays.equals(bytes,i,i+value.length,value,0,value.length)){
+               bytes[i+value.length-1] ^= 1;
+            }
+         }
+         Files.write(file,bytes);
+         try(var tree = BPlusTree.open(file,1,8)){
+            var problems = tree.verify();
+            assertEquals(problems.toString(),1,problems.size());
+            assertTrue(problems.get(0).contains("checksum"));
+            assertThrows(IllegalStateException.class,()->tree.insert(777,"repaired"));
+            tree.verifyChecksumsOnRead(false);
+            tree.insert(777,"repaired");
+            assertEquals(List.of(),tree.verify());
+            assertEquals("repaired",tree.search(777));
+            assertEquals("value-778",tree.search(778));
+         }
+      }finally{
+         Files.deleteIfExists(file);
+      }
+   }
+   @Test
+   public void should_verify_tree_with_snapshots_and_overflow_values(){
+      for(int order = 3;order<=16;order+=13){
+         var tree = new BPlusTree<Integer,String>(1,order);
+         var random = new Random(order);
+         for(int i = 0;i<5000;i++){
+            int key = random.nextInt(2000);
+            if(random.nextInt(3) == 0){
+               tree.delete(key);
+            }else{
+               tree.insert(key,random.nextInt(10) == 0 ? "x".repeat(500) : "v"+i);
+            }
+         }
+         assertEquals(List.of(),tree.verify());
+         try(var snapshot = tree.snapshot()){
+            for(int i = 0;i<2000;i++){
+               tree.delete(i);
+            }
+            assertEquals(List.of(),tree.verify());
+            assertTrue(snapshot.stream(0,2000).count()>0);
+         }
+         assertEquals(List.of(),tree.verify());
+      }
+   }
+   @Test
+   public void should_defer_rebalancing_until_compacted() throws Exception{
+      var tree = new BPlusTree<Integer,String>(1,4);
+      for(int i = 0;i<1000;i++){
+         tree.insert(i,"v"+i);
+      }
+      tree.enableMetrics();
+      tree.deferRebalancing(0);
+      for(int i = 0;i<1000;i++){
+         if(i%10 != 0){
+            tree.delete(i);
+         }
+      }
+      assertEquals(0,tree.stats().merges()+tree.stats().borrows());
+      assertEquals(List.of(),tree.verify());
+      assertEquals("v500",tree.search(500));
+      assertNull(tree.search(501));
+      assertTrue(tree.compact()>0);
+      assertTrue(tree.stats().merges()>0);
+      assertEquals(0,tree.compact());
+      tree.rebalanceOnDelete();
+      assertEquals(List.of(),tree.verify());
+      var keys = new ArrayList<Integer>();
+      tree.range(0,999).forEachRemaining(entry -> keys.add(entry.getKey()));
+      assertEquals(100,keys.size());
+      assertEquals(990,(int) keys.get(99));
+
+      tree.deferRebalancing(1);
+      for(int i = 0;i<1000;i+=10){
+         tree.delete(i);
+      }
+      assertTrue(tree.isEmpty());
+      long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(10);
+      while(tree.stats().height()>1 && System.nanoTime()<deadline){
+         Thread.sleep(1);
+      }
+      assertEquals(1,tree.stats().height());
+      tree.close();
+   }
+   @Test
+   public void should_serve_hot_keys_from_front_cache(){
+      var tree = new BPlusTree<Integer,String>(1,8);
+      for(int i = 0;i<1000;i++){
+         tree.insert(i,"v"+i);
+      }
+      tree.enableMetrics();
+      tree.enableFrontCache(100);
+      for(int round = 0;round<10;round++){
+         for(int i = 0;i<50;i++){
+            assertEquals("v"+i,tree.search(i));
+         }
+      }
+      assertEquals(50,tree.stats().cacheMisses());
+      assertEquals(450,tree.stats().cacheHits());
+      // One-off lookups pass through without pushing the hot keys out
+      for(int i = 100;i<1000;i++){
+         assertEquals("v"+i,tree.search(i));
+      }
+      long misses = tree.stats().cacheMisses();
+      for(int i = 0;i<50;i++){
+         assertEquals("v"+i,tree.search(i));
+      }
+      assertEquals(misses,tree.stats().cacheMisses());
+
+      tree.insert(7,"seven");
+      tree.delete(8);
+      tree.insertMany(Map.of(9,"nine",10,"ten"));
+      assertEquals("seven",tree.search(7));
+      assertNull(tree.search(8));
+      assertEquals("nine",tree.search(9));
+      assertEquals("ten",tree.search(10));
+      assertEquals("v11",tree.search(11));
+      tree.enableFrontCache(0);
+      assertEquals(0,tree.stats().cacheHits());
+      assertEquals("seven",tree.search(7));
+   }
+   @Test
+   public void should_route_searches_through_changing_internal_nodes(){
+      // Twelve-byte keys that differ in their first and last bytes, so separators keep all twelve
+      var tree = new BPlusTree<byte[],String>(1,4,KeyCodecs.fixedBytes(12),ValueCodecs.UTF8);
+      var expected = new TreeMap<Integer,String>();
+      var random = new Random(23);
+      for(int round = 0;round<4000;round++){
+         int k = random.nextInt(500);
+         if(random.nextInt(3)==0){
+            tree.delete(wideKey(k));
+            expected.remove(k);
+         }else{
+            tree.insert(wideKey(k),"v"+round);
+            expected.put(k,"v"+round);
+         }
+         int probe = random.nextInt(500);
+         assertEquals(expected.get(probe),tree.search(wideKey(probe)));
+      }
+      var keys = new ArrayList<byte[]>();
+      for(int k = 0;k<500;k++){
+         keys.add(wideKey(k));
+      }
+      var values = tree.searchMany(keys);
+      for(int k = 0;k<500;k++){
+         assertEquals(expected.get(k),values.get(k));
+      }
+      // A bulk load replaces every internal node the searches went through
+      var loadedPairs = new TreeMap<byte[],String>(Arrays::compareUnsigned);
+      for(int k = 0;k<300;k++){
+         loadedPairs.put(wideKey(k*2),"b"+k);
+      }
+      var loaded = new BPlusTree<byte[],String>(1,4,KeyCodecs.fixedBytes(12),ValueCodecs.UTF8);
+      loaded.insert(wideKey(1),"gone");
+      loaded.search(wideKey(1));
+      loaded.delete(wideKey(1));
+      loaded.bulkLoad(loadedPairs.entrySet().iterator(),1.0);
+      for(int k = 0;k<600;k++){
+         assertEquals(k%2==0 ? "b"+k/2 : null,loaded.search(wideKey(k)));
+      }
+      assertTrue(tree.verify().isEmpty());
+   }
+   @Test
+   public void should_search_large_nodes_for_keys_of_any_width(){
+      for(int order : new int[]{3,128,512}){
+         var tree = new BPlusTree<byte[],String>(1,order,KeyCodecs.fixedBytes(8),ValueCodecs.UTF8);
+         var expected = new TreeMap<byte[],String>(Arrays::compareUnsigned);
+         var random = new Random(order);
+         for(int i = 0;i<3000;i++){
+            // Keys from one to eight bytes long before their trailing zeros, some all ones
+            byte[] key = new byte[8];
+            int length = 1+random.nextInt(8);
+            for(int b = 0;b<length;b++){
+               key[b] = (byte) (i%10==0 ? 0xFF : random.nextInt(4));
+            }
+            tree.insert(key,"v"+i);
+            expected.put(key,"v"+i);
+         }
+         for(var entry : expected.entrySet()){
+            assertEquals(entry.getValue(),tree.search(entry.getKey()));
+            // The same key with one more byte, and one less, is a different key
+            byte[] longer = entry.getKey().clone();
+            int last = 7;
+            while(last>0 && longer[last]==0){
+               last--;
+            }
+            if(last<7){
+               longer[last+1] = 1;
+               assertEquals(expected.get(longer),tree.search(longer));
+            }
+            byte[] lower = entry.getKey().clone();
+            lower[last]--;
+            assertEquals(expected.get(lower),tree.search(lower));
+         }
+      }
+   }
+   @Test
+   public void should_route_scan_and_split_shards() throws Exception{
+      assertThrows(IllegalArgumentException.class,()->new ShardedBPlusTree<>(1,8,KeyCodecs.INT,ValueCodecs.UTF8,List.of(5,5)));
+      try(var tree = new ShardedBPlusTree<>(1,8,KeyCodecs.INT,ValueCodecs.UTF8,List.of(100,200))){
+         assertTrue(tree.isEmpty());
+         var items = new HashMap<Integer,String>();
+         for(int i = -50;i<300;i++){
+            items.put(i,"v"+i);
+         }
+         tree.insertMany(items);
+         tree.insert(1000,"last");
+         tree.delete(150);
+         assertEquals(3,tree.shardCount());
+         assertEquals("v-50",tree.search(-50));
+         assertEquals("v199",tree.search(199));
+         assertEquals("last",tree.search(1000));
+         assertNull(tree.search(150));
+         // Scans cross shard boundaries in key order
+         var scanned = new ArrayList<Integer>();
+         tree.range(90,210).forEachRemaining(entry->scanned.add(entry.getKey()));
+         assertEquals(120,scanned.size());
+         assertEquals(90,(int) scanned.get(0));
+         assertEquals(210,(int) scanned.get(119));
+
+         // The shard taking every write is split, the others are left as they are
+         for(int i = 0;i<1000;i++){
+            tree.insert(200+i%100,"w"+i);
+         }
+         assertFalse(tree.splitHotShard(3));
+         for(int i = 0;i<1000;i++){
+            tree.insert(200+i%100,"w"+i);
+         }
+         assertTrue(tree.splitHotShard(8));
+         assertEquals(4,tree.shardCount());
+         assertFalse(tree.splitHotShard(8));
+         assertTrue(tree.splitShard(-50));
+         assertEquals(5,tree.shardCount());
+         assertEquals("w999",tree.search(299));
+         assertEquals("v-50",tree.search(-50));
+         assertEquals(350,tree.stream(-1000,1000).count());
+
+         // Writers and scans go on while shards are split underneath them
+         ExecutorService executor = Executors.newFixedThreadPool(3);
+         try{
+            var writers = new ArrayList<Future<?>>();
+            for(int w = 0;w<2;w++){
+               int writer = w;
+               writers.add(executor.submit(()->{
+                  for(int i = 0;i<3000;i++){
+                     tree.insert(10_000+i*2+writer,"c"+i);
+                  }
+               }));
+            }
+            var scan = executor.submit(()->{
+               for(int round = 0;round<20;round++){
+                  int previous = Integer.MIN_VALUE;
+                  for(var it = tree.range(-1000,20_000);it.hasNext();){
+                     int key = it.next().getKey();
+                     assertTrue(key>previous);
+                     previous = key;
+                  }
+               }
+            });
+            while(!writers.get(0).isDone() || !writers.get(1).isDone()){
+               tree.splitHotShard(32);
+            }
+            for(var writer : writers){
+               writer.get();
+            }
+            scan.get();
+         }finally{
+            executor.shutdown();
+         }
+         for(int i = 0;i<6000;i++){
+            assertEquals("c"+i/2,tree.search(10_000+i));
+         }
+         assertEquals(6350,tree.stream(-1000,20_000).count());
+      }
+   }
+   @Test
+   public void should_reject_sharded_operations_after_close(){
+      var tree = new ShardedBPlusTree<>(1,8,KeyCodecs.INT,ValueCodecs.UTF8,List.of(100));
+      tree.insert(1,"a");
+      tree.insert(150,"b");
+      tree.close();
+      tree.close();
+      assertThrows(IllegalStateException.class,()->tree.insert(2,"c"));
+      assertThrows(IllegalStateException.class,()->tree.search(150));
+      assertThrows(IllegalStateException.class,()->tree.delete(1));
+      assertThrows(IllegalStateException.class,()->tree.insertMany(Map.of(3,"d",200,"e")));
+      assertThrows(IllegalStateException.class,()->tree.range(0,1000).hasNext());
+      assertThrows(IllegalStateException.class,()->tree.splitShard(1));
+   }
+   private static byte[] wideKey(int k){
+      return ByteBuffer.allocate(12).put(0,(byte) (k%7)).putInt(8,k).array();
+   }
+   @Test
+   public void should_count_operations_and_tree_shape_in_stats() throws Exception{
+      var tree = new BPlusTree<Integer,String>(1,4);
+      for(int i = 0;i<50;i++){
+         tree.insert(i,"v"+i);
+      }
+      tree.enableMetrics();
+      var stats = tree.stats();
+      assertEquals(0,stats.inserts());
+      assertEquals(50,stats.entries());
+      for(int i = 50;i<200;i++){
+         tree.insert(i,"v"+i);
+      }
+      for(int i = 0;i<200;i+=3){
+         tree.search(i);
+      }
+      tree.searchMany(List.of(1,2,3));
+      for(int i = 0;i<150;i++){
+         tree.delete(i);
+      }
+      stats = tree.stats();
+      assertEquals(150,stats.inserts());
+      assertEquals(67+3,stats.searches());
+      assertEquals(150,stats.deletes());
+      assertEquals(50,stats.entries());
+      assertTrue(stats.leafSplits()>0 && stats.internalSplits()>0);
+      assertTrue(stats.merges()>0 && stats.borrows()>0);
+      assertTrue(stats.nodesDeserializedPerWrite()>=1);
+      assertTrue(stats.fillFactor()>0 && stats.fillFactor()<=1);
+      assertTrue(stats.height()>=3);
+      assertTrue(stats.arenaBytesUsed()>0 && stats.arenaBytesUsed()<=stats.capacity());
+
+      // Counting the same tree from scratch finds what the writers kept track of
+      var counted = new BPlusTree<Integer,String>(1,4);
+      for(int i = 0;i<200;i++){
+         counted.insert(i,"v"+i);
+      }
+      for(int i = 0;i<150;i++){
+         counted.delete(i);
+      }
+      counted.enableMetrics();
+      assertEquals(counted.stats().leafNodes(),stats.leafNodes());
+      assertEquals(counted.stats().internalNodes(),stats.internalNodes());
+      var loaded = new BPlusTree<Integer,String>(1,4);
+      loaded.enableMetrics();
+      loaded.bulkLoad(new Integer[]{1,2,3,4,5},new String[]{"a","b","c","d","e"},1.0);
+      assertEquals(5,loaded.stats().entries());
+      assertEquals(2,loaded.stats().leafNodes());
+      assertEquals(1,loaded.stats().internalNodes());
+
+      var latency = stats.insertLatency();
+      assertEquals(150,latency.count());
+      assertEquals(67,stats.searchLatency().count());
+      assertTrue(latency.percentile(50)<=latency.percentile(99));
+      assertTrue(latency.percentile(99)<=latency.percentile(100));
+      assertEquals(latency.max(),latency.percentile(100));
+      assertTrue(latency.mean()>0);
+   }
+   @Test
+   public void should_publish_stats_through_jmx() throws Exception{
+      var server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+      javax.management.ObjectName name;
+      try(var tree = new BPlusTree<Integer,String>(1,8)){
+         for(int i = 0;i<100;i++){
+            tree.insert(i,"v");
+         }
+         name = tree.registerMBean("jmx-test");
+         tree.search(5);
+         assertEquals(100L,server.getAttribute(name,"Entries"));
+         assertEquals(1L,server.getAttribute(name,"Searches"));
+         assertEquals(tree.stats().height(),server.getAttribute(name,"Height"));
+         assertThrows(IllegalStateException.class,()->tree.registerMBean("again"));
+      }
+      assertFalse(server.isRegistered(name));
+   }
+   private static void deleteDirectory(Path dir) throws Exception{
+      try(var files = Files.list(dir)){
+         for(var file : (Iterable<Path>) files::iterator){
+            Files.delete(file);
+         }
+      }
+      Files.delete(dir);
+   }
 }